@@ -0,0 +1,304 @@
+/*
+ * @author     ucchy
+ * @license    LGPLv3
+ * @copyright  Copyright ucchy 2015
+ */
+package org.bitbucket.ucchy.undine;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.bukkit.configuration.file.YamlConfiguration;
+
+/**
+ * 保存期間を過ぎたメールのアーカイブ。
+ * メールは数十件ずつのブロックにまとめてgzipで圧縮し、セグメントファイルの末尾に追記する。
+ * メールのインデクスから、ブロックの位置を引けるように、索引ファイルにも追記しておく。
+ * アーカイブしたメールは、通常のメールとしてはロードされないが、インデクスを指定して参照できる。
+ * @author ucchy
+ */
+public class MailArchive {
+
+    private static final String SEGMENT_SUFFIX = ".gz";
+    private static final String INDEX_FILE = "archive.idx";
+
+    /** 索引ファイルの1レコードの長さ（インデクス、セグメント番号、位置、長さ） */
+    private static final int INDEX_RECORD_SIZE = 4 + 4 + 8 + 4;
+
+    /** 1セグメントの最大サイズ。これを超えたら次のセグメントへ切り替える。 */
+    private static final long SEGMENT_MAX_SIZE = 8L * 1024 * 1024;
+
+    /** 1ブロックにまとめるメールの最大数。参照時は、ブロック単位で展開される。 */
+    private static final int BLOCK_MAX_MAILS = 64;
+
+    private File folder;
+    private int activeSegment;
+
+    /** メールごとの、格納されているブロックの位置。ロードされるまではnull。 */
+    private HashMap<Integer, BlockPosition> positions;
+
+    /**
+     * コンストラクタ
+     * @param folder アーカイブを格納するフォルダ
+     */
+    public MailArchive(File folder) {
+        this.folder = folder;
+    }
+
+    /**
+     * 索引ファイルをロードする。ロード済みの場合は何もしない。
+     */
+    public synchronized void load() {
+
+        if ( positions != null ) return;
+        positions = new HashMap<Integer, BlockPosition>();
+        activeSegment = 1;
+
+        if ( !folder.exists() ) return;
+
+        File[] segments = folder.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        for ( File segment : segments ) {
+            String name = segment.getName();
+            try {
+                int number = Integer.parseInt(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+                activeSegment = Math.max(activeSegment, number);
+            } catch (NumberFormatException e) {
+                // 関係ないファイルは無視する
+            }
+        }
+
+        File file = new File(folder, INDEX_FILE);
+        if ( !file.exists() ) return;
+
+        long read = 0;
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            while ( true ) {
+                int index = in.readInt();
+                int segment = in.readInt();
+                long offset = in.readLong();
+                int length = in.readInt();
+                positions.put(index, new BlockPosition(segment, offset, length));
+                read += INDEX_RECORD_SIZE;
+            }
+        } catch (EOFException e) {
+            // 末尾まで読んだ
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+
+        // 書き込み途中で途切れた部分があれば、以降の追記がずれないように切り捨てる
+        if ( read < file.length() ) {
+            UndineMailer.getInstance().getLogger().warning(
+                    "Truncated the broken tail of the mail archive index.");
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(read);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * 指定されたメールをアーカイブに追記する。メールは本文を含めてロードされている必要がある。
+     * @param mails メール
+     * @return 追記できたかどうか
+     */
+    public synchronized boolean archive(List<MailData> mails) {
+
+        load();
+
+        if ( mails.size() == 0 ) return true;
+
+        if ( !folder.exists() ) {
+            folder.mkdirs();
+        }
+
+        HashMap<Integer, BlockPosition> written = new HashMap<Integer, BlockPosition>();
+
+        try {
+            for ( int start = 0; start < mails.size(); start += BLOCK_MAX_MAILS ) {
+                List<MailData> block =
+                        mails.subList(start, Math.min(start + BLOCK_MAX_MAILS, mails.size()));
+                byte[] compressed = compress(block);
+
+                File segment = getSegmentFile(activeSegment);
+                if ( segment.length() >= SEGMENT_MAX_SIZE ) {
+                    activeSegment++;
+                    segment = getSegmentFile(activeSegment);
+                }
+                long offset = segment.length();
+                try (FileOutputStream out = new FileOutputStream(segment, true)) {
+                    out.write(compressed);
+                }
+
+                BlockPosition position = new BlockPosition(activeSegment, offset, compressed.length);
+                for ( MailData mail : block ) {
+                    written.put(mail.getIndex(), position);
+                }
+            }
+
+            // ブロックを書き終えてから、索引に追記する
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(new File(folder, INDEX_FILE), true)))) {
+                for ( int index : written.keySet() ) {
+                    BlockPosition position = written.get(index);
+                    out.writeInt(index);
+                    out.writeInt(position.segment);
+                    out.writeLong(position.offset);
+                    out.writeInt(position.length);
+                }
+            }
+
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+
+        positions.putAll(written);
+        return true;
+    }
+
+    /**
+     * アーカイブから、指定されたインデクスのメールを取得する
+     * @param index インデクス
+     * @return メール、見つからない場合はnull
+     */
+    public synchronized MailData getMail(int index) {
+
+        load();
+
+        BlockPosition position = positions.get(index);
+        if ( position == null ) return null;
+
+        try (DataInputStream in = new DataInputStream(new GZIPInputStream(
+                new ByteArrayInputStream(position.read(getSegmentFile(position.segment)))))) {
+            while ( true ) {
+                int i = in.readInt();
+                byte[] data = new byte[in.readInt()];
+                in.readFully(data);
+                if ( i == index ) {
+                    YamlConfiguration config = new YamlConfiguration();
+                    config.loadFromString(new String(data, StandardCharsets.UTF_8));
+                    return MailData.loadFromConfigSection(config);
+                }
+            }
+        } catch (EOFException e) {
+            // ブロック内に見つからなかった
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (InvalidConfigurationException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * アーカイブされているメールの、最大のインデクスを返す
+     * @return 最大のインデクス、1件もアーカイブされていない場合は0
+     */
+    public synchronized int getLastIndex() {
+        load();
+        int last = 0;
+        for ( int index : positions.keySet() ) {
+            if ( last < index ) {
+                last = index;
+            }
+        }
+        return last;
+    }
+
+    /**
+     * アーカイブされているメールの件数を返す
+     * @return 件数
+     */
+    public synchronized int size() {
+        load();
+        return positions.size();
+    }
+
+    /**
+     * 指定されたメールを、1つのブロックとして圧縮する
+     * @param mails メール
+     * @return 圧縮されたブロック
+     * @throws IOException
+     */
+    private static byte[] compress(List<MailData> mails) throws IOException {
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(new GZIPOutputStream(bytes))) {
+            for ( MailData mail : mails ) {
+                YamlConfiguration config = new YamlConfiguration();
+                mail.saveToConfigSection(config);
+                byte[] data = config.saveToString().getBytes(StandardCharsets.UTF_8);
+                out.writeInt(mail.getIndex());
+                out.writeInt(data.length);
+                out.write(data);
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    private File getSegmentFile(int number) {
+        return new File(folder, String.format("%08d", number) + SEGMENT_SUFFIX);
+    }
+
+    /**
+     * 圧縮されたブロックの位置
+     */
+    private static class BlockPosition {
+
+        private int segment;
+        private long offset;
+        private int length;
+
+        /**
+         * コンストラクタ
+         * @param segment セグメント番号
+         * @param offset ブロックの先頭位置
+         * @param length ブロックの長さ
+         */
+        private BlockPosition(int segment, long offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        /**
+         * ブロックを読み込む
+         * @param file セグメントファイル
+         * @return 圧縮されたブロック
+         * @throws IOException
+         */
+        private byte[] read(File file) throws IOException {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+                raf.seek(offset);
+                byte[] block = new byte[length];
+                raf.readFully(block);
+                return block;
+            }
+        }
+    }
+}
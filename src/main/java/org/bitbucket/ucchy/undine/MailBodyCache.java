@@ -0,0 +1,92 @@
+/*
+ * @author     ucchy
+ * @license    LGPLv3
+ * @copyright  Copyright ucchy 2015
+ */
+package org.bitbucket.ucchy.undine;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * 本文（メッセージ、添付アイテム、引き換えアイテム、送信地点）がロードされているメールのキャッシュ。
+ * 起動時にはメールのヘッダー部分だけがロードされ、本文は必要になった時にストレージからロードされる。
+ * キャッシュの上限を超えたら、最も長く参照されていないメールの本文から破棄する。
+ * 書き込みが終わっていない変更がある本文は破棄されず、書き込みが終わった時に登録し直される。
+ * @author ucchy
+ */
+class MailBodyCache {
+
+    private MailStorage storage;
+    private int maxSize;
+    private LinkedHashMap<Integer, MailData> loaded;
+
+    /**
+     * コンストラクタ
+     * @param storage 本文をロードするストレージ
+     * @param maxSize 本文を保持するメールの最大数
+     */
+    MailBodyCache(MailStorage storage, int maxSize) {
+        this.storage = storage;
+        this.maxSize = maxSize;
+        this.loaded = new LinkedHashMap<Integer, MailData>(16, 0.75f, true);
+    }
+
+    /**
+     * 指定されたメールの本文をロードする。既にロードされている場合は、最近参照されたものとして扱う。
+     * ストレージの読み込みと本文の破棄は、キャッシュのロックの外で行う。
+     * @param mail メール
+     * @return メールの本文
+     * @throws IllegalStateException 本文をストレージから読めなかった場合
+     */
+    MailData.Body load(MailData mail) {
+
+        MailData.Body body = mail.getLoadedBody();
+        if ( body == null ) {
+            MailData full = storage.loadMail(mail.getIndex());
+            if ( full == null ) {
+                // 空の本文で補うと、次に保存された時に本文が失われるので、エラーにする
+                throw new IllegalStateException(
+                        "Could not load the body of mail " + mail.getIndex() + ".");
+            }
+            body = mail.setBody(full);
+        }
+
+        ArrayList<MailData> evicted = new ArrayList<MailData>();
+        synchronized (this) {
+            loaded.put(mail.getIndex(), mail);
+            Iterator<MailData> it = loaded.values().iterator();
+            while ( loaded.size() > maxSize && it.hasNext() ) {
+                MailData eldest = it.next();
+                if ( eldest == mail ) break;
+                it.remove();
+                evicted.add(eldest);
+            }
+        }
+
+        for ( MailData eldest : evicted ) {
+            eldest.unloadBody();
+        }
+        return body;
+    }
+
+    /**
+     * 本文がロードされた状態のメールを、キャッシュに登録する（新しく送信されたメールなど）。
+     * @param mail メール
+     */
+    void add(MailData mail) {
+        mail.setBodyCache(this);
+        if ( mail.isBodyLoaded() ) {
+            load(mail);
+        }
+    }
+
+    /**
+     * 指定されたメールを、キャッシュから除去する
+     * @param mail メール
+     */
+    synchronized void remove(MailData mail) {
+        loaded.remove(mail.getIndex());
+    }
+}
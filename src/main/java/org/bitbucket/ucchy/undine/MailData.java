@@ -7,10 +7,14 @@ package org.bitbucket.ucchy.undine;
 
 import java.io.File;
 import java.io.IOException;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 
 import org.bitbucket.ucchy.undine.group.GroupData;
 import org.bitbucket.ucchy.undine.group.GroupManager;
@@ -36,27 +40,47 @@ public class MailData implements Comparable<MailData>, Cloneable {
     public static final int MESSAGE_MAX_SIZE = 15;
     private static final int SUMMARY_MAX_SIZE = 45;
 
+    /** 統合宛先がこの人数以上のメールは、統合宛先とフラグを通し番号のビット列で保持する */
+    private static final int BITSET_RECIPIENTS_MIN = 100;
+
     // 編集中に設定される属性
     private List<MailSender> to;
     private List<String> toGroups;
     private MailSender from;
-    private List<String> message;
-    private List<ItemStack> attachments;
     private double costMoney;
-    private ItemStack costItem;
 
     // 送信後に設定される属性
     private int index;
+    // 宛先の多いメールでは、toTotalはnullになり、toTotalSetだけをビット列で保持する
     private List<MailSender> toTotal;
-    private List<MailSender> readFlags;
-    private List<MailSender> trashFlags;
-    private List<ItemStack> attachmentsOriginal;
+    private Set<MailSender> toTotalSet;
+    // 非同期タスクからも参照されるので、変更時は新しいセットに差し替える。
+    // 保存時の順序が変わらないように、追加順を保持するセットを使う。
+    private volatile Set<MailSender> readFlags;
+    private volatile Set<MailSender> trashFlags;
     private boolean isAttachmentsOpened;
     private boolean isAttachmentsCancelled;
     private boolean isAttachmentsRefused;
     private String attachmentsRefusedReason;
     private Date date;
-    private Location location;
+
+    // このメールを登録している索引
+    private MailRecipientIndex recipientIndex;
+
+    // 本文（メッセージ、添付アイテム、引き換えアイテム、送信地点）の遅延ロード用。
+    // 本文はまとめて差し替え、ロードされていない間はnullになる。
+    // 本文を変更するたびにbodyVersionを進め、書き込みが終わった版をsavedBodyVersionに記録する。
+    // 書き込まれていない変更がある本文は、キャッシュから破棄されない。
+    private volatile Body body;
+    private String messageHead;
+    private int attachmentsCount;
+    private MailBodyCache bodyCache;
+    private volatile boolean isBodyPinned;
+    private int bodyVersion;
+    private int savedBodyVersion;
+
+    // 一覧表示用のサマリーのキャッシュ（送信済みのメールのみ）
+    private volatile Summaries summaries;
 
     /**
      * コンストラクタ
@@ -73,7 +97,7 @@ public class MailData implements Comparable<MailData>, Cloneable {
      */
     public MailData(List<MailSender> to, MailSender from, String message) {
         this(to, from, new ArrayList<String>());
-        this.message.add(message);
+        this.body.message.add(message);
     }
 
     /**
@@ -129,15 +153,21 @@ public class MailData implements Comparable<MailData>, Cloneable {
         this.to = to;
         this.toGroups = toGroup;
         this.from = from;
-        this.message = message;
-        this.attachments = attachments;
         this.costMoney = costMoney;
-        this.costItem = costItem;
-        this.readFlags = new ArrayList<MailSender>();
-        this.trashFlags = new ArrayList<MailSender>();
+        this.readFlags = Collections.emptySet();
+        this.trashFlags = Collections.emptySet();
         this.isAttachmentsOpened = false;
         this.isAttachmentsCancelled = false;
         this.isAttachmentsRefused = false;
+
+        Body body = new Body();
+        body.message = message;
+        body.attachments = attachments;
+        body.costItem = costItem;
+        this.body = body;
+
+        // 新しく作成したメールの本文は、まだ書き込まれていない
+        this.bodyVersion = 1;
     }
 
     /**
@@ -161,6 +191,8 @@ public class MailData implements Comparable<MailData>, Cloneable {
      */
     protected void saveToConfigSection(ConfigurationSection section) {
 
+        Body body = loadBody();
+
         ArrayList<String> toList = new ArrayList<String>();
         for ( MailSender t : to ) {
             toList.add(t.toString());
@@ -169,7 +201,9 @@ public class MailData implements Comparable<MailData>, Cloneable {
 
         section.set("toGroups", toGroups);
 
-        if ( toTotal != null ) {
+        if ( toTotalSet instanceof MailSenderBitSet ) {
+            section.set("toTotalBits", ((MailSenderBitSet)toTotalSet).encode());
+        } else if ( toTotal != null ) {
             ArrayList<String> toTotalList = new ArrayList<String>();
             for ( MailSender t : toTotal ) {
                 toTotalList.add(t.toString());
@@ -178,12 +212,12 @@ public class MailData implements Comparable<MailData>, Cloneable {
         }
 
         section.set("from", from.toString());
-        section.set("message", message);
+        section.set("message", body.message);
 
-        if ( attachments != null ) {
+        if ( body.attachments != null ) {
             ConfigurationSection sub = section.createSection("attachments");
             int i = 1;
-            for ( ItemStack item : attachments ) {
+            for ( ItemStack item : body.attachments ) {
                 ConfigurationSection subsub = sub.createSection("attachment" + i++);
                 ItemConfigParser.setItemToSection(subsub, item);
             }
@@ -191,29 +225,20 @@ public class MailData implements Comparable<MailData>, Cloneable {
 
         section.set("costMoney", costMoney);
 
-        if ( costItem != null ) {
+        if ( body.costItem != null ) {
             ConfigurationSection sub = section.createSection("costItem");
-            ItemConfigParser.setItemToSection(sub, costItem);
+            ItemConfigParser.setItemToSection(sub, body.costItem);
         }
 
         section.set("index", index);
 
-        ArrayList<String> flagList = new ArrayList<String>();
-        for ( MailSender t : readFlags ) {
-            flagList.add(t.toString());
-        }
-        section.set("readFlags", flagList);
-
-        ArrayList<String> trashList = new ArrayList<String>();
-        for ( MailSender t : trashFlags ) {
-            trashList.add(t.toString());
-        }
-        section.set("trashFlags", trashList);
+        saveFlags(section, "readFlags", readFlags);
+        saveFlags(section, "trashFlags", trashFlags);
 
-        if ( attachmentsOriginal != null ) {
+        if ( body.attachmentsOriginal != null ) {
             ConfigurationSection sub = section.createSection("attachmentsOriginal");
             int i = 1;
-            for ( ItemStack item : attachmentsOriginal ) {
+            for ( ItemStack item : body.attachmentsOriginal ) {
                 ConfigurationSection subsub = sub.createSection("attachment" + i++);
                 ItemConfigParser.setItemToSection(subsub, item);
             }
@@ -223,16 +248,16 @@ public class MailData implements Comparable<MailData>, Cloneable {
             section.set("date", date.getTime());
         }
 
-        if ( location != null ) {
-            World world = location.getWorld();
+        if ( body.location != null ) {
+            World world = body.location.getWorld();
             if ( world != null ) {
                 ConfigurationSection locSec = section.createSection("location");
                 locSec.set("world", world.getName());
-                locSec.set("x", location.getX());
-                locSec.set("y", location.getY());
-                locSec.set("z", location.getZ());
-                locSec.set("yaw", location.getYaw());
-                locSec.set("pitch", location.getPitch());
+                locSec.set("x", body.location.getX());
+                locSec.set("y", body.location.getY());
+                locSec.set("z", body.location.getZ());
+                locSec.set("yaw", body.location.getYaw());
+                locSec.set("pitch", body.location.getPitch());
             }
         }
 
@@ -257,6 +282,29 @@ public class MailData implements Comparable<MailData>, Cloneable {
      * @return ロードされたMailData
      */
     protected static MailData loadFromConfigSection(ConfigurationSection section) {
+        MailData data = loadHeaderFromConfigSection(section);
+        data.loadBodyFromConfigSection(section);
+        return data;
+    }
+
+    /**
+     * 指定されたファイルから、ヘッダー部分だけをロードする
+     * @param file ファイル
+     * @return ロードされたMailData
+     */
+    protected static MailData loadHeader(File file) {
+        YamlConfiguration config = YamlConfiguration.loadConfiguration(file);
+        return loadHeaderFromConfigSection(config);
+    }
+
+    /**
+     * 指定されたコンフィグセクションから、ヘッダー部分だけをロードする。
+     * メッセージ、添付アイテム、引き換えアイテム、送信地点は、
+     * 必要になった時にMailBodyCacheを介してロードされる。
+     * @param section コンフィグセクション
+     * @return ロードされたMailData
+     */
+    protected static MailData loadHeaderFromConfigSection(ConfigurationSection section) {
 
         MailData data = new MailData();
 
@@ -270,72 +318,94 @@ public class MailData implements Comparable<MailData>, Cloneable {
 
         data.toGroups = section.getStringList("toGroups");
 
-        if ( section.contains("toTotal") ) {
-            data.toTotal = new ArrayList<MailSender>();
+        if ( section.contains("toTotalBits") ) {
+            data.toTotalSet = MailSenderBitSet.decode(
+                    MailSenderOrdinals.getInstance(), section.getString("toTotalBits"));
+        } else if ( section.contains("toTotal") ) {
+            ArrayList<MailSender> toTotal = new ArrayList<MailSender>();
             for ( String t : section.getStringList("toTotal") ) {
                 MailSender sender = MailSender.getMailSenderFromString(t);
                 if ( sender != null ) {
-                    data.toTotal.add(sender);
+                    toTotal.add(sender);
                 }
             }
+            data.setToTotal(toTotal);
         }
 
         data.from = MailSender.getMailSenderFromString(section.getString("from"));
-        data.message = section.getStringList("message");
+
+        List<String> message = section.getStringList("message");
+        data.messageHead = (message.size() > 0) ? message.get(0) : "";
 
         ConfigurationSection attachmentsSec = section.getConfigurationSection("attachments");
-        if ( attachmentsSec != null ) {
-            data.attachments = new ArrayList<ItemStack>();
+        data.attachmentsCount = (attachmentsSec != null) ? attachmentsSec.getKeys(false).size() : 0;
+
+        data.costMoney = section.getInt("costMoney", 0);
 
+        data.index = section.getInt("index");
+
+        boolean bitset = data.toTotalSet instanceof MailSenderBitSet;
+        data.readFlags = loadFlags(section, "readFlags", bitset);
+        data.trashFlags = loadFlags(section, "trashFlags", bitset);
+
+        if ( section.contains("date") ) {
+            data.date = new Date(section.getLong("date"));
+        }
+
+        data.isAttachmentsCancelled = section.getBoolean("isAttachmentsCancelled", false);
+        data.isAttachmentsRefused = section.getBoolean("isAttachmentsRefused", false);
+        data.attachmentsRefusedReason = section.getString("attachmentsRefusedReason");
+
+        data.body = null;
+        data.bodyVersion = 0;
+
+        return data;
+    }
+
+    /**
+     * 指定されたコンフィグセクションから、メッセージ、添付アイテム、引き換えアイテム、
+     * 送信地点をロードする
+     * @param section コンフィグセクション
+     */
+    private void loadBodyFromConfigSection(ConfigurationSection section) {
+
+        Body body = new Body();
+
+        body.message = section.getStringList("message");
+
+        body.attachments = new ArrayList<ItemStack>();
+        ConfigurationSection attachmentsSec = section.getConfigurationSection("attachments");
+        if ( attachmentsSec != null ) {
             for ( String name : attachmentsSec.getKeys(false) ) {
                 ConfigurationSection sub = section.getConfigurationSection("attachments." + name);
                 try {
                     ItemStack item = ItemConfigParser.getItemFromSection(sub);
-                    if (item != null) data.attachments.add(item);
+                    if (item != null) body.attachments.add(item);
                 } catch (ItemConfigParseException e) {
                     e.printStackTrace();
                 }
             }
         }
 
-        data.costMoney = section.getInt("costMoney", 0);
         if ( section.contains("costItem") ) {
             try {
-                data.costItem = ItemConfigParser.getItemFromSection(
+                body.costItem = ItemConfigParser.getItemFromSection(
                         section.getConfigurationSection("costItem"));
             } catch (ItemConfigParseException e) {
                 e.printStackTrace();
             }
         }
 
-        data.index = section.getInt("index");
-
-        data.readFlags = new ArrayList<MailSender>();
-        for ( String t : section.getStringList("readFlags") ) {
-            MailSender sender = MailSender.getMailSenderFromString(t);
-            if ( sender != null ) {
-                data.readFlags.add(sender);
-            }
-        }
-
-        data.trashFlags = new ArrayList<MailSender>();
-        for ( String t : section.getStringList("trashFlags") ) {
-            MailSender sender = MailSender.getMailSenderFromString(t);
-            if ( sender != null ) {
-                data.trashFlags.add(sender);
-            }
-        }
-
         ConfigurationSection attachmentsOrgSec = section.getConfigurationSection("attachmentsOriginal");
         if ( attachmentsOrgSec != null ) {
-            data.attachmentsOriginal = new ArrayList<ItemStack>();
+            body.attachmentsOriginal = new ArrayList<ItemStack>();
 
             for ( String name : attachmentsOrgSec.getKeys(false) ) {
                 ConfigurationSection sub = attachmentsOrgSec.getConfigurationSection(name);
                 if ( sub != null ) {
                     try {
                         ItemStack item = ItemConfigParser.getItemFromSection(sub);
-                        data.attachmentsOriginal.add(item);
+                        body.attachmentsOriginal.add(item);
                     } catch (ItemConfigParseException e) {
                         e.printStackTrace();
                     }
@@ -343,10 +413,6 @@ public class MailData implements Comparable<MailData>, Cloneable {
             }
         }
 
-        if ( section.contains("date") ) {
-            data.date = new Date(section.getLong("date"));
-        }
-
         ConfigurationSection locSec = section.getConfigurationSection("location");
         if ( locSec != null ) {
             String worldName = locSec.getString("world");
@@ -358,16 +424,12 @@ public class MailData implements Comparable<MailData>, Cloneable {
                     double z = locSec.getDouble("z");
                     double yaw = locSec.getDouble("yaw");
                     double pitch = locSec.getDouble("pitch");
-                    data.location = new Location(world, x, y, z, (float)yaw, (float)pitch);
+                    body.location = new Location(world, x, y, z, (float)yaw, (float)pitch);
                 }
             }
         }
 
-        data.isAttachmentsCancelled = section.getBoolean("isAttachmentsCancelled", false);
-        data.isAttachmentsRefused = section.getBoolean("isAttachmentsRefused", false);
-        data.attachmentsRefusedReason = section.getString("attachmentsRefusedReason");
-
-        return data;
+        this.body = body;
     }
 
     /**
@@ -375,9 +437,10 @@ public class MailData implements Comparable<MailData>, Cloneable {
      * @see java.lang.Object#clone()
      */
     public MailData clone() {
+        Body body = loadBody();
         return new MailData(
-                new ArrayList<MailSender>(to), from, message,
-                new ArrayList<ItemStack>(attachments), costMoney, costItem,
+                new ArrayList<MailSender>(to), from, body.message,
+                new ArrayList<ItemStack>(body.attachments), costMoney, body.costItem,
                 toGroups);
     }
 
@@ -470,7 +533,20 @@ public class MailData implements Comparable<MailData>, Cloneable {
      * @return メッセージ
      */
     public List<String> getMessage() {
-        return message;
+        return loadBody().message;
+    }
+
+    /**
+     * このメールのメッセージの1行目を取得します。
+     * メッセージ全体をロードせずに取得できるので、一覧表示などではこちらを使用してください。
+     * @return メッセージの1行目、メッセージが無い場合は空文字列
+     */
+    public String getMessageHead() {
+        Body body = this.body;
+        if ( body != null ) {
+            return (body.message.size() > 0) ? body.message.get(0) : "";
+        }
+        return messageHead;
     }
 
     /**
@@ -478,7 +554,7 @@ public class MailData implements Comparable<MailData>, Cloneable {
      * @param message メッセージ
      */
     public void setMessage(List<String> message) {
-        this.message = message;
+        editBody().message = message;
     }
 
     /**
@@ -487,10 +563,11 @@ public class MailData implements Comparable<MailData>, Cloneable {
      * @param message メッセージ
      */
     public void setMessage(int line, String message) {
-        while ( this.message.size() <= line ) {
-            this.message.add("");
+        Body body = editBody();
+        while ( body.message.size() <= line ) {
+            body.message.add("");
         }
-        this.message.set(line, message);
+        body.message.set(line, message);
     }
 
     /**
@@ -498,9 +575,10 @@ public class MailData implements Comparable<MailData>, Cloneable {
      * @param message メッセージ
      */
     public void addMessage(String message) {
+        Body body = editBody();
         String[] lines = message.split("\n");
         for ( String line : lines ) {
-            this.message.add(line);
+            body.message.add(line);
         }
     }
 
@@ -509,8 +587,9 @@ public class MailData implements Comparable<MailData>, Cloneable {
      * @param line 宛先番号（0から始まることに注意）
      */
     public void deleteMessage(int line) {
-        if ( this.message.size() > line && line >= 0 ) {
-            this.message.remove(line);
+        Body body = editBody();
+        if ( body.message.size() > line && line >= 0 ) {
+            body.message.remove(line);
         }
     }
 
@@ -589,23 +668,63 @@ public class MailData implements Comparable<MailData>, Cloneable {
      * @param total 統合宛先
      */
     protected void setToTotal(List<MailSender> total) {
+
+        if ( total != null && total.size() >= BITSET_RECIPIENTS_MIN ) {
+            // 宛先が多いので、フラグも含めてビット列で保持する。
+            // 通し番号の表が保存できない場合は、ハッシュセットのまま保持する。
+            MailSenderOrdinals ordinals = MailSenderOrdinals.getInstance();
+            try {
+                MailSenderBitSet totalSet = MailSenderBitSet.of(ordinals, total);
+                synchronized (this) {
+                    MailSenderBitSet reads = MailSenderBitSet.of(ordinals, readFlags);
+                    MailSenderBitSet trashes = MailSenderBitSet.of(ordinals, trashFlags);
+                    this.toTotal = null;
+                    this.toTotalSet = totalSet;
+                    this.readFlags = reads;
+                    this.trashFlags = trashes;
+                }
+                return;
+            } catch (IllegalStateException e) {
+                // ハッシュセットで保持する
+            }
+        }
+
         this.toTotal = total;
+        this.toTotalSet = (total != null) ? new HashSet<MailSender>(total) : null;
     }
 
     /**
      * 統合宛先（宛先＋宛先グループの和集合）を取得する。未送信メールの場合はnullになる。
+     * 宛先の多いメールでは、呼び出すたびに新しいリストが作成されるので、
+     * 受信者かどうかを調べるだけなら、isRecipientを使用してください。
      * @return 統合宛先
      */
     public List<MailSender> getToTotal() {
+        if ( toTotal == null && toTotalSet != null ) {
+            return new ArrayList<MailSender>(toTotalSet);
+        }
         return toTotal;
     }
 
+    /**
+     * このメールに添付されたアイテムの個数を取得します。
+     * 添付アイテムそのものをロードせずに取得できるので、一覧表示などではこちらを使用してください。
+     * @return 添付アイテムの個数
+     */
+    public int getAttachmentsCount() {
+        Body body = this.body;
+        if ( body != null ) {
+            return body.attachments.size();
+        }
+        return attachmentsCount;
+    }
+
     /**
      * このメールに添付されたアイテムを取得します。
      * @return 添付アイテム
      */
     public List<ItemStack> getAttachments() {
-        return attachments;
+        return loadBody().attachments;
     }
 
     /**
@@ -613,7 +732,7 @@ public class MailData implements Comparable<MailData>, Cloneable {
      * @param attachments 添付アイテム
      */
     public void setAttachments(List<ItemStack> attachments) {
-        this.attachments = attachments;
+        editBody().attachments = attachments;
     }
 
     /**
@@ -621,22 +740,44 @@ public class MailData implements Comparable<MailData>, Cloneable {
      * @param item アイテム
      */
     public void addAttachment(ItemStack item) {
-        this.attachments.add(item);
+        editBody().attachments.add(item);
     }
 
     /**
      * このメールを読んだ人のリストを取得します。
-     * @return 読んだ人のリスト
+     * 返されるリストは取得した時点の写しなので、変更してもメールには反映されません。
+     * 既読の設定はsetReadFlagで行ってください。
+     * @return 読んだ人のリスト（既読になった順）
      */
     public List<MailSender> getReadFlags() {
+        return new ArrayList<MailSender>(readFlags);
+    }
+
+    /**
+     * このメールを読んだ人のセットを取得します。
+     * 返されるセットは変更できません。既読の設定はsetReadFlagで行ってください。
+     * @return 読んだ人のセット（既読になった順）
+     */
+    public Set<MailSender> getReadFlagSet() {
         return readFlags;
     }
 
     /**
      * このメールに削除フラグを付けた人のリストを取得します。
-     * @return 削除フラグをつけている人のリスト
+     * 返されるリストは取得した時点の写しなので、変更してもメールには反映されません。
+     * 削除フラグの設定はsetTrashFlagで行ってください。
+     * @return 削除フラグをつけている人のリスト（フラグを付けた順）
      */
     public List<MailSender> getTrashFlags() {
+        return new ArrayList<MailSender>(trashFlags);
+    }
+
+    /**
+     * このメールに削除フラグを付けた人のセットを取得します。
+     * 返されるセットは変更できません。削除フラグの設定はsetTrashFlagで行ってください。
+     * @return 削除フラグをつけている人のセット（フラグを付けた順）
+     */
+    public Set<MailSender> getTrashFlagSet() {
         return trashFlags;
     }
 
@@ -661,7 +802,7 @@ public class MailData implements Comparable<MailData>, Cloneable {
      * @return 引き換えアイテム
      */
     public ItemStack getCostItem() {
-        return costItem;
+        return loadBody().costItem;
     }
 
     /**
@@ -669,7 +810,7 @@ public class MailData implements Comparable<MailData>, Cloneable {
      * @param feeItem 引き換えアイテム
      */
     public void setCostItem(ItemStack feeItem) {
-        this.costItem = feeItem;
+        editBody().costItem = feeItem;
     }
 
     /**
@@ -693,7 +834,7 @@ public class MailData implements Comparable<MailData>, Cloneable {
      * @return 送信地点
      */
     public Location getLocation() {
-        return location;
+        return loadBody().location;
     }
 
     /**
@@ -701,7 +842,7 @@ public class MailData implements Comparable<MailData>, Cloneable {
      * @param location 送信地点
      */
     public void setLocation(Location location) {
-        this.location = location;
+        editBody().location = location;
     }
 
     /**
@@ -709,7 +850,7 @@ public class MailData implements Comparable<MailData>, Cloneable {
      * @return メール送信時の添付アイテム
      */
     public List<ItemStack> getAttachmentsOriginal() {
-        return attachmentsOriginal;
+        return loadBody().attachmentsOriginal;
     }
 
     /**
@@ -717,7 +858,8 @@ public class MailData implements Comparable<MailData>, Cloneable {
      * （メール送信時に自動で行われます）。
      */
     protected void makeAttachmentsOriginal() {
-        attachmentsOriginal = new ArrayList<ItemStack>(attachments);
+        Body body = editBody();
+        body.attachmentsOriginal = new ArrayList<ItemStack>(body.attachments);
     }
 
     /**
@@ -734,8 +876,13 @@ public class MailData implements Comparable<MailData>, Cloneable {
      * @param sender sender
      */
     public void setReadFlag(MailSender sender) {
-        if ( !readFlags.contains(sender) ) {
-            readFlags.add(sender);
+        if ( readFlags.contains(sender) ) return;
+        synchronized (this) {
+            if ( readFlags.contains(sender) ) return;
+            readFlags = copyFlags(readFlags, sender, true);
+        }
+        if ( recipientIndex != null ) {
+            recipientIndex.onReadFlagChanged(this, sender);
         }
     }
 
@@ -753,8 +900,13 @@ public class MailData implements Comparable<MailData>, Cloneable {
      * @param sender
      */
     public void setTrashFlag(MailSender sender) {
-        if ( !trashFlags.contains(sender) ) {
-            trashFlags.add(sender);
+        if ( trashFlags.contains(sender) ) return;
+        synchronized (this) {
+            if ( trashFlags.contains(sender) ) return;
+            trashFlags = copyFlags(trashFlags, sender, true);
+        }
+        if ( recipientIndex != null ) {
+            recipientIndex.onTrashFlagChanged(this, sender, true);
         }
     }
 
@@ -763,8 +915,136 @@ public class MailData implements Comparable<MailData>, Cloneable {
      * @param sender
      */
     public void removeTrashFlag(MailSender sender) {
-        if ( trashFlags.contains(sender) ) {
-            trashFlags.remove(sender);
+        if ( !trashFlags.contains(sender) ) return;
+        synchronized (this) {
+            if ( !trashFlags.contains(sender) ) return;
+            trashFlags = copyFlags(trashFlags, sender, false);
+        }
+        if ( recipientIndex != null ) {
+            recipientIndex.onTrashFlagChanged(this, sender, false);
+        }
+    }
+
+    /**
+     * このメールを登録している索引を設定する（MailManagerが管理する）。
+     * @param recipientIndex 索引
+     */
+    void setRecipientIndex(MailRecipientIndex recipientIndex) {
+        this.recipientIndex = recipientIndex;
+    }
+
+    /**
+     * 本文をロードするためのキャッシュを設定する（MailManagerが管理する）。
+     * @param bodyCache キャッシュ
+     */
+    void setBodyCache(MailBodyCache bodyCache) {
+        this.bodyCache = bodyCache;
+    }
+
+    /**
+     * 本文がロードされているかどうかを返す
+     * @return 本文がロードされているかどうか
+     */
+    boolean isBodyLoaded() {
+        return body != null;
+    }
+
+    /**
+     * ロードされている本文を取得する（MailBodyCacheから呼び出される）。
+     * @return 本文、ロードされていない場合はnull
+     */
+    Body getLoadedBody() {
+        return body;
+    }
+
+    /**
+     * 指定されたメールの本文を、このメールの本文にする（MailBodyCacheから呼び出される）。
+     * 他のスレッドが先にロードしていた場合は、そちらを使う。
+     * @param full 本文を含めてロードされたメール
+     * @return このメールの本文
+     */
+    synchronized Body setBody(MailData full) {
+        if ( body == null ) {
+            body = full.body;
+        }
+        return body;
+    }
+
+    /**
+     * 本文を破棄して、ヘッダーだけの状態に戻す（MailBodyCacheから呼び出される）。
+     * 書き込みが終わっていない変更がある本文と、固定されている本文は破棄しない。
+     * @return 破棄したかどうか（ロードされていなかった場合もtrue）
+     */
+    synchronized boolean unloadBody() {
+        Body body = this.body;
+        if ( body == null ) return true;
+        if ( isBodyPinned || bodyVersion != savedBodyVersion ) return false;
+        messageHead = (body.message.size() > 0) ? body.message.get(0) : "";
+        attachmentsCount = body.attachments.size();
+        this.body = null;
+        return true;
+    }
+
+    /**
+     * 本文を破棄しないように固定する（MailSaveQueueから呼び出される）。
+     * 固定が解除された時は、最近参照されたものとしてキャッシュに登録し直す。
+     * @param pinned 固定するかどうか
+     */
+    void setBodyPinned(boolean pinned) {
+        isBodyPinned = pinned;
+        if ( !pinned && body != null && bodyCache != null ) {
+            bodyCache.load(this);
+        }
+    }
+
+    /**
+     * 本文の版を取得する（MailSaveQueueから、書き込みの前に呼び出される）。
+     * @return 本文の版
+     */
+    synchronized int getBodyVersion() {
+        return bodyVersion;
+    }
+
+    /**
+     * 指定された版までの本文の書き込みが終わったことを記録する（MailSaveQueueから呼び出される）。
+     * @param version 書き込む前に取得した、本文の版
+     */
+    synchronized void setBodySaved(int version) {
+        if ( savedBodyVersion < version ) {
+            savedBodyVersion = version;
+        }
+    }
+
+    /**
+     * 本文を取得する。ロードされていなければ、ロードする。
+     * @return 本文
+     * @throws IllegalStateException 本文をロードできなかった場合
+     */
+    private Body loadBody() {
+        Body body = this.body;
+        if ( body != null ) return body;
+        if ( bodyCache == null ) {
+            throw new IllegalStateException("The body of mail " + index + " is not loaded.");
+        }
+        return bodyCache.load(this);
+    }
+
+    /**
+     * 変更するために本文を取得する。
+     * 版を進めておくので、取得した本文は、書き込みが終わるまでキャッシュから破棄されない。
+     * @return 本文
+     * @throws IllegalStateException 本文をロードできなかった場合
+     */
+    private Body editBody() {
+        while ( true ) {
+            Body body = loadBody();
+            synchronized (this) {
+                // ロードしてから版を進めるまでの間に破棄された場合は、ロードし直す
+                if ( this.body == body ) {
+                    bodyVersion++;
+                    return body;
+                }
+            }
         }
     }
 
@@ -776,7 +1056,7 @@ public class MailData implements Comparable<MailData>, Cloneable {
     public boolean isRelatedWith(MailSender sender) {
         if ( isAllMail() ) return true;
         if ( from.equals(sender) ) return true;
-        if ( toTotal != null ) return toTotal.contains(sender);
+        if ( toTotalSet != null ) return toTotalSet.contains(sender);
         return to.contains(sender);
     }
 
@@ -787,7 +1067,7 @@ public class MailData implements Comparable<MailData>, Cloneable {
      */
     public boolean isRecipient(MailSender sender) {
         if ( isAllMail() ) return true;
-        if ( toTotal != null ) return toTotal.contains(sender);
+        if ( toTotalSet != null ) return toTotalSet.contains(sender);
         return to.contains(sender);
     }
 
@@ -830,8 +1110,9 @@ public class MailData implements Comparable<MailData>, Cloneable {
      * 逆に送信者がボックスを開くことができるようになる。
      */
     public void cancelAttachments() {
+        Body body = editBody();
         this.isAttachmentsCancelled = true;
-        this.costItem = null;
+        body.costItem = null;
         this.costMoney = 0;
     }
 
@@ -858,13 +1139,14 @@ public class MailData implements Comparable<MailData>, Cloneable {
      * @param attachmentsRefusedReason 拒否理由
      */
     public void refuseAttachments(String attachmentsRefusedReason) {
+        Body body = editBody();
         this.isAttachmentsCancelled = true; // キャンセルフラグも立てる
         this.isAttachmentsRefused = true;
         if ( attachmentsRefusedReason != null
                 && attachmentsRefusedReason.length() > 0 ) {
             this.attachmentsRefusedReason = attachmentsRefusedReason;
         }
-        this.costItem = null;
+        body.costItem = null;
         this.costMoney = 0;
     }
 
@@ -897,15 +1179,19 @@ public class MailData implements Comparable<MailData>, Cloneable {
      */
     protected String getInboxSummary() {
 
-        String fdate = getFormattedDate(date);
-        String summary = String.format("%s (%s) %s",
-                from.getName(), fdate, Utility.removeColorCode(message.get(0)));
-
-        // 長すぎる場合は切る
-        if ( summary.length() > SUMMARY_MAX_SIZE + 2 ) {
-            summary = summary.substring(0, SUMMARY_MAX_SIZE) + "..";
+        // 送信済みのメールは内容が変わらないので、言語リソースがリロードされるまで使い回す
+        Summaries cache = getSummaries();
+        if ( cache != null && cache.inbox != null ) {
+            return cache.inbox;
         }
 
+        String summary = from.getName() + " (" + Messages.formatDate(date) + ") "
+                + Utility.removeColorCode(getMessageHead());
+        summary = trimSummary(summary);
+
+        if ( cache != null ) {
+            cache.inbox = summary;
+        }
         return summary;
     }
 
@@ -916,19 +1202,49 @@ public class MailData implements Comparable<MailData>, Cloneable {
      */
     protected String getOutboxSummary() {
 
-        String fdate = getFormattedDate(date);
+        Summaries cache = getSummaries();
+        if ( cache != null && cache.outbox != null ) {
+            return cache.outbox;
+        }
+
         String todesc = joinToAndGroup();
         if ( todesc.length() > 15 ) { // 長すぎる場合は切る
             todesc = todesc.substring(0, 15);
         }
-        String summary = String.format("%s (%s) %s",
-                todesc, fdate, Utility.removeColorCode(message.get(0)));
+        String summary = todesc + " (" + Messages.formatDate(date) + ") "
+                + Utility.removeColorCode(getMessageHead());
+        summary = trimSummary(summary);
 
-        // 長すぎる場合は切る
-        if ( summary.length() > SUMMARY_MAX_SIZE + 2 ) {
-            summary = summary.substring(0, SUMMARY_MAX_SIZE) + "..";
+        if ( cache != null ) {
+            cache.outbox = summary;
+        }
+        return summary;
+    }
+
+    /**
+     * サマリーのキャッシュを取得する。言語リソースがリロードされていたら、新しく作り直す。
+     * @return キャッシュ、編集中のメールの場合はnull
+     */
+    private Summaries getSummaries() {
+        if ( isEditmode() ) return null;
+        int generation = Messages.getGeneration();
+        Summaries cache = summaries;
+        if ( cache == null || cache.generation != generation ) {
+            cache = new Summaries(generation);
+            summaries = cache;
         }
+        return cache;
+    }
 
+    /**
+     * 長すぎるサマリーを切る
+     * @param summary サマリー
+     * @return 切ったサマリー
+     */
+    private static String trimSummary(String summary) {
+        if ( summary.length() > SUMMARY_MAX_SIZE + 2 ) {
+            return summary.substring(0, SUMMARY_MAX_SIZE) + "..";
+        }
         return summary;
     }
 
@@ -954,54 +1270,195 @@ public class MailData implements Comparable<MailData>, Cloneable {
         return buffer.toString();
     }
 
-    /**
-     * 言語リソース設定に従ってフォーマットされた日時の文字列を取得します。
-     * @param date フォーマットする日時
-     * @return フォーマットされた文字列
-     */
-    private String getFormattedDate(Date date) {
-        return new SimpleDateFormat(Messages.get("DateFormat")).format(date);
-    }
-
     /**
      * データのアップグレードを行う。
      * @return アップグレードを実行したかどうか
      */
     protected boolean upgrade() {
         boolean upgraded = false;
-        for ( MailSender ms : to ) {
-            if ( ms instanceof MailSenderPlayer ) {
-                if ( ((MailSenderPlayer) ms).upgrade() ) {
-                    upgraded = true;
-                }
-            }
+
+        // 宛先の識別子は変わらないので、アップグレード後のインスタンスに差し替える
+        List<MailSender> toUpgraded = upgradeSenders(to);
+        if ( toUpgraded != null ) {
+            to = toUpgraded;
+            upgraded = true;
         }
         if ( from instanceof MailSenderPlayer ) {
-            if ( ((MailSenderPlayer) from).upgrade() ) {
+            MailSenderPlayer fromUpgraded = ((MailSenderPlayer) from).getUpgraded();
+            if ( fromUpgraded != null ) {
+                from = fromUpgraded;
                 upgraded = true;
             }
         }
-        for ( MailSender ms : toTotal ) {
-            if ( ms instanceof MailSenderPlayer ) {
-                if ( ((MailSenderPlayer) ms).upgrade() ) {
-                    upgraded = true;
-                }
+
+        // 統合宛先のセットは、アップグレードした宛先で作り直す
+        List<MailSender> totalUpgraded = null;
+        if ( toTotalSet instanceof MailSenderBitSet ) {
+            totalUpgraded = ((MailSenderBitSet)toTotalSet).upgrade();
+        } else if ( toTotal != null ) {
+            totalUpgraded = upgradeSenders(toTotal);
+        }
+        if ( totalUpgraded != null ) {
+            setToTotal(totalUpgraded);
+            upgraded = true;
+        }
+
+        synchronized (this) {
+            Set<MailSender> readUpgraded = upgradeFlags(readFlags);
+            Set<MailSender> trashUpgraded = upgradeFlags(trashFlags);
+            if ( readUpgraded != null ) {
+                readFlags = readUpgraded;
+                upgraded = true;
+            }
+            if ( trashUpgraded != null ) {
+                trashFlags = trashUpgraded;
+                upgraded = true;
             }
         }
-        for ( MailSender ms : readFlags ) {
+        return upgraded;
+    }
+
+    /**
+     * 宛先のリストをアップグレードする
+     * @param senders 宛先のリスト
+     * @return アップグレードした宛先で作り直したリスト、アップグレードが無かった場合はnull
+     */
+    private static List<MailSender> upgradeSenders(List<MailSender> senders) {
+        ArrayList<MailSender> result = new ArrayList<MailSender>(senders.size());
+        boolean upgraded = false;
+        for ( MailSender ms : senders ) {
             if ( ms instanceof MailSenderPlayer ) {
-                if ( ((MailSenderPlayer) ms).upgrade() ) {
+                MailSenderPlayer msUpgraded = ((MailSenderPlayer) ms).getUpgraded();
+                if ( msUpgraded != null ) {
+                    ms = msUpgraded;
                     upgraded = true;
                 }
             }
+            result.add(ms);
         }
-        for ( MailSender ms : trashFlags ) {
-            if ( ms instanceof MailSenderPlayer ) {
-                if ( ((MailSenderPlayer) ms).upgrade() ) {
-                    upgraded = true;
-                }
+        return upgraded ? result : null;
+    }
+
+    /**
+     * フラグのセットをアップグレードする
+     * @param flags フラグのセット
+     * @return アップグレードした宛先で作り直したセット、アップグレードが無かった場合はnull
+     */
+    private static Set<MailSender> upgradeFlags(Set<MailSender> flags) {
+        boolean bitset = flags instanceof MailSenderBitSet;
+        List<MailSender> upgraded = bitset ? ((MailSenderBitSet) flags).upgrade()
+                : upgradeSenders(new ArrayList<MailSender>(flags));
+        if ( upgraded == null ) return null;
+        return toFlagSet(upgraded, bitset);
+    }
+
+    /**
+     * フラグのセットを作成する
+     * @param senders 含める宛先
+     * @param bitset ビット列のセットにするかどうか
+     * @return フラグのセット、通し番号の表が保存できない場合はビット列にしない
+     */
+    private static Set<MailSender> toFlagSet(Collection<MailSender> senders, boolean bitset) {
+        if ( bitset ) {
+            try {
+                return MailSenderBitSet.of(MailSenderOrdinals.getInstance(), senders);
+            } catch (IllegalStateException e) {
+                // ハッシュセットで保持する
             }
         }
-        return upgraded;
+        return Collections.unmodifiableSet(new LinkedHashSet<MailSender>(senders));
+    }
+
+    /**
+     * フラグのセットを、コンフィグセクションに保存する
+     * @param section コンフィグセクション
+     * @param key キー
+     * @param flags フラグのセット
+     */
+    private static void saveFlags(ConfigurationSection section, String key, Set<MailSender> flags) {
+        if ( flags instanceof MailSenderBitSet ) {
+            section.set(key + "Bits", ((MailSenderBitSet)flags).encode());
+            return;
+        }
+        ArrayList<String> list = new ArrayList<String>();
+        for ( MailSender t : flags ) {
+            list.add(t.toString());
+        }
+        section.set(key, list);
+    }
+
+    /**
+     * コンフィグセクションから、フラグのセットをロードする
+     * @param section コンフィグセクション
+     * @param key キー
+     * @param bitset ビット列のセットにするかどうか
+     * @return フラグのセット
+     */
+    private static Set<MailSender> loadFlags(ConfigurationSection section, String key, boolean bitset) {
+
+        if ( section.contains(key + "Bits") ) {
+            return MailSenderBitSet.decode(
+                    MailSenderOrdinals.getInstance(), section.getString(key + "Bits"));
+        }
+
+        ArrayList<MailSender> flags = new ArrayList<MailSender>();
+        for ( String t : section.getStringList(key) ) {
+            MailSender sender = MailSender.getMailSenderFromString(t);
+            if ( sender != null ) {
+                flags.add(sender);
+            }
+        }
+        return toFlagSet(flags, bitset);
+    }
+
+    /**
+     * 指定されたsenderを追加または除去した、フラグのセットの複製を作成する
+     * @param flags 元のセット
+     * @param sender sender
+     * @param add 追加するならtrue、除去するならfalse
+     * @return 新しいセット
+     */
+    private static Set<MailSender> copyFlags(Set<MailSender> flags, MailSender sender, boolean add) {
+        if ( flags instanceof MailSenderBitSet ) {
+            try {
+                return ((MailSenderBitSet)flags).with(sender, add);
+            } catch (IllegalStateException e) {
+                // 通し番号の表が保存できないので、ハッシュセットに切り替える
+            }
+        }
+        LinkedHashSet<MailSender> copy = new LinkedHashSet<MailSender>(flags);
+        if ( add ) {
+            copy.add(sender);
+        } else {
+            copy.remove(sender);
+        }
+        return Collections.unmodifiableSet(copy);
+    }
+
+    /**
+     * 本文（メッセージ、添付アイテム、引き換えアイテム、送信地点）。
+     * まとめて差し替えるので、ロードされているかどうかと内容を、1回の参照で取得できる。
+     */
+    static class Body {
+
+        private List<String> message;
+        private List<ItemStack> attachments;
+        private List<ItemStack> attachmentsOriginal;
+        private ItemStack costItem;
+        private Location location;
+    }
+
+    /**
+     * 一覧表示用のサマリー。作成した時点の言語リソースの番号を記録しておく。
+     */
+    private static class Summaries {
+
+        private int generation;
+        private volatile String inbox;
+        private volatile String outbox;
+
+        private Summaries(int generation) {
+            this.generation = generation;
+        }
     }
 }
@@ -0,0 +1,99 @@
+/*
+ * @author     ucchy
+ * @license    LGPLv3
+ * @copyright  Copyright ucchy 2015
+ */
+package org.bitbucket.ucchy.undine;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * 送信日時の古い順に並べたメールの索引。
+ * 保存期間を過ぎたメールを、全メールを走査せずに取り出すためのもの。
+ * @author ucchy
+ */
+class MailExpiryIndex {
+
+    private ConcurrentSkipListMap<Key, MailData> mails;
+
+    /**
+     * コンストラクタ
+     */
+    MailExpiryIndex() {
+        mails = new ConcurrentSkipListMap<Key, MailData>();
+    }
+
+    /**
+     * 索引にメールを追加する。送信日時が無いメールは追加されない。
+     * @param mail メール
+     */
+    void add(MailData mail) {
+        if ( mail.getDate() != null ) {
+            mails.put(new Key(mail), mail);
+        }
+    }
+
+    /**
+     * 索引からメールを除去する
+     * @param mail メール
+     */
+    void remove(MailData mail) {
+        if ( mail.getDate() != null ) {
+            mails.remove(new Key(mail));
+        }
+    }
+
+    /**
+     * 指定された日時以前に送信されたメールを、索引から取り出す
+     * @param time 日時（ミリ秒）
+     * @return 取り出したメール、送信日時の古い順
+     */
+    List<MailData> pollExpired(long time) {
+
+        ArrayList<MailData> result = new ArrayList<MailData>();
+        for ( Key key : mails.headMap(new Key(time, Integer.MAX_VALUE), true).keySet() ) {
+            // 他のスレッドが先に除去していたら、含めない
+            MailData mail = mails.remove(key);
+            if ( mail != null ) {
+                result.add(mail);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 索引に含まれるメールの件数を返す
+     * @return 件数
+     */
+    int size() {
+        return mails.size();
+    }
+
+    /**
+     * 送信日時とインデクスの組。送信日時が同じメールは、インデクスの順に並ぶ。
+     */
+    private static class Key implements Comparable<Key> {
+
+        private long time;
+        private int index;
+
+        private Key(MailData mail) {
+            this(mail.getDate().getTime(), mail.getIndex());
+        }
+
+        private Key(long time, int index) {
+            this.time = time;
+            this.index = index;
+        }
+
+        @Override
+        public int compareTo(Key other) {
+            if ( time != other.time ) {
+                return time < other.time ? -1 : 1;
+            }
+            return index < other.index ? -1 : (index == other.index ? 0 : 1);
+        }
+    }
+}
@@ -6,15 +6,14 @@
 package org.bitbucket.ucchy.undine;
 
 import java.io.File;
-import java.io.FilenameFilter;
 import java.io.IOException;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.bitbucket.ucchy.undine.bridge.VaultEcoBridge;
 import org.bitbucket.ucchy.undine.command.GroupCommand;
@@ -55,10 +54,25 @@ public class MailManager {
     private static final int PAGE_SIZE = 10;
     private static final int MESSAGE_ADD_SIZE = 3;
 
-    private ArrayList<MailData> mails;
+    /** 本文をロードしたままにしておくメールの最大数 */
+    private static final int BODY_CACHE_SIZE = 200;
+
+    /** キャッシュされるメールボックスの種類 */
+    private static final String[] MAILBOX_VIEWS = {"inbox", "unread", "outbox", "related", "trash"};
+
+    // メールと索引は、非同期タスクからも参照・更新されるので、ロック無しで並行に扱える構造にしておく。
+    // リロード時は新しく作り直したものに差し替える。
+    private volatile ConcurrentSkipListMap<Integer, MailData> mails;
+    private volatile MailRecipientIndex recipientIndex;
+    private volatile MailExpiryIndex expiryIndex;
+    private MailStorage storage;
+    private MailSaveQueue saveQueue;
+    private MailArchive archive;
+    private volatile MailBodyCache bodyCache;
+    private MailboxViewCache mailboxViews;
     private HashMap<String, MailData> editmodeMails;
-    private int nextIndex;
-    private boolean isLoaded;
+    private AtomicInteger nextIndex;
+    private volatile boolean isLoaded;
 
     private UndineMailer parent;
 
@@ -67,12 +81,33 @@ public class MailManager {
      */
     public MailManager(UndineMailer parent) {
         this.parent = parent;
+
+        if ( parent.getDatabase() != null ) {
+            storage = new MailStorageSqlite(parent.getDatabase(), parent.getMailFolder());
+        } else if ( parent.getUndineConfig().getMailStorageType() == MailStorageType.JOURNAL ) {
+            storage = new MailStorageJournal(
+                    new File(parent.getDataFolder(), "journal"), parent.getMailFolder());
+        } else {
+            storage = new MailStorageYaml(parent.getMailFolder());
+        }
+        saveQueue = new MailSaveQueue(storage);
+        if ( parent.getUndineConfig().isEnableMailArchive() ) {
+            archive = new MailArchive(new File(parent.getDataFolder(), "archive"));
+        }
+        nextIndex = new AtomicInteger(1);
+        mailboxViews = new MailboxViewCache();
+
+        // 宛先の多いメールが参照する、宛先の通し番号の表を、メールより先にロードしておく
+        MailSenderOrdinals.getInstance().open(new File(parent.getDataFolder(), "recipients.txt"));
+
         restoreEditmodeMail();
         reload(null);
     }
 
     /**
-     * メールデータを再読込する
+     * メールデータを再読込する。
+     * ロード済みで、ストレージが差分のロードに対応している場合は、
+     * 追加・変更・削除されたメールだけを反映し、その間もメールデータは使用可能なままになる。
      * @param リロードが完了した時に、通知する先。通知が不要なら、nullでよい。
      */
     protected void reload(final CommandSender sender) {
@@ -82,35 +117,45 @@ public class MailManager {
         new BukkitRunnable() {
             public void run() {
 
-                isLoaded = false;
-                mails = new ArrayList<MailData>();
-                nextIndex = 1;
+                if ( archive != null ) {
+                    archive.load();
+                }
 
-                File folder = parent.getMailFolder();
-                File[] files = folder.listFiles(new FilenameFilter() {
-                    public boolean accept(File dir, String name) {
-                        return name.endsWith(".yml");
+                // 差分だけを反映できるなら、そうする
+                if ( isLoaded && reloadChanges(start) ) {
+                    if ( sender != null ) {
+                        sender.sendMessage(Messages.get("InformationReload"));
                     }
-                });
-
-                if ( files != null ) {
-                    for ( File file : files ) {
-                        MailData data = MailData.load(file);
-                        mails.add(data);
+                    return;
+                }
 
-                        if ( nextIndex <= data.getIndex() ) {
-                            nextIndex = data.getIndex() + 1;
-                        }
-                    }
+                isLoaded = false;
+                ConcurrentSkipListMap<Integer, MailData> mails =
+                        new ConcurrentSkipListMap<Integer, MailData>();
+                MailRecipientIndex recipientIndex = new MailRecipientIndex();
+                MailExpiryIndex expiryIndex = new MailExpiryIndex();
+                MailBodyCache bodyCache = new MailBodyCache(storage, BODY_CACHE_SIZE);
+
+                // 保存待ちの変更を書き込んでから、読み直す。
+                // ファイルの読み込みと解析は、ストレージ側で並列に行われる。
+                saveQueue.flush();
+                List<MailData> loaded = storage.loadAll();
+                long mergeStart = System.currentTimeMillis();
+
+                for ( MailData data : loaded ) {
+                    mails.put(data.getIndex(), data);
+                    data.setBodyCache(bodyCache);
                 }
 
+                long end = System.currentTimeMillis();
                 UndineMailer.getInstance().getLogger().info("Async load mail data... Done. Time: "
-                        + (System.currentTimeMillis() - start) + "ms, Data: " + mails.size() + ".");
+                        + (end - start) + "ms (read: " + (mergeStart - start) + "ms, merge: "
+                        + (end - mergeStart) + "ms), Data: " + mails.size() + ".");
 
                 long upgradeStart = System.currentTimeMillis();
 
                 int total = 0;
-                for ( MailData mail : mails ) {
+                for ( MailData mail : mails.values() ) {
                     if ( mail.upgrade() ) {
                         saveMail(mail);
                         total++;
@@ -122,6 +167,32 @@ public class MailManager {
                             + (System.currentTimeMillis() - upgradeStart) + "ms, Data: " + total + ".");
                 }
 
+                // 宛先索引は、アップグレード後のIDで作成する
+                long indexStart = System.currentTimeMillis();
+                for ( MailData mail : mails.values() ) {
+                    recipientIndex.add(mail);
+                    expiryIndex.add(mail);
+                }
+
+                UndineMailer.getInstance().getLogger().info("Async index mail data... Done. Time: "
+                        + (System.currentTimeMillis() - indexStart) + "ms.");
+
+                // 作成し終わったものに差し替える
+                MailManager.this.mails = mails;
+                MailManager.this.recipientIndex = recipientIndex;
+                MailManager.this.expiryIndex = expiryIndex;
+                MailManager.this.bodyCache = bodyCache;
+
+                // 読み込み中に保存待ちになったメールは、差し替え後のインスタンスで書き込む
+                saveQueue.retarget(mails);
+                // 解析できなかったメールのインデクスも、使用済みとして扱う
+                // アーカイブ済みのメールのインデクスも、使用済みとして扱う
+                int last = mails.isEmpty() ? 0 : mails.lastKey();
+                last = Math.max(last, storage.getLastIndex());
+                if ( archive != null ) {
+                    last = Math.max(last, archive.getLastIndex());
+                }
+                nextIndex.set(last + 1);
                 isLoaded = true;
 
                 if ( sender != null ) {
@@ -131,6 +202,75 @@ public class MailManager {
         }.runTaskAsynchronously(UndineMailer.getInstance());
     }
 
+    /**
+     * 前回のロード以降に、追加・変更・削除されたメールだけを反映する
+     * @param start リロードを開始した時刻
+     * @return 反映したかどうか。ストレージが差分のロードに対応していない場合はfalse。
+     */
+    private boolean reloadChanges(long start) {
+
+        // 保存待ちの変更を書き込んでから、差分を調べる
+        saveQueue.flush();
+        ArrayList<MailData> changed = new ArrayList<MailData>();
+        ArrayList<Integer> deleted = new ArrayList<Integer>();
+        if ( !storage.loadChanges(changed, deleted) ) {
+            return false;
+        }
+
+        for ( int index : deleted ) {
+            MailData mail = mails.remove(index);
+            if ( mail != null ) {
+                recipientIndex.remove(mail);
+                expiryIndex.remove(mail);
+                bodyCache.remove(mail);
+            }
+        }
+
+        for ( MailData mail : changed ) {
+            mail.setBodyCache(bodyCache);
+            if ( mail.upgrade() ) {
+                saveMail(mail);
+            }
+
+            MailData old = mails.put(mail.getIndex(), mail);
+            if ( old != null ) {
+                recipientIndex.remove(old);
+                expiryIndex.remove(old);
+                bodyCache.remove(old);
+            }
+            recipientIndex.add(mail);
+            expiryIndex.add(mail);
+
+            // 外部で追加されたメールのインデクスは、使用済みにしておく
+            reserveIndex(mail.getIndex());
+        }
+
+        // 読み込み中に保存待ちになったメールは、差し替え後のインスタンスで書き込む
+        saveQueue.retarget(mails);
+
+        // 解析できなかったメールのインデクスも、使用済みにしておく
+        reserveIndex(storage.getLastIndex());
+        if ( archive != null ) {
+            reserveIndex(archive.getLastIndex());
+        }
+
+        UndineMailer.getInstance().getLogger().info("Async reload mail data... Done. Time: "
+                + (System.currentTimeMillis() - start) + "ms, Changed: " + changed.size()
+                + ", Deleted: " + deleted.size() + ".");
+        return true;
+    }
+
+    /**
+     * 指定されたインデクスまでを使用済みにして、新しいメールに割り当てないようにする
+     * @param index インデクス
+     */
+    private void reserveIndex(int index) {
+        int next = nextIndex.get();
+        while ( next <= index && !nextIndex.compareAndSet(next, index + 1) ) {
+            next = nextIndex.get();
+        }
+    }
+
     /**
      * メールデータがロード完了したかどうか。
      * UndineMailerは、保存されているメールデータをバックグラウンドで読み取ってロードするため、
@@ -150,12 +290,18 @@ public class MailManager {
     public MailData getMail(int index) {
 
         if ( !isLoaded ) return null;
-        for ( MailData m : mails ) {
-            if ( m.getIndex() == index ) {
-                return m;
-            }
-        }
-        return null;
+        return mails.get(index);
+    }
+
+    /**
+     * アーカイブから、指定されたインデクスのメールを取得する
+     * @param index インデクス
+     * @return メールデータ、アーカイブが無効な場合や見つからない場合はnull
+     */
+    public MailData getArchivedMail(int index) {
+
+        if ( archive == null ) return null;
+        return archive.getMail(index);
     }
 
     /**
@@ -219,6 +365,9 @@ public class MailManager {
             return;
         }
 
+        // 編集中にUUIDが解決された宛先は、UUIDで識別されるインスタンスに差し替える
+        mail.upgrade();
+
         // 統合宛先を設定する。
         ArrayList<MailSender> to_total = new ArrayList<MailSender>();
         for ( MailSender t : mail.getTo() ) {
@@ -236,8 +385,7 @@ public class MailManager {
         mail.setToTotal(to_total);
 
         // インデクスを設定する
-        mail.setIndex(nextIndex);
-        nextIndex++;
+        mail.setIndex(nextIndex.getAndIncrement());
 
         // 送信時間を設定する
         mail.setDate(new Date());
@@ -270,7 +418,10 @@ public class MailManager {
         }
 
         // 保存する
-        mails.add(mail);
+        mails.put(mail.getIndex(), mail);
+        recipientIndex.add(mail);
+        expiryIndex.add(mail);
+        bodyCache.add(mail);
         saveMail(mail);
 
         // 宛先の人がログイン中なら知らせる
@@ -310,18 +461,7 @@ public class MailManager {
             return null;
         }
 
-        ArrayList<MailData> box = new ArrayList<MailData>();
-        for ( MailData mail : mails ) {
-            if ( mail.isAllMail()
-                    || (mail.getToTotal() != null && mail.getToTotal().contains(sender))
-                    || mail.getTo().contains(sender) ) {
-                if ( !mail.isSetTrash(sender) ) {
-                    box.add(mail);
-                }
-            }
-        }
-        sortNewer(box);
-        return box;
+        return new ArrayList<MailData>(getMailboxView(sender, "inbox"));
     }
 
     /**
@@ -335,18 +475,22 @@ public class MailManager {
             return null;
         }
 
-        ArrayList<MailData> box = new ArrayList<MailData>();
-        for ( MailData mail : mails ) {
-            if ( mail.isAllMail()
-                    || (mail.getToTotal() != null && mail.getToTotal().contains(sender))
-                    || mail.getTo().contains(sender) ) {
-                if ( !mail.isRead(sender) && !mail.isSetTrash(sender) ) {
-                    box.add(mail);
-                }
-            }
+        return new ArrayList<MailData>(getMailboxView(sender, "unread"));
+    }
+
+    /**
+     * 受信したメールで未読の件数を取得する。
+     * 未読の件数は、送信・既読・削除のたびに更新されているので、メールの数によらず高速に取得できる。
+     * @param sender 取得する対象
+     * @return 未読の件数（ゴミ箱に入れたメールは含まない）、ロード中の場合は0
+     */
+    public int getUnreadMailCount(MailSender sender) {
+
+        if ( !isLoaded ) {
+            return 0;
         }
-        sortNewer(box);
-        return box;
+
+        return recipientIndex.getUnreadCount(sender);
     }
 
     /**
@@ -360,14 +504,7 @@ public class MailManager {
             return null;
         }
 
-        ArrayList<MailData> box = new ArrayList<MailData>();
-        for ( MailData mail : mails ) {
-            if ( mail.getFrom().equals(sender) && !mail.isSetTrash(sender) ) {
-                box.add(mail);
-            }
-        }
-        sortNewer(box);
-        return box;
+        return new ArrayList<MailData>(getMailboxView(sender, "outbox"));
     }
 
     /**
@@ -381,15 +518,7 @@ public class MailManager {
             return null;
         }
 
-        ArrayList<MailData> box = new ArrayList<MailData>();
-        for ( MailData mail : mails ) {
-            if ( mail.isRelatedWith(sender) && mail.isRead(sender)
-                    && !mail.isSetTrash(sender) ) {
-                box.add(mail);
-            }
-        }
-        sortNewer(box);
-        return box;
+        return new ArrayList<MailData>(getMailboxView(sender, "related"));
     }
 
     /**
@@ -403,14 +532,107 @@ public class MailManager {
             return null;
         }
 
-        ArrayList<MailData> box = new ArrayList<MailData>();
-        for ( MailData mail : mails ) {
-            if ( mail.isRelatedWith(sender) && mail.isSetTrash(sender) ) {
-                box.add(mail);
+        return new ArrayList<MailData>(getMailboxView(sender, "trash"));
+    }
+
+    /**
+     * 並べ替え済みのメールボックスのリストを取得する。
+     * リストはキャッシュされ、関係するメールが変更されるまでは、並べ替えをせずに同じリストを返す。
+     * @param sender 取得する対象
+     * @param box ボックスの種類（inbox、unread、outbox、related、trash）
+     * @return メールのリスト（変更不可）
+     */
+    private List<MailData> getMailboxView(MailSender sender, String box) {
+
+        MailRecipientIndex index = recipientIndex;
+        boolean withReads = box.equals("unread") || box.equals("related");
+        long version = index.getVersion(sender, withReads);
+        List<MailData> view = mailboxViews.get(box, sender, index, version);
+        if ( view != null ) {
+            return view;
+        }
+
+        ArrayList<MailData> list = collectMailbox(index, sender, box);
+        sortNewer(list);
+
+        view = Collections.unmodifiableList(list);
+        mailboxViews.put(box, sender, index, version, view);
+        return view;
+    }
+
+    /**
+     * メールボックスの1ページ分を取得する。
+     * キャッシュされたリストがあれば、そこから切り出す。無い場合、1ページ目は全体を並べ替えずに選び出し、
+     * 2ページ目以降は（続けてページを送ることが多いので）並べ替えたリストを作成してキャッシュする。
+     * @param sender 取得する対象
+     * @param box ボックスの種類（inbox、unread、outbox、related、trash）
+     * @param page ページ番号（1から始まる）
+     * @return ページ
+     */
+    private MailboxPage getMailboxPage(MailSender sender, String box, int page) {
+
+        MailRecipientIndex index = recipientIndex;
+        boolean withReads = box.equals("unread") || box.equals("related");
+        long version = index.getVersion(sender, withReads);
+        List<MailData> view = mailboxViews.get(box, sender, index, version);
+        if ( view != null ) {
+            return MailboxPage.slice(view, page, PAGE_SIZE);
+        }
+
+        if ( page > 1 ) {
+            return MailboxPage.slice(getMailboxView(sender, box), page, PAGE_SIZE);
+        }
+        return MailboxPage.select(collectMailbox(index, sender, box), page, PAGE_SIZE);
+    }
+
+    /**
+     * メールボックスに入るメールを、並べ替えずに集める。
+     * メインスレッドから呼ばれるので、ストレージには問い合わせず、メモリ上の索引から集める。
+     * @param index 索引
+     * @param sender 対象
+     * @param box ボックスの種類
+     * @return メールのリスト
+     */
+    private ArrayList<MailData> collectMailbox(
+            MailRecipientIndex index, MailSender sender, String box) {
+
+        ArrayList<MailData> list = new ArrayList<MailData>();
+        if ( box.equals("inbox") ) {
+            for ( MailData mail : index.getReceived(sender) ) {
+                if ( !mail.isSetTrash(sender) ) {
+                    list.add(mail);
+                }
+            }
+        } else if ( box.equals("unread") ) {
+            list.addAll(index.getUnread(sender, Integer.MAX_VALUE));
+        } else if ( box.equals("outbox") ) {
+            for ( MailData mail : index.getSent(sender) ) {
+                if ( !mail.isSetTrash(sender) ) {
+                    list.add(mail);
+                }
+            }
+        } else if ( box.equals("related") ) {
+            for ( MailData mail : index.getRelated(sender) ) {
+                if ( mail.isRead(sender) && !mail.isSetTrash(sender) ) {
+                    list.add(mail);
+                }
+            }
+        } else {
+            for ( MailData mail : index.getTrashed(sender) ) {
+                if ( mail.isRelatedWith(sender) ) {
+                    list.add(mail);
+                }
             }
         }
-        sortNewer(box);
-        return box;
+        return list;
+    }
+
+    /**
+     * 指定されたsenderの、キャッシュされているメールボックスのリストを破棄する
+     * @param sender 対象
+     */
+    protected void clearMailboxViews(MailSender sender) {
+        mailboxViews.remove(sender, MAILBOX_VIEWS);
     }
 
     /**
@@ -431,12 +653,13 @@ public class MailManager {
         // 添付ボックスがからっぽになっているか、キャンセルされているなら、既読を付ける
         if ( mail.getAttachments().size() == 0 || mail.isAttachmentsCancelled() ) {
             mail.setReadFlag(sender);
-            saveMail(mail);
+            saveMailFlags(mail);
         }
     }
 
     /**
-     * 指定されたメールデータをUndineに保存する
+     * 指定されたメールデータをUndineに保存する。
+     * 実際の書き込みは、MailSaveTaskによって非同期で行われる。
      * @param mail メールデータ
      */
     public void saveMail(MailData mail) {
@@ -446,10 +669,22 @@ public class MailManager {
             return;
         }
 
-        String filename = String.format("%1$08d.yml", mail.getIndex());
-        File folder = parent.getMailFolder();
-        File file = new File(folder, filename);
-        mail.save(file);
+        saveQueue.saveMail(mail);
+    }
+
+    /**
+     * 指定されたメールデータの、既読フラグとゴミ箱フラグだけをUndineに保存する。
+     * フラグ以外の内容を変更した場合は、saveMailを使用すること。
+     * @param mail メールデータ
+     */
+    public void saveMailFlags(MailData mail) {
+
+        // 編集中で未送信のメールは保存できません。
+        if ( mail.getIndex() == 0 ) {
+            return;
+        }
+
+        saveQueue.saveFlags(mail);
     }
 
     /**
@@ -459,18 +694,15 @@ public class MailManager {
     public void deleteMail(int index) {
 
         if ( isLoaded ) {
-            MailData mail = getMail(index);
+            MailData mail = mails.remove(index);
             if ( mail != null ) {
-                mails.remove(mail);
+                recipientIndex.remove(mail);
+                expiryIndex.remove(mail);
+                bodyCache.remove(mail);
             }
         }
 
-        String filename = String.format("%1$08d.yml", index);
-        File folder = parent.getMailFolder();
-        File file = new File(folder, filename);
-        if ( file.exists() ) {
-            file.delete();
-        }
+        saveQueue.deleteMail(index);
     }
 
     /**
@@ -482,20 +714,83 @@ public class MailManager {
             return;
         }
 
-        ArrayList<Integer> queue = new ArrayList<Integer>();
+        // 経過日数が保存期間を超えた（保存期間+1日以上経過した）メールだけを、索引から取り出す
         int period = parent.getUndineConfig().getMailStorageTermDays();
-        Date now = new Date();
-
-        for ( MailData mail : mails ) {
-            int days = (int)((now.getTime() - mail.getDate().getTime()) / (1000*60*60*24));
-            if ( days > period ) {
-                queue.add(mail.getIndex());
+        long limit = System.currentTimeMillis() - (period + 1L) * 1000 * 60 * 60 * 24;
+
+        List<MailData> expired = pollExpired(limit);
+
+        // アーカイブが有効なら、削除する前に本文を含めてアーカイブに移す
+        if ( archive != null && expired.size() > 0 ) {
+            saveQueue.flush();
+            ArrayList<MailData> fulls = new ArrayList<MailData>();
+            for ( MailData mail : expired ) {
+                MailData full = mail.isBodyLoaded() ? mail : storage.loadMail(mail.getIndex());
+                if ( full != null ) {
+                    fulls.add(full);
+                }
+            }
+            if ( !archive.archive(fulls) ) {
+                // アーカイブできなかったメールは削除せずに、次回に持ち越す
+                for ( MailData mail : expired ) {
+                    expiryIndex.add(mail);
+                }
+                return;
             }
         }
 
-        for ( int index : queue ) {
-            deleteMail(index);
+        for ( MailData mail : expired ) {
+            deleteMail(mail.getIndex());
+        }
+
+        // 削除をまとめて書き込んでから、不要になったデータを整理する。
+        // メールの一覧は、ストレージ側で書き込みを止めてから写し取るので、ここでは写さずに渡す。
+        saveQueue.flush();
+        storage.compact(mails.values());
+    }
+
+    /**
+     * 指定された日時以前に送信されたメールを、索引から取り出す。
+     * ストレージが問い合わせに対応している場合は、ストレージで選び出す。
+     * @param limit 日時（ミリ秒）
+     * @return メールのリスト
+     */
+    private List<MailData> pollExpired(long limit) {
+
+        List<Integer> found = null;
+        if ( storage.isQueryable() ) {
+            saveQueue.flush();
+            found = storage.findExpiredMails(limit);
+        }
+        if ( found == null ) {
+            return expiryIndex.pollExpired(limit);
+        }
+
+        ArrayList<MailData> expired = new ArrayList<MailData>();
+        for ( int index : found ) {
+            MailData mail = mails.get(index);
+            if ( mail != null ) {
+                expiryIndex.remove(mail);
+                expired.add(mail);
+            }
         }
+        return expired;
+    }
+
+    /**
+     * 保存待ちのメールデータを書き込む
+     */
+    protected void flushMails() {
+        saveQueue.flush();
+    }
+
+    /**
+     * 保存待ちのメールデータを全て書き込んでから、保存先を閉じる
+     */
+    protected void closeStorage() {
+        saveQueue.flush();
+        storage.close();
+        MailSenderOrdinals.getInstance().close();
     }
 
     /**
@@ -555,26 +850,14 @@ public class MailManager {
         String parts = Messages.get("ListHorizontalParts");
         String pre = Messages.get("ListVerticalParts");
 
-        ArrayList<MailData> mails = getInboxMails(sender);
-        int max = (int)((mails.size() - 1) / PAGE_SIZE) + 1;
-        int unread = 0;
-        for ( MailData m : mails ) {
-            if ( !m.isRead(sender) ) {
-                unread++;
-            }
-        }
+        MailboxPage mails = getMailboxPage(sender, "inbox", page);
+        int max = (int)((mails.getTotal() - 1) / PAGE_SIZE) + 1;
+        int unread = recipientIndex.getUnreadCount(sender);
 
         String title = Messages.get("InboxTitle", "%unread", unread);
         sender.sendMessage(parts + parts + " " + title + " " + parts + parts);
 
-        for ( int i=0; i<10; i++ ) {
-
-            int index = (page - 1) * 10 + i;
-            if ( index < 0 || mails.size() <= index ) {
-                continue;
-            }
-
-            MailData mail = mails.get(index);
+        for ( MailData mail : mails.getMails() ) {
             ChatColor color = mail.isRead(sender) ? ChatColor.GRAY : ChatColor.GOLD;
 
             sendMailLine(sender, pre, color + mail.getInboxSummary(), mail);
@@ -606,20 +889,13 @@ public class MailManager {
         String parts = Messages.get("ListHorizontalParts");
         String pre = Messages.get("ListVerticalParts");
 
-        ArrayList<MailData> mails = getOutboxMails(sender);
-        int max = (int)((mails.size() - 1) / PAGE_SIZE) + 1;
+        MailboxPage mails = getMailboxPage(sender, "outbox", page);
+        int max = (int)((mails.getTotal() - 1) / PAGE_SIZE) + 1;
 
         String title = Messages.get("OutboxTitle");
         sender.sendMessage(parts + parts + " " + title + " " + parts + parts);
 
-        for ( int i=0; i<PAGE_SIZE; i++ ) {
-
-            int index = (page - 1) * PAGE_SIZE + i;
-            if ( index < 0 || mails.size() <= index ) {
-                continue;
-            }
-
-            MailData mail = mails.get(index);
+        for ( MailData mail : mails.getMails() ) {
             ChatColor color = ChatColor.GRAY;
 
             sendMailLine(sender, pre, color + mail.getOutboxSummary(), mail);
@@ -642,17 +918,19 @@ public class MailManager {
             return;
         }
 
-        List<MailData> unread = getUnreadMails(sender);
+        int count = recipientIndex.getUnreadCount(sender);
 
-        if ( unread.size() == 0 ) {
+        if ( count == 0 ) {
             return;
         }
 
         // 未読のメールを表示する
         sender.sendMessage(Messages.get(
-                "InformationPlayerJoin", "%unread", unread.size()));
+                "InformationPlayerJoin", "%unread", count));
 
         // 最大5件まで、メールのサマリーを表示する
+        List<MailData> unread = recipientIndex.getUnread(sender, 5);
+        sortNewer(unread);
         String pre = Messages.get("ListVerticalParts");
         for ( int i=0; i<5; i++ ) {
             if ( i >= unread.size() ) {
@@ -686,20 +964,13 @@ public class MailManager {
         String parts = Messages.get("ListHorizontalParts");
         String pre = Messages.get("ListVerticalParts");
 
-        ArrayList<MailData> mails = getTrashboxMails(sender);
-        int max = (int)((mails.size() - 1) / PAGE_SIZE) + 1;
+        MailboxPage mails = getMailboxPage(sender, "trash", page);
+        int max = (int)((mails.getTotal() - 1) / PAGE_SIZE) + 1;
 
         String title = Messages.get("TrashboxTitle");
         sender.sendMessage(parts + parts + " " + title + " " + parts + parts);
 
-        for ( int i=0; i<PAGE_SIZE; i++ ) {
-
-            int index = (page - 1) * PAGE_SIZE + i;
-            if ( index < 0 || mails.size() <= index ) {
-                continue;
-            }
-
-            MailData mail = mails.get(index);
+        for ( MailData mail : mails.getMails() ) {
             ChatColor color = ChatColor.GRAY;
 
             sendMailLine(sender, pre, color + mail.getInboxSummary(), mail);
@@ -765,9 +1036,10 @@ public class MailManager {
             return Integer.MAX_VALUE;
         }
 
+        // コマンドの処理中に呼ばれるので、ストレージには問い合わせず、メモリ上の索引で数える
         int count = 0;
-        for ( MailData mail : mails ) {
-            if ( mail.getFrom().equals(sender) && mail.getAttachments().size() > 0 ) {
+        for ( MailData mail : recipientIndex.getSent(sender) ) {
+            if ( mail.getAttachmentsCount() > 0 ) {
                 count++;
             }
         }
@@ -950,25 +1222,30 @@ public class MailManager {
         if ( sender instanceof MailSenderPlayer
                 && mail.isRelatedWith(sender) && !mail.isEditmode() ) {
 
+            // アーカイブから読み込んだメールは、ゴミ箱の操作ができないので、ボタンを表示しない
+            boolean isLive = (getMail(mail.getIndex()) == mail);
+
             if ( mail.isSetTrash(sender) ) {
                 // ゴミ箱に入っているメールなら、Restoreボタンを表示する
 
-                MessageComponent msg = new MessageComponent();
-                msg.addText(pre);
+                if ( isLive ) {
+                    MessageComponent msg = new MessageComponent();
+                    msg.addText(pre);
 
-                MessageParts button = new MessageParts(
-                        Messages.get("MailDetailTrashRestore"), ChatColor.AQUA);
-                button.setClickEvent(ClickEventType.RUN_COMMAND,
-                        COMMAND + " trash restore " + mail.getIndex());
-                msg.addParts(button);
+                    MessageParts button = new MessageParts(
+                            Messages.get("MailDetailTrashRestore"), ChatColor.AQUA);
+                    button.setClickEvent(ClickEventType.RUN_COMMAND,
+                            COMMAND + " trash restore " + mail.getIndex());
+                    msg.addParts(button);
 
-                sendMessageComponent(msg, sender);
+                    sendMessageComponent(msg, sender);
+                }
 
             } else {
                 // 既に添付が1つもないメールなら、Deleteボタンを表示する
                 // 開いているのが受信者なら、Replyボタンを表示する
 
-                boolean attachNothing = (mail.getAttachments().size() == 0);
+                boolean attachNothing = isLive && (mail.getAttachments().size() == 0);
                 boolean isRecipient = mail.isRecipient(sender)
                         && !(mail.getFrom() instanceof MailSenderConsole);
 
@@ -1320,16 +1597,7 @@ public class MailManager {
         }
 
         // リストの取得
-        ArrayList<MailData> list;
-        if ( meta.equals("inbox") ) {
-            list = UndineMailer.getInstance().getMailManager().getInboxMails(sender);
-        } else if ( meta.equals("outbox") ) {
-            list = UndineMailer.getInstance().getMailManager().getOutboxMails(sender);
-        } else if ( meta.equals("trash") ) {
-            list = UndineMailer.getInstance().getMailManager().getTrashboxMails(sender);
-        } else {
-            list = UndineMailer.getInstance().getMailManager().getUnreadMails(sender);
-        }
+        List<MailData> list = getMailboxView(sender, meta);
 
         // ページ番号の取得
         int page = getIndexOfMailList(index, list);
@@ -1434,7 +1702,7 @@ public class MailManager {
      * @param list リスト
      * @return 何番目にあるか。含まれていないなら-1が返されることに注意
      */
-    private int getIndexOfMailList(int index, ArrayList<MailData> list) {
+    private int getIndexOfMailList(int index, List<MailData> list) {
         for ( int i=0; i<list.size(); i++ ) {
             if ( list.get(i).getIndex() == index ) {
                 return i;
@@ -1464,11 +1732,7 @@ public class MailManager {
      * @param list リスト
      */
     private static void sortNewer(List<MailData> list) {
-        Collections.sort(list, new Comparator<MailData>() {
-            public int compare(MailData o1, MailData o2) {
-                return o2.getDate().compareTo(o1.getDate());
-            }
-        });
+        Collections.sort(list, MailboxPage.NEWER_FIRST);
     }
 
     /**
@@ -1493,7 +1757,7 @@ public class MailManager {
         button.setHoverText(Messages.get("SummaryOpenThisMailToolTip"));
         msg.addParts(button);
 
-        msg.addText((mail.getAttachments().size() > 0) ? "*" : " ");
+        msg.addText((mail.getAttachmentsCount() > 0) ? "*" : " ");
 
         msg.addText(summary);
 
@@ -1575,7 +1839,7 @@ public class MailManager {
      * @return フォーマットされた文字列
      */
     private String getFormattedDate(Date date) {
-        return new SimpleDateFormat(Messages.get("DateFormat")).format(date);
+        return Messages.formatDate(date);
     }
 
     /**
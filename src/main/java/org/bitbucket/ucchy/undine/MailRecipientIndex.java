@@ -0,0 +1,376 @@
+/*
+ * @author     ucchy
+ * @license    LGPLv3
+ * @copyright  Copyright ucchy 2015
+ */
+package org.bitbucket.ucchy.undine;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bitbucket.ucchy.undine.sender.MailSender;
+
+/**
+ * 宛先・送信者ごとのメール索引。
+ * メールボックスの照会で、全メールを走査しなくて済むようにするためのもの。
+ * メインスレッドと非同期タスクの両方から、ロック無しで参照・更新できる。
+ * @author ucchy
+ */
+class MailRecipientIndex {
+
+    private static final ConcurrentSkipListMap<Integer, MailData> EMPTY =
+            new ConcurrentSkipListMap<Integer, MailData>();
+
+    private ConcurrentHashMap<String, ConcurrentSkipListMap<Integer, MailData>> received;
+    private ConcurrentHashMap<String, ConcurrentSkipListMap<Integer, MailData>> sent;
+    private ConcurrentHashMap<String, ConcurrentSkipListMap<Integer, MailData>> trashed;
+    private ConcurrentHashMap<String, UnreadMails> unread;
+    private ConcurrentSkipListMap<Integer, MailData> allMails;
+
+    // 更新番号。受信・送信・ゴミ箱の変更と、既読の変更を分けて数える。
+    private ConcurrentHashMap<String, AtomicLong> versions;
+    private ConcurrentHashMap<String, AtomicLong> readVersions;
+    private AtomicLong allMailsVersion;
+
+    /**
+     * コンストラクタ
+     */
+    MailRecipientIndex() {
+        received = new ConcurrentHashMap<String, ConcurrentSkipListMap<Integer, MailData>>();
+        sent = new ConcurrentHashMap<String, ConcurrentSkipListMap<Integer, MailData>>();
+        trashed = new ConcurrentHashMap<String, ConcurrentSkipListMap<Integer, MailData>>();
+        unread = new ConcurrentHashMap<String, UnreadMails>();
+        allMails = new ConcurrentSkipListMap<Integer, MailData>();
+        versions = new ConcurrentHashMap<String, AtomicLong>();
+        readVersions = new ConcurrentHashMap<String, AtomicLong>();
+        allMailsVersion = new AtomicLong();
+    }
+
+    /**
+     * 索引にメールを追加する
+     * @param mail メール
+     */
+    void add(MailData mail) {
+
+        if ( mail.isAllMail() ) {
+            allMails.put(mail.getIndex(), mail);
+            allMailsVersion.incrementAndGet();
+        }
+        for ( MailSender ms : getRecipients(mail) ) {
+            put(received, ms, mail);
+            if ( !mail.isRead(ms) && !mail.isSetTrash(ms) ) {
+                getUnreadMails(ms).put(mail);
+            }
+            touch(versions, ms);
+        }
+        if ( mail.getFrom() != null ) {
+            put(sent, mail.getFrom(), mail);
+            touch(versions, mail.getFrom());
+        }
+        for ( MailSender ms : mail.getTrashFlagSet() ) {
+            put(trashed, ms, mail);
+            touch(versions, ms);
+        }
+        mail.setRecipientIndex(this);
+    }
+
+    /**
+     * 索引からメールを除去する
+     * @param mail メール
+     */
+    void remove(MailData mail) {
+
+        if ( allMails.remove(mail.getIndex()) != null ) {
+            allMailsVersion.incrementAndGet();
+        }
+        for ( MailSender ms : getRecipients(mail) ) {
+            delete(received, ms, mail);
+            removeUnread(ms, mail);
+            touch(versions, ms);
+        }
+        if ( mail.getFrom() != null ) {
+            delete(sent, mail.getFrom(), mail);
+            touch(versions, mail.getFrom());
+        }
+        for ( MailSender ms : mail.getTrashFlagSet() ) {
+            delete(trashed, ms, mail);
+            touch(versions, ms);
+        }
+        mail.setRecipientIndex(null);
+    }
+
+    /**
+     * ゴミ箱フラグが変更されたときに、MailDataから呼び出される
+     * @param mail メール
+     * @param sender フラグを変更した人
+     * @param isSet フラグを付けたならtrue、外したならfalse
+     */
+    void onTrashFlagChanged(MailData mail, MailSender sender, boolean isSet) {
+        if ( isSet ) {
+            put(trashed, sender, mail);
+            removeUnread(sender, mail);
+        } else {
+            delete(trashed, sender, mail);
+            if ( get(received, sender).containsKey(mail.getIndex()) && !mail.isRead(sender) ) {
+                getUnreadMails(sender).put(mail);
+            }
+        }
+        touch(versions, sender);
+    }
+
+    /**
+     * 既読フラグが付けられたときに、MailDataから呼び出される
+     * @param mail メール
+     * @param sender フラグを付けた人
+     */
+    void onReadFlagChanged(MailData mail, MailSender sender) {
+        removeUnread(sender, mail);
+        touch(readVersions, sender);
+    }
+
+    /**
+     * 指定されたsenderに関係するメールの、更新番号を取得する。
+     * 受信・送信・ゴミ箱のメールが変わると（全体メールの追加と削除を含む）、大きな値に変わる。
+     * @param sender 対象
+     * @param withReads 既読フラグの変更も含めるかどうか
+     * @return 更新番号
+     */
+    long getVersion(MailSender sender, boolean withReads) {
+        String key = sender.toString();
+        long version = allMailsVersion.get() + getVersion(versions, key);
+        if ( withReads ) {
+            version += getVersion(readVersions, key);
+        }
+        return version;
+    }
+
+    /**
+     * 指定されたsenderの、未読のメールの件数を取得する（全体メールを含む）。
+     * 宛先に指定されたメールは、保持しているカウンタから取得するので、メールの数によらず高速に動作する。
+     * @param sender 受信者
+     * @return 未読の件数（ゴミ箱に入れたメールは含まない）
+     */
+    int getUnreadCount(MailSender sender) {
+        UnreadMails mine = unread.get(sender.toString());
+        int count = (mine != null) ? mine.count.get() : 0;
+        return count + getUnreadAllMails(sender).size();
+    }
+
+    /**
+     * 指定されたsenderの、未読のメールを、新しいものから順に取得する（全体メールを含む）
+     * @param sender 受信者
+     * @param max 取得する最大件数
+     * @return メールのリスト（ゴミ箱に入れたメールは含まない）
+     */
+    List<MailData> getUnread(MailSender sender, int max) {
+
+        ArrayList<MailData> result = new ArrayList<MailData>();
+        UnreadMails mine = unread.get(sender.toString());
+        if ( mine != null ) {
+            for ( MailData mail : mine.mails.descendingMap().values() ) {
+                if ( result.size() >= max ) break;
+                result.add(mail);
+            }
+        }
+
+        List<MailData> all = getUnreadAllMails(sender);
+        if ( all.size() > 0 ) {
+            result.addAll(all);
+            Collections.sort(result, new Comparator<MailData>() {
+                public int compare(MailData o1, MailData o2) {
+                    return Integer.compare(o2.getIndex(), o1.getIndex());
+                }
+            });
+            if ( result.size() > max ) {
+                result.subList(max, result.size()).clear();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 指定されたsenderが受信者となっているメールを取得する（全体メールを含む）
+     * @param sender 受信者
+     * @return メールのリスト
+     */
+    List<MailData> getReceived(MailSender sender) {
+        ConcurrentSkipListMap<Integer, MailData> mine = get(received, sender);
+        ArrayList<MailData> result = new ArrayList<MailData>();
+        result.addAll(mine.values());
+        for ( MailData mail : allMails.values() ) {
+            if ( !mine.containsKey(mail.getIndex()) ) {
+                result.add(mail);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 指定されたsenderが送信したメールを取得する
+     * @param sender 送信者
+     * @return メールのリスト
+     */
+    Collection<MailData> getSent(MailSender sender) {
+        return get(sent, sender).values();
+    }
+
+    /**
+     * 指定されたsenderが関係しているメールを取得する（全体メールを含む）
+     * @param sender 送信者または受信者
+     * @return メールのリスト
+     */
+    List<MailData> getRelated(MailSender sender) {
+        List<MailData> result = getReceived(sender);
+        ConcurrentSkipListMap<Integer, MailData> mine = get(received, sender);
+        for ( MailData mail : get(sent, sender).values() ) {
+            if ( !mine.containsKey(mail.getIndex()) && !allMails.containsKey(mail.getIndex()) ) {
+                result.add(mail);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 指定されたsenderがゴミ箱フラグを付けたメールを取得する
+     * @param sender 対象
+     * @return メールのリスト
+     */
+    Collection<MailData> getTrashed(MailSender sender) {
+        return get(trashed, sender).values();
+    }
+
+    /**
+     * 全体メールのうち、指定されたsenderが未読のものを取得する。
+     * 全体メールは、まだメールを受け取ったことの無い人にも届くので、受信者ごとのカウンタでは数えない。
+     * @param sender 受信者
+     * @return メールのリスト
+     */
+    private List<MailData> getUnreadAllMails(MailSender sender) {
+        if ( allMails.isEmpty() ) {
+            return Collections.emptyList();
+        }
+        ConcurrentSkipListMap<Integer, MailData> mine = get(received, sender);
+        ArrayList<MailData> result = new ArrayList<MailData>();
+        for ( MailData mail : allMails.values() ) {
+            if ( !mine.containsKey(mail.getIndex())
+                    && !mail.isRead(sender) && !mail.isSetTrash(sender) ) {
+                result.add(mail);
+            }
+        }
+        return result;
+    }
+
+    private static long getVersion(ConcurrentHashMap<String, AtomicLong> map, String key) {
+        AtomicLong version = map.get(key);
+        return (version != null) ? version.get() : 0;
+    }
+
+    private static void touch(ConcurrentHashMap<String, AtomicLong> map, MailSender sender) {
+        String key = sender.toString();
+        AtomicLong version = map.get(key);
+        if ( version == null ) {
+            AtomicLong created = new AtomicLong();
+            version = map.putIfAbsent(key, created);
+            if ( version == null ) {
+                version = created;
+            }
+        }
+        version.incrementAndGet();
+    }
+
+    private UnreadMails getUnreadMails(MailSender sender) {
+        String key = sender.toString();
+        UnreadMails entries = unread.get(key);
+        if ( entries == null ) {
+            // 他のスレッドが先に作成していたら、そちらを使う
+            UnreadMails created = new UnreadMails();
+            entries = unread.putIfAbsent(key, created);
+            if ( entries == null ) {
+                entries = created;
+            }
+        }
+        return entries;
+    }
+
+    private void removeUnread(MailSender sender, MailData mail) {
+        UnreadMails entries = unread.get(sender.toString());
+        if ( entries != null ) {
+            entries.remove(mail);
+        }
+    }
+
+    /**
+     * メールの受信者を取得する。送信済みなら統合宛先、未送信なら宛先が返される。
+     * @param mail メール
+     * @return 受信者
+     */
+    private static List<MailSender> getRecipients(MailData mail) {
+        List<MailSender> total = mail.getToTotal();
+        if ( total != null ) {
+            return total;
+        }
+        return mail.getTo();
+    }
+
+    private static ConcurrentSkipListMap<Integer, MailData> get(
+            ConcurrentHashMap<String, ConcurrentSkipListMap<Integer, MailData>> map, MailSender sender) {
+        ConcurrentSkipListMap<Integer, MailData> entries = map.get(sender.toString());
+        if ( entries == null ) {
+            return EMPTY;
+        }
+        return entries;
+    }
+
+    private static void put(ConcurrentHashMap<String, ConcurrentSkipListMap<Integer, MailData>> map,
+            MailSender sender, MailData mail) {
+        String key = sender.toString();
+        ConcurrentSkipListMap<Integer, MailData> entries = map.get(key);
+        if ( entries == null ) {
+            // 他のスレッドが先に作成していたら、そちらを使う
+            ConcurrentSkipListMap<Integer, MailData> created = new ConcurrentSkipListMap<Integer, MailData>();
+            entries = map.putIfAbsent(key, created);
+            if ( entries == null ) {
+                entries = created;
+            }
+        }
+        entries.put(mail.getIndex(), mail);
+    }
+
+    private static void delete(ConcurrentHashMap<String, ConcurrentSkipListMap<Integer, MailData>> map,
+            MailSender sender, MailData mail) {
+        // 空になったエントリは、並行して追加されたメールを失わないように、削除しないでおく
+        ConcurrentSkipListMap<Integer, MailData> entries = map.get(sender.toString());
+        if ( entries != null ) {
+            entries.remove(mail.getIndex());
+        }
+    }
+
+    /**
+     * 1人分の未読メール。ConcurrentSkipListMapのsizeは全件を数えるので、件数は別に数えておく。
+     */
+    private static class UnreadMails {
+
+        private ConcurrentSkipListMap<Integer, MailData> mails =
+                new ConcurrentSkipListMap<Integer, MailData>();
+        private AtomicInteger count = new AtomicInteger();
+
+        private void put(MailData mail) {
+            if ( mails.put(mail.getIndex(), mail) == null ) {
+                count.incrementAndGet();
+            }
+        }
+
+        private void remove(MailData mail) {
+            if ( mails.remove(mail.getIndex()) != null ) {
+                count.decrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * @author     ucchy
+ * @license    LGPLv3
+ * @copyright  Copyright ucchy 2015
+ */
+package org.bitbucket.ucchy.undine;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * メールの保存待ちキュー。
+ * saveMailなどの呼び出し元ではストレージへの書き込みを行わず、メールを保存待ちとして記録だけしておき、
+ * flushが呼ばれた時に（通常は非同期タスクから）まとめて書き込む。
+ * 同じメールへの保存が繰り返された場合は、1回の書き込みにまとめられる。
+ * @author ucchy
+ */
+class MailSaveQueue {
+
+    private static final int OPERATION_FLAGS = 1;
+    private static final int OPERATION_MAIL = 2;
+    private static final int OPERATION_DELETE = 3;
+
+    private MailStorage storage;
+    private LinkedHashMap<Integer, Pending> pending;
+    private final Object flushLock = new Object();
+
+    /**
+     * コンストラクタ
+     * @param storage 書き込み先のストレージ
+     */
+    MailSaveQueue(MailStorage storage) {
+        this.storage = storage;
+        this.pending = new LinkedHashMap<Integer, Pending>();
+    }
+
+    /**
+     * メール全体を保存待ちにする。
+     * 書き込みが終わるまで、メールの本文はキャッシュから破棄されないようになる。
+     * @param mail メール
+     */
+    synchronized void saveMail(MailData mail) {
+        mail.setBodyPinned(true);
+        put(mail.getIndex(), mail, OPERATION_MAIL);
+    }
+
+    /**
+     * メールの既読フラグとゴミ箱フラグを保存待ちにする
+     * @param mail メール
+     */
+    synchronized void saveFlags(MailData mail) {
+        put(mail.getIndex(), mail, OPERATION_FLAGS);
+    }
+
+    /**
+     * メールの削除を保存待ちにする
+     * @param index インデクス
+     */
+    synchronized void deleteMail(int index) {
+        put(index, null, OPERATION_DELETE);
+    }
+
+    /**
+     * 保存待ちのメールのうち、リロードで別のインスタンスに差し替えられたものを、
+     * 差し替え後のインスタンスで書き込むようにする。
+     * 古いインスタンスの内容で、読み直したデータを上書きしないようにするため。
+     * @param mails 差し替え後のメール
+     */
+    synchronized void retarget(Map<Integer, MailData> mails) {
+        for ( Map.Entry<Integer, Pending> e : pending.entrySet() ) {
+            Pending p = e.getValue();
+            if ( p.mail == null ) continue;
+            MailData current = mails.get(e.getKey());
+            if ( current == null || current == p.mail ) continue;
+            if ( p.operation == OPERATION_MAIL ) {
+                current.setBodyPinned(true);
+            }
+            p.mail = current;
+        }
+    }
+
+    /**
+     * 保存待ちの件数を返す
+     * @return 保存待ちの件数
+     */
+    synchronized int size() {
+        return pending.size();
+    }
+
+    /**
+     * 保存待ちになっている内容を、全てストレージに書き込む
+     */
+    void flush() {
+
+        synchronized (flushLock) {
+
+            LinkedHashMap<Integer, Pending> queue;
+            synchronized (this) {
+                if ( pending.isEmpty() ) return;
+                queue = pending;
+                pending = new LinkedHashMap<Integer, Pending>();
+            }
+
+            ArrayList<Integer> deletes = new ArrayList<Integer>();
+            for ( int index : queue.keySet() ) {
+                Pending p = queue.get(index);
+                switch ( p.operation ) {
+                case OPERATION_FLAGS:
+                    storage.saveFlags(p.mail);
+                    break;
+                case OPERATION_MAIL:
+                    // 書き込む前に本文の版を取得し、書き込みが終わったら保存済みとして記録する
+                    int version = p.mail.getBodyVersion();
+                    try {
+                        storage.saveMail(p.mail);
+                        p.mail.setBodySaved(version);
+                    } catch (IllegalStateException e) {
+                        // 本文をロードできないメールは、書き込まずに残しておく
+                        e.printStackTrace();
+                    }
+                    break;
+                case OPERATION_DELETE:
+                    deletes.add(index);
+                    break;
+                }
+            }
+
+            // 削除はまとめて行う
+            if ( deletes.size() > 0 ) {
+                storage.deleteMails(deletes);
+            }
+
+            // 書き込みが終わったメールは、再び本文を破棄できるようにする
+            synchronized (this) {
+                for ( int index : queue.keySet() ) {
+                    Pending p = queue.get(index);
+                    if ( p.operation == OPERATION_MAIL && !pending.containsKey(index) ) {
+                        p.mail.setBodyPinned(false);
+                    }
+                }
+            }
+        }
+    }
+
+    private void put(int index, MailData mail, int operation) {
+        Pending p = pending.get(index);
+        if ( p == null ) {
+            pending.put(index, new Pending(mail, operation));
+        } else if ( p.operation < operation ) {
+            // より大きな操作は、小さな操作を含んでいる
+            p.mail = mail;
+            p.operation = operation;
+        }
+    }
+
+    /**
+     * 保存待ちの内容
+     */
+    private static class Pending {
+
+        private MailData mail;
+        private int operation;
+
+        private Pending(MailData mail, int operation) {
+            this.mail = mail;
+            this.operation = operation;
+        }
+    }
+}
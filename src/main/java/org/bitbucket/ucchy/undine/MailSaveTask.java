@@ -0,0 +1,45 @@
+/*
+ * @author     ucchy
+ * @license    LGPLv3
+ * @copyright  Copyright ucchy 2015
+ */
+package org.bitbucket.ucchy.undine;
+
+import org.bukkit.scheduler.BukkitRunnable;
+
+/**
+ * 保存待ちのメールを書き込むタスク
+ * @author ucchy
+ */
+public class MailSaveTask extends BukkitRunnable {
+
+    /** 書き込みの間隔（tick）。メールの変更は、最大でこの時間だけ遅れて保存される。 */
+    private static final int INTERVAL_TICKS = 20;
+
+    private MailManager manager;
+
+    /**
+     * コンストラクタ
+     * @param manager MailManager
+     */
+    public MailSaveTask(MailManager manager) {
+        this.manager = manager;
+    }
+
+    /**
+     * 定期的に実行されるメソッド
+     * @see java.lang.Runnable#run()
+     */
+    @Override
+    public void run() {
+        manager.flushMails();
+    }
+
+    /**
+     * タスクを開始する。処理は、1秒ごとに非同期で実行される。
+     */
+    protected void startTask() {
+        runTaskTimerAsynchronously(
+                UndineMailer.getInstance(), INTERVAL_TICKS, INTERVAL_TICKS);
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * @author     ucchy
+ * @license    LGPLv3
+ * @copyright  Copyright ucchy 2015
+ */
+package org.bitbucket.ucchy.undine;
+
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.bitbucket.ucchy.undine.sender.MailSender;
+import org.bitbucket.ucchy.undine.sender.MailSenderPlayer;
+
+/**
+ * 宛先の通し番号のビット列で表した、変更できない宛先のセット。
+ * 宛先の多いメールの、統合宛先と既読・ゴミ箱フラグに使用する。
+ * 変更する場合は、withで新しいセットを作成する。
+ * @author ucchy
+ */
+class MailSenderBitSet extends AbstractSet<MailSender> {
+
+    private MailSenderOrdinals ordinals;
+    private BitSet bits;
+    private int size;
+
+    /**
+     * コンストラクタ
+     * @param ordinals 通し番号の表
+     * @param bits ビット列（以降は変更しないこと）
+     */
+    private MailSenderBitSet(MailSenderOrdinals ordinals, BitSet bits) {
+        this.ordinals = ordinals;
+        this.bits = bits;
+        this.size = bits.cardinality();
+    }
+
+    /**
+     * 指定された宛先のセットを作成する
+     * @param ordinals 通し番号の表
+     * @param senders 宛先
+     * @return セット
+     * @throws IllegalStateException 新しい番号が必要なのに、通し番号の表をファイルに保存できない場合
+     */
+    static MailSenderBitSet of(MailSenderOrdinals ordinals, Collection<MailSender> senders) {
+        return new MailSenderBitSet(ordinals, ordinals.toBits(senders));
+    }
+
+    /**
+     * encodeで作成した文字列から、セットを復元する
+     * @param ordinals 通し番号の表
+     * @param encoded 文字列
+     * @return セット
+     */
+    static MailSenderBitSet decode(MailSenderOrdinals ordinals, String encoded) {
+        if ( encoded == null || encoded.isEmpty() ) {
+            return new MailSenderBitSet(ordinals, new BitSet());
+        }
+        return new MailSenderBitSet(ordinals, BitSet.valueOf(Base64.getDecoder().decode(encoded)));
+    }
+
+    /**
+     * 保存用の文字列に変換する
+     * @return 文字列
+     */
+    String encode() {
+        return Base64.getEncoder().encodeToString(bits.toByteArray());
+    }
+
+    /**
+     * 指定された宛先を追加または除去した、新しいセットを作成する
+     * @param sender 宛先
+     * @param add 追加するならtrue、除去するならfalse
+     * @return 新しいセット、内容が変わらない場合はこのセット
+     * @throws IllegalStateException 新しい番号が必要なのに、通し番号の表をファイルに保存できない場合
+     */
+    MailSenderBitSet with(MailSender sender, boolean add) {
+        if ( contains(sender) == add ) return this;
+        BitSet copy = (BitSet)bits.clone();
+        if ( add ) {
+            copy.or(ordinals.toBits(Collections.singletonList(sender)));
+        } else {
+            copy.clear(ordinals.getOrdinal(sender));
+        }
+        return new MailSenderBitSet(ordinals, copy);
+    }
+
+    /**
+     * 含まれている宛先のデータのアップグレードを行う
+     * @return アップグレードした宛先のリスト、アップグレードが無かった場合はnull
+     */
+    List<MailSender> upgrade() {
+        ArrayList<MailSender> senders = new ArrayList<MailSender>(size);
+        boolean upgraded = false;
+        for ( MailSender ms : this ) {
+            if ( ms instanceof MailSenderPlayer ) {
+                MailSenderPlayer msUpgraded = ((MailSenderPlayer) ms).getUpgraded();
+                if ( msUpgraded != null ) {
+                    ms = msUpgraded;
+                    upgraded = true;
+                }
+            }
+            senders.add(ms);
+        }
+        return upgraded ? senders : null;
+    }
+
+    /**
+     * @see java.util.AbstractCollection#contains(java.lang.Object)
+     */
+    @Override
+    public boolean contains(Object o) {
+        if ( !(o instanceof MailSender) ) return false;
+        int ordinal = ordinals.getOrdinal((MailSender)o);
+        return ordinal >= 0 && bits.get(ordinal);
+    }
+
+    /**
+     * @see java.util.AbstractCollection#size()
+     */
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * 通し番号の順に宛先を返すイテレータを取得する
+     * @see java.util.AbstractCollection#iterator()
+     */
+    @Override
+    public Iterator<MailSender> iterator() {
+        return new Iterator<MailSender>() {
+
+            private int next = bits.nextSetBit(0);
+
+            public boolean hasNext() {
+                return next >= 0;
+            }
+
+            public MailSender next() {
+                if ( next < 0 ) throw new NoSuchElementException();
+                MailSender sender = ordinals.getSender(next);
+                next = bits.nextSetBit(next + 1);
+                return sender;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+}
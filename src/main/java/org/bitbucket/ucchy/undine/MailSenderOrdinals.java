@@ -0,0 +1,213 @@
+/*
+ * @author     ucchy
+ * @license    LGPLv3
+ * @copyright  Copyright ucchy 2015
+ */
+package org.bitbucket.ucchy.undine;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.bitbucket.ucchy.undine.sender.MailSender;
+
+/**
+ * メールの宛先に、すべてのメールで共通の通し番号を割り当てる表。
+ * 宛先の多いメールは、宛先や既読フラグを、この番号のビット列として保持する。
+ * 番号は一度割り当てたら変わらないので、ファイルには新しい宛先を1行ずつ追記していく。
+ * 宛先は、作成後に変わらないIDである toString の値で識別する。
+ * @author ucchy
+ */
+class MailSenderOrdinals {
+
+    private static final MailSenderOrdinals instance = new MailSenderOrdinals();
+
+    private ConcurrentHashMap<String, Integer> ordinals;
+    private ArrayList<String> names;
+    private Writer writer;
+
+    /**
+     * コンストラクタ
+     */
+    MailSenderOrdinals() {
+        ordinals = new ConcurrentHashMap<String, Integer>();
+        names = new ArrayList<String>();
+    }
+
+    /**
+     * メールデータが共有する表を取得する
+     * @return 表
+     */
+    static MailSenderOrdinals getInstance() {
+        return instance;
+    }
+
+    /**
+     * 指定されたファイルから表をロードし、以降に割り当てた番号をファイルへ追記するようにする
+     * @param file ファイル
+     */
+    synchronized void open(File file) {
+
+        close();
+        ordinals.clear();
+        names.clear();
+
+        if ( file.exists() ) {
+            byte[] data;
+            try {
+                data = Files.readAllBytes(file.toPath());
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            }
+
+            int start = 0;
+            for ( int i = 0; i < data.length; i++ ) {
+                if ( data[i] == '\n' ) {
+                    add(new String(data, start, i - start, StandardCharsets.UTF_8));
+                    start = i + 1;
+                }
+            }
+
+            // 書き込み途中で途切れた行があれば、以降の追記がずれないように切り捨てる
+            if ( start < data.length ) {
+                UndineMailer.getInstance().getLogger().warning(
+                        "Truncated the broken tail of the mail recipient table.");
+                try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                    raf.setLength(start);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        } else if ( file.getParentFile() != null && !file.getParentFile().exists() ) {
+            file.getParentFile().mkdirs();
+        }
+
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(file, true), StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * ファイルを閉じる
+     */
+    synchronized void close() {
+        if ( writer != null ) {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            writer = null;
+        }
+    }
+
+    /**
+     * 指定された宛先の番号を取得する
+     * @param sender 宛先
+     * @return 番号、まだ割り当てられていない場合は-1
+     */
+    int getOrdinal(MailSender sender) {
+        Integer ordinal = ordinals.get(sender.toString());
+        return (ordinal != null) ? ordinal : -1;
+    }
+
+    /**
+     * 指定された番号の宛先を取得する
+     * @param ordinal 番号
+     * @return 宛先、割り当てられていない番号の場合はnull
+     */
+    MailSender getSender(int ordinal) {
+        String name;
+        synchronized (this) {
+            if ( ordinal < 0 || names.size() <= ordinal ) return null;
+            name = names.get(ordinal);
+        }
+        return MailSender.getMailSenderFromString(name);
+    }
+
+    /**
+     * 表がファイルに保存される状態かどうかを返す
+     * @return ファイルに追記できるかどうか
+     */
+    synchronized boolean isPersistent() {
+        return writer != null;
+    }
+
+    /**
+     * 指定された宛先のビット列を作成する。番号の無い宛先には、新しく番号を割り当てる。
+     * @param senders 宛先
+     * @return ビット列
+     * @throws IllegalStateException 新しい番号が必要なのに、表をファイルに保存できない場合
+     */
+    synchronized BitSet toBits(Collection<MailSender> senders) {
+
+        BitSet bits = new BitSet(names.size());
+        boolean added = false;
+        for ( MailSender sender : senders ) {
+            String name = sender.toString();
+            Integer ordinal = ordinals.get(name);
+            if ( ordinal == null ) {
+                // ファイルに残らない番号でビット列を保存すると、再起動後に別の宛先を指してしまう
+                write(name);
+                ordinal = add(name);
+                added = true;
+            }
+            bits.set(ordinal);
+        }
+
+        // ビット列がメールと一緒に保存される前に、番号をファイルへ書き出しておく
+        if ( added ) {
+            try {
+                writer.flush();
+            } catch (IOException e) {
+                e.printStackTrace();
+                close();
+                throw new IllegalStateException("Could not save the mail recipient table.", e);
+            }
+        }
+        return bits;
+    }
+
+    /**
+     * 番号が割り当てられている宛先の数を返す
+     * @return 宛先の数
+     */
+    synchronized int size() {
+        return names.size();
+    }
+
+    private int add(String name) {
+        int ordinal = names.size();
+        names.add(name);
+        ordinals.put(name, ordinal);
+        return ordinal;
+    }
+
+    private void write(String name) {
+        if ( writer == null ) {
+            throw new IllegalStateException("The mail recipient table is not opened.");
+        }
+        try {
+            writer.write(name);
+            writer.write('\n');
+        } catch (IOException e) {
+            e.printStackTrace();
+            close();
+            throw new IllegalStateException("Could not save the mail recipient table.", e);
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * @author     ucchy
+ * @license    LGPLv3
+ * @copyright  Copyright ucchy 2015
+ */
+package org.bitbucket.ucchy.undine;
+
+import java.util.Collection;
+import java.util.List;
+
+import org.bitbucket.ucchy.undine.sender.MailSender;
+
+/**
+ * メールデータの永続化先
+ * @author ucchy
+ */
+public interface MailStorage {
+
+    /**
+     * 保存されているすべてのメールを、ヘッダー部分だけロードする。
+     * 本文は、必要になった時にloadMailでロードされる。
+     * @return メールのリスト
+     */
+    public List<MailData> loadAll();
+
+    /**
+     * 前回のロード以降に、外部で追加・変更・削除されたメールを調べて、
+     * 追加・変更されたメールだけを、ヘッダー部分だけロードする。
+     * @param changed 追加・変更されたメールを格納するリスト
+     * @param deleted 削除されたメールのインデクスを格納するリスト
+     * @return 差分のロードに対応していないストレージの場合はfalse
+     */
+    public boolean loadChanges(List<MailData> changed, List<Integer> deleted);
+
+    /**
+     * 保存されているメールの、最大のインデクスを返す。
+     * 解析できずにロードされなかったメールも含めるので、新しいメールのインデクスの決定に使用できる。
+     * @return 最大のインデクス、メールが無い場合は0
+     */
+    public int getLastIndex();
+
+    /**
+     * 指定されたインデクスのメールを、本文を含めてロードする
+     * @param index インデクス
+     * @return メール、見つからない場合はnull
+     */
+    public MailData loadMail(int index);
+
+    /**
+     * メールを保存する
+     * @param mail メール
+     */
+    public void saveMail(MailData mail);
+
+    /**
+     * メールの既読フラグとゴミ箱フラグだけを保存する。
+     * フラグ以外の内容が変更されていない場合に使用する。
+     * @param mail メール
+     */
+    public void saveFlags(MailData mail);
+
+    /**
+     * 指定されたインデクスのメールを削除する
+     * @param index インデクス
+     */
+    public void deleteMail(int index);
+
+    /**
+     * 指定されたインデクスのメールを、まとめて削除する
+     * @param indexes インデクス
+     */
+    public void deleteMails(Collection<Integer> indexes);
+
+    /**
+     * メールの検索を、ストレージへの問い合わせで行えるかどうかを返す。
+     * 問い合わせは書き込み済みの内容に対して行われるので、呼び出し元は保存待ちの変更を先に書き込むこと。
+     * 書き込みの完了を待つことになるので、問い合わせは非同期スレッドからだけ行うこと。
+     * @return 問い合わせに対応しているかどうか
+     */
+    public boolean isQueryable();
+
+    /**
+     * 指定されたsenderの受信箱に入るメール（全体メールを含み、ゴミ箱に入れたものを除く）の
+     * インデクスを、ストレージに問い合わせて取得する。
+     * フラグがビット列で保存されているメールは、ゴミ箱に入れたものも含まれるので、呼び出し元で除くこと。
+     * @param sender 受信者
+     * @return インデクスのリスト（新しい順）、問い合わせに対応していないストレージの場合はnull
+     */
+    public List<Integer> findInboxMails(MailSender sender);
+
+    /**
+     * 指定されたsenderが送信したメールのうち、添付アイテムが残っているものの件数を、
+     * ストレージに問い合わせて取得する。
+     * @param sender 送信者
+     * @return 件数、問い合わせに対応していないストレージの場合は-1
+     */
+    public int countAttachBoxUsage(MailSender sender);
+
+    /**
+     * 指定された日時以前に送信されたメールのインデクスを、ストレージに問い合わせて取得する。
+     * @param limit 日時（ミリ秒）
+     * @return インデクスのリスト、問い合わせに対応していないストレージの場合はnull
+     */
+    public List<Integer> findExpiredMails(long limit);
+
+    /**
+     * 不要になったデータを整理する。定期的に非同期スレッドから呼び出される。
+     * メールの一覧は、整理中の書き込みと食い違わないように、ストレージ側で必要な時点に写し取る。
+     * @param mails 現在有効なすべてのメール（メールの追加・削除が反映される一覧）
+     */
+    public void compact(Collection<MailData> mails);
+
+    /**
+     * 開いているファイルなどを閉じる
+     */
+    public void close();
+}
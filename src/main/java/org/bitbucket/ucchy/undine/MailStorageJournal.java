@@ -0,0 +1,733 @@
+/*
+ * @author     ucchy
+ * @license    LGPLv3
+ * @copyright  Copyright ucchy 2015
+ */
+package org.bitbucket.ucchy.undine;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.zip.CRC32;
+
+import org.bitbucket.ucchy.undine.sender.MailSender;
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.bukkit.configuration.file.YamlConfiguration;
+
+/**
+ * 追記型のジャーナルファイルへ保存するストレージ。
+ * メールの保存や削除は、セグメントファイルの末尾へのレコード追記として記録され、
+ * 既読フラグなどの変更は、フラグだけの小さなレコードとして記録される。
+ * 古いレコードは、compactで全メールのスナップショットに置き換えられる。
+ * @author ucchy
+ */
+public class MailStorageJournal implements MailStorage {
+
+    private static final byte RECORD_PUT = 1;
+    private static final byte RECORD_FLAGS = 2;
+    private static final byte RECORD_DELETE = 3;
+    private static final byte RECORD_CLEAR = 4;
+
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /** 1セグメントの最大サイズ。これを超えたら次のセグメントへ切り替える。 */
+    private static final long SEGMENT_MAX_SIZE = 8L * 1024 * 1024;
+
+    /** スナップショット以降の追記量が、この値以下ならコンパクションしない。 */
+    private static final long COMPACT_MIN_SIZE = 1024L * 1024;
+
+    private File folder;
+    private File legacyFolder;
+
+    private DataOutputStream out;
+    private File activeFile;
+    private long activeSize;
+    private int nextSegment;
+
+    /** メールごとの、最新のPUTレコードの位置。本文の遅延ロードに使用する。 */
+    private HashMap<Integer, RecordPosition> positions;
+
+    private long snapshotSize;
+    private long appendedSize;
+
+    private final Object compactLock = new Object();
+
+    /**
+     * コンストラクタ
+     * @param folder ジャーナルファイルを格納するフォルダ
+     * @param legacyFolder ジャーナルが無いときに、インポートするYamlファイルのフォルダ
+     */
+    public MailStorageJournal(File folder, File legacyFolder) {
+        this.folder = folder;
+        this.legacyFolder = legacyFolder;
+        this.nextSegment = 1;
+        this.positions = new HashMap<Integer, RecordPosition>();
+    }
+
+    /**
+     * 保存されているすべてのメールを、ヘッダー部分だけロードする
+     * @return メールのリスト
+     * @see org.bitbucket.ucchy.undine.MailStorage#loadAll()
+     */
+    @Override
+    public List<MailData> loadAll() {
+
+        synchronized (compactLock) {
+            synchronized (this) {
+
+                closeWriter();
+                if ( !folder.exists() ) {
+                    folder.mkdirs();
+                }
+
+                // 書き込み途中で終了したスナップショットは捨てる
+                for ( File temp : listFiles(TEMP_SUFFIX) ) {
+                    temp.delete();
+                }
+
+                TreeMap<Integer, Entry> state = new TreeMap<Integer, Entry>();
+                snapshotSize = 0;
+                appendedSize = 0;
+
+                File[] segments = listFiles(SEGMENT_SUFFIX);
+                for ( File segment : segments ) {
+                    replay(segment, state);
+                }
+                if ( segments.length > 0 ) {
+                    nextSegment = getSegmentNumber(segments[segments.length - 1]) + 1;
+                }
+
+                positions = new HashMap<Integer, RecordPosition>();
+                for ( Map.Entry<Integer, Entry> e : state.entrySet() ) {
+                    positions.put(e.getKey(), e.getValue().position);
+                }
+
+                // レコードの解析は、複数スレッドで並列に行う
+                List<Callable<MailData>> tasks = new ArrayList<Callable<MailData>>(state.size());
+                for ( final Entry entry : state.values() ) {
+                    tasks.add(new Callable<MailData>() {
+                        public MailData call() {
+                            return entry.toMailData();
+                        }
+                    });
+                }
+                List<MailData> result = ParallelLoader.invokeAll(tasks);
+
+                // ジャーナルがまだ無いなら、Yamlファイルのメールを取り込む
+                if ( segments.length == 0 && legacyFolder != null ) {
+                    List<MailData> legacy = new MailStorageYaml(legacyFolder).loadAll(false);
+                    if ( legacy.size() > 0 ) {
+                        writeSnapshot(nextSegment++, legacy,
+                                new HashMap<Integer, RecordPosition>(), positions);
+                        UndineMailer.getInstance().getLogger().info(
+                                "Imported " + legacy.size() + " mails into the mail journal.");
+                        for ( MailData mail : legacy ) {
+                            mail.unloadBody();
+                        }
+                        result = legacy;
+                    }
+                }
+
+                return result;
+            }
+        }
+    }
+
+    /**
+     * メールを保存する
+     * @param mail メール
+     * @see org.bitbucket.ucchy.undine.MailStorage#saveMail(org.bitbucket.ucchy.undine.MailData)
+     */
+    @Override
+    public void saveMail(MailData mail) {
+        // 本文のロードが発生することがあるので、エンコードはロックの外で行う
+        byte[] payload = encodeMail(mail);
+        synchronized (this) {
+            append(RECORD_PUT, mail.getIndex(), payload);
+        }
+    }
+
+    /**
+     * 差分のロードには対応していないので、何もせずにfalseを返す
+     * @param changed 追加・変更されたメールを格納するリスト
+     * @param deleted 削除されたメールのインデクスを格納するリスト
+     * @return false
+     * @see org.bitbucket.ucchy.undine.MailStorage#loadChanges(java.util.List, java.util.List)
+     */
+    @Override
+    public boolean loadChanges(List<MailData> changed, List<Integer> deleted) {
+        return false;
+    }
+
+    /**
+     * 保存されているメールの、最大のインデクスを、ジャーナルのレコードから求めて返す
+     * @return 最大のインデクス、メールが無い場合は0
+     * @see org.bitbucket.ucchy.undine.MailStorage#getLastIndex()
+     */
+    @Override
+    public synchronized int getLastIndex() {
+        int last = 0;
+        for ( int index : positions.keySet() ) {
+            last = Math.max(last, index);
+        }
+        return last;
+    }
+
+    /**
+     * 指定されたインデクスのメールを、本文を含めてロードする
+     * @param index インデクス
+     * @return メール、見つからない場合はnull
+     * @see org.bitbucket.ucchy.undine.MailStorage#loadMail(int)
+     */
+    @Override
+    public synchronized MailData loadMail(int index) {
+
+        RecordPosition position = positions.get(index);
+        if ( position == null ) {
+            return null;
+        }
+
+        YamlConfiguration config = new YamlConfiguration();
+        try {
+            config.loadFromString(new String(position.read(), StandardCharsets.UTF_8));
+        } catch (InvalidConfigurationException | IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+        return MailData.loadFromConfigSection(config);
+    }
+
+    /**
+     * メールの既読フラグとゴミ箱フラグだけを保存する
+     * @param mail メール
+     * @see org.bitbucket.ucchy.undine.MailStorage#saveFlags(org.bitbucket.ucchy.undine.MailData)
+     */
+    @Override
+    public void saveFlags(MailData mail) {
+        byte[] payload = encodeFlags(mail);
+        synchronized (this) {
+            append(RECORD_FLAGS, mail.getIndex(), payload);
+        }
+    }
+
+    /**
+     * 指定されたインデクスのメールを削除する
+     * @param index インデクス
+     * @see org.bitbucket.ucchy.undine.MailStorage#deleteMail(int)
+     */
+    @Override
+    public synchronized void deleteMail(int index) {
+        append(RECORD_DELETE, index, new byte[0]);
+        positions.remove(index);
+    }
+
+    /**
+     * 指定されたインデクスのメールを、まとめて削除する。
+     * 削除レコードはまとめて書き込み、最後に1回だけフラッシュする。
+     * @param indexes インデクス
+     * @see org.bitbucket.ucchy.undine.MailStorage#deleteMails(java.util.Collection)
+     */
+    @Override
+    public synchronized void deleteMails(Collection<Integer> indexes) {
+        for ( int index : indexes ) {
+            write(RECORD_DELETE, index, new byte[0]);
+            positions.remove(index);
+        }
+        flushWriter();
+    }
+
+    /**
+     * 問い合わせには対応していないので、falseを返す
+     * @return false
+     * @see org.bitbucket.ucchy.undine.MailStorage#isQueryable()
+     */
+    @Override
+    public boolean isQueryable() {
+        return false;
+    }
+
+    /**
+     * 問い合わせには対応していないので、nullを返す
+     * @param sender 受信者
+     * @return null
+     * @see org.bitbucket.ucchy.undine.MailStorage#findInboxMails(org.bitbucket.ucchy.undine.sender.MailSender)
+     */
+    @Override
+    public List<Integer> findInboxMails(MailSender sender) {
+        return null;
+    }
+
+    /**
+     * 問い合わせには対応していないので、-1を返す
+     * @param sender 送信者
+     * @return -1
+     * @see org.bitbucket.ucchy.undine.MailStorage#countAttachBoxUsage(org.bitbucket.ucchy.undine.sender.MailSender)
+     */
+    @Override
+    public int countAttachBoxUsage(MailSender sender) {
+        return -1;
+    }
+
+    /**
+     * 問い合わせには対応していないので、nullを返す
+     * @param limit 日時（ミリ秒）
+     * @return null
+     * @see org.bitbucket.ucchy.undine.MailStorage#findExpiredMails(long)
+     */
+    @Override
+    public List<Integer> findExpiredMails(long limit) {
+        return null;
+    }
+
+    /**
+     * スナップショット以降の追記量が十分に大きくなっていたら、
+     * 現在のメールをスナップショットとして書き出し、古いセグメントを削除する。
+     * メールの一覧は、新しいセグメントへ切り替えた後に写し取るので、
+     * 呼び出し元は写しではなく、メールの追加・削除が反映される一覧をそのまま渡すこと。
+     * @param mails 現在有効なすべてのメール
+     * @see org.bitbucket.ucchy.undine.MailStorage#compact(java.util.Collection)
+     */
+    @Override
+    public void compact(Collection<MailData> mails) {
+
+        synchronized (compactLock) {
+
+            HashSet<File> old = new HashSet<File>();
+            HashMap<Integer, RecordPosition> current;
+            ArrayList<MailData> snapshot;
+            int snapshotNumber;
+
+            // 以降の追記は新しいセグメントに行われるようにしてから、ロックを外す。
+            // 古いセグメントに書かれた変更が、必ずスナップショットに含まれるように、
+            // メールの一覧は切り替えた後に写し取る。
+            synchronized (this) {
+                if ( appendedSize <= Math.max(snapshotSize, COMPACT_MIN_SIZE) ) {
+                    return;
+                }
+                closeWriter();
+                old.addAll(Arrays.asList(listFiles(SEGMENT_SUFFIX)));
+                current = new HashMap<Integer, RecordPosition>(positions);
+                snapshot = new ArrayList<MailData>(mails);
+                snapshotNumber = nextSegment++;
+                appendedSize = 0;
+            }
+
+            HashMap<Integer, RecordPosition> written = new HashMap<Integer, RecordPosition>();
+            long size = writeSnapshot(snapshotNumber, snapshot, current, written);
+            if ( size < 0 ) {
+                return;
+            }
+
+            // 古いセグメントを指している位置を、スナップショットの位置に置き換えてから削除する
+            synchronized (this) {
+                snapshotSize = size;
+                for ( Map.Entry<Integer, RecordPosition> e : written.entrySet() ) {
+                    RecordPosition position = positions.get(e.getKey());
+                    if ( position != null && old.contains(position.file) ) {
+                        positions.put(e.getKey(), e.getValue());
+                    }
+                }
+                for ( File file : old ) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * 開いているセグメントを閉じる
+     * @see org.bitbucket.ucchy.undine.MailStorage#close()
+     */
+    @Override
+    public synchronized void close() {
+        closeWriter();
+    }
+
+    /**
+     * 現在のセグメントの末尾に、レコードを追記する
+     * @param type レコード種別
+     * @param index メールのインデクス
+     * @param payload レコードの内容
+     */
+    private void append(byte type, int index, byte[] payload) {
+        write(type, index, payload);
+        flushWriter();
+    }
+
+    /**
+     * 現在のセグメントの末尾に、レコードを書き込む。フラッシュは行わない。
+     * @param type レコード種別
+     * @param index メールのインデクス
+     * @param payload レコードの内容
+     */
+    private void write(byte type, int index, byte[] payload) {
+
+        try {
+            if ( out == null || activeSize >= SEGMENT_MAX_SIZE ) {
+                closeWriter();
+                activeFile = getSegmentFile(nextSegment++, SEGMENT_SUFFIX);
+                out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(activeFile, true)));
+                activeSize = activeFile.length();
+            }
+            long size = writeRecord(out, type, index, payload);
+            if ( type == RECORD_PUT ) {
+                positions.put(index, new RecordPosition(activeFile, activeSize, payload.length));
+            }
+            activeSize += size;
+            appendedSize += size;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 指定されたメールを、スナップショットとしてセグメントに書き出す。
+     * 書き出しは一時ファイルに対して行い、完了してからセグメントとしてリネームする。
+     * 本文がロードされていないメールは、本文をロードせずに、既存のレコードをそのまま複製する。
+     * @param number セグメント番号
+     * @param mails メール
+     * @param current 既存のレコードの位置
+     * @param written 書き出したPUTレコードの位置を格納するマップ
+     * @return 書き出したセグメントのサイズ、失敗した場合は-1
+     */
+    private long writeSnapshot(int number, Collection<MailData> mails,
+            HashMap<Integer, RecordPosition> current, HashMap<Integer, RecordPosition> written) {
+
+        File temp = getSegmentFile(number, TEMP_SUFFIX);
+        File file = getSegmentFile(number, SEGMENT_SUFFIX);
+        long size = 0;
+
+        try (DataOutputStream snapshot = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temp)))) {
+            size += writeRecord(snapshot, RECORD_CLEAR, 0, new byte[0]);
+            for ( MailData mail : mails ) {
+                if ( mail.getIndex() == 0 ) continue;
+                RecordPosition position = current.get(mail.getIndex());
+                if ( !mail.isBodyLoaded() && position != null ) {
+                    byte[] payload = position.read();
+                    written.put(mail.getIndex(), new RecordPosition(file, size, payload.length));
+                    size += writeRecord(snapshot, RECORD_PUT, mail.getIndex(), payload);
+                    size += writeRecord(snapshot, RECORD_FLAGS, mail.getIndex(), encodeFlags(mail));
+                } else {
+                    byte[] payload = encodeMail(mail);
+                    written.put(mail.getIndex(), new RecordPosition(file, size, payload.length));
+                    size += writeRecord(snapshot, RECORD_PUT, mail.getIndex(), payload);
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            temp.delete();
+            return -1;
+        }
+
+        if ( !temp.renameTo(file) ) {
+            temp.delete();
+            return -1;
+        }
+        return file.length();
+    }
+
+    /**
+     * セグメントのレコードを読み込んで、状態に反映する。
+     * 末尾に壊れたレコードがある場合は、そのレコード以降を切り捨てる。
+     * @param segment セグメントファイル
+     * @param state 状態
+     */
+    private void replay(File segment, TreeMap<Integer, Entry> state) {
+
+        long position = 0;
+        boolean broken = false;
+        boolean isSnapshot = false;
+
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(segment)))) {
+
+            while ( true ) {
+                byte type;
+                try {
+                    type = in.readByte();
+                } catch (EOFException e) {
+                    break;
+                }
+
+                int index = in.readInt();
+                int length = in.readInt();
+                if ( length < 0 || length > SEGMENT_MAX_SIZE ) {
+                    broken = true;
+                    break;
+                }
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                long crc = in.readLong();
+                if ( crc != checksum(type, index, payload) ) {
+                    broken = true;
+                    break;
+                }
+
+                switch ( type ) {
+                case RECORD_CLEAR:
+                    state.clear();
+                    if ( position == 0 ) {
+                        isSnapshot = true;
+                    }
+                    break;
+                case RECORD_PUT:
+                    state.put(index, new Entry(payload,
+                            new RecordPosition(segment, position, payload.length)));
+                    break;
+                case RECORD_FLAGS:
+                    Entry entry = state.get(index);
+                    if ( entry != null ) {
+                        entry.flags = payload;
+                    }
+                    break;
+                case RECORD_DELETE:
+                    state.remove(index);
+                    break;
+                default:
+                    broken = true;
+                    break;
+                }
+                if ( broken ) break;
+
+                position += recordSize(payload);
+            }
+
+        } catch (EOFException e) {
+            broken = true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+
+        if ( broken ) {
+            UndineMailer.getInstance().getLogger().warning(
+                    "Mail journal " + segment.getName() + " has a broken record at "
+                    + position + ". The rest of the segment was discarded.");
+            try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+                raf.setLength(position);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        if ( isSnapshot ) {
+            snapshotSize = position;
+            appendedSize = 0;
+        } else {
+            appendedSize += position;
+        }
+    }
+
+    private void flushWriter() {
+        if ( out == null ) return;
+        try {
+            out.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void closeWriter() {
+        if ( out == null ) return;
+        try {
+            out.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        out = null;
+    }
+
+    private File[] listFiles(final String suffix) {
+        File[] files = folder.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.endsWith(suffix);
+            }
+        });
+        if ( files == null ) {
+            return new File[0];
+        }
+        Arrays.sort(files);
+        return files;
+    }
+
+    private File getSegmentFile(int number, String suffix) {
+        return new File(folder, String.format("%1$08d", number) + suffix);
+    }
+
+    private static int getSegmentNumber(File file) {
+        String name = file.getName();
+        try {
+            return Integer.parseInt(name.substring(0, name.indexOf('.')));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static long writeRecord(DataOutputStream out, byte type, int index, byte[] payload)
+            throws IOException {
+        out.writeByte(type);
+        out.writeInt(index);
+        out.writeInt(payload.length);
+        out.write(payload);
+        out.writeLong(checksum(type, index, payload));
+        return recordSize(payload);
+    }
+
+    private static long recordSize(byte[] payload) {
+        return 1 + 4 + 4 + payload.length + 8;
+    }
+
+    private static long checksum(byte type, int index, byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(index >>> 24);
+        crc.update(index >>> 16);
+        crc.update(index >>> 8);
+        crc.update(index);
+        crc.update(payload);
+        return crc.getValue();
+    }
+
+    private static byte[] encodeMail(MailData mail) {
+        YamlConfiguration config = new YamlConfiguration();
+        mail.saveToConfigSection(config);
+        return config.saveToString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] encodeFlags(MailData mail) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream data = new DataOutputStream(bytes)) {
+            // フラグのセットは変更時に差し替えられるので、取得したセットの件数はずれない
+            writeFlags(data, mail.getReadFlagSet());
+            writeFlags(data, mail.getTrashFlagSet());
+        } catch (IOException e) {
+            // ByteArrayOutputStreamへの書き込みでは発生しない
+            e.printStackTrace();
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void writeFlags(DataOutputStream data, Set<MailSender> flags) throws IOException {
+        if ( flags instanceof MailSenderBitSet ) {
+            // ビット列のセットは、件数の代わりに-1を書いてから、ビット列の文字列を書く
+            byte[] bits = ((MailSenderBitSet)flags).encode().getBytes(StandardCharsets.UTF_8);
+            data.writeInt(-1);
+            data.writeInt(bits.length);
+            data.write(bits);
+            return;
+        }
+        data.writeInt(flags.size());
+        for ( MailSender ms : flags ) {
+            data.writeUTF(ms.toString());
+        }
+    }
+
+    private static void readFlags(DataInputStream data, YamlConfiguration config, String key)
+            throws IOException {
+        int size = data.readInt();
+        if ( size < 0 ) {
+            byte[] bits = new byte[data.readInt()];
+            data.readFully(bits);
+            config.set(key, null);
+            config.set(key + "Bits", new String(bits, StandardCharsets.UTF_8));
+            return;
+        }
+        List<String> list = new ArrayList<String>(size);
+        for ( int i=0; i<size; i++ ) {
+            list.add(data.readUTF());
+        }
+        config.set(key, list);
+        config.set(key + "Bits", null);
+    }
+
+    /**
+     * PUTレコードの位置
+     */
+    private static class RecordPosition {
+
+        private File file;
+        private long offset;
+        private int length;
+
+        /**
+         * コンストラクタ
+         * @param file セグメントファイル
+         * @param offset レコードの先頭位置
+         * @param length レコードの内容の長さ
+         */
+        private RecordPosition(File file, long offset, int length) {
+            this.file = file;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        /**
+         * レコードの内容を読み込む
+         * @return レコードの内容
+         * @throws IOException
+         */
+        private byte[] read() throws IOException {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+                // 種別、インデクス、長さの後ろに、内容が続く
+                raf.seek(offset + 1 + 4 + 4);
+                byte[] payload = new byte[length];
+                raf.readFully(payload);
+                return payload;
+            }
+        }
+    }
+
+    /**
+     * リプレイ中の、1メール分の状態
+     */
+    private static class Entry {
+
+        private byte[] body;
+        private byte[] flags;
+        private RecordPosition position;
+
+        private Entry(byte[] body, RecordPosition position) {
+            this.body = body;
+            this.position = position;
+        }
+
+        private MailData toMailData() {
+            YamlConfiguration config = new YamlConfiguration();
+            try {
+                config.loadFromString(new String(body, StandardCharsets.UTF_8));
+                if ( flags != null ) {
+                    DataInputStream data = new DataInputStream(new ByteArrayInputStream(flags));
+                    readFlags(data, config, "readFlags");
+                    readFlags(data, config, "trashFlags");
+                }
+            } catch (InvalidConfigurationException | IOException e) {
+                e.printStackTrace();
+                return null;
+            }
+            return MailData.loadHeaderFromConfigSection(config);
+        }
+    }
+}
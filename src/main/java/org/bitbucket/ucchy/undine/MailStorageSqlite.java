@@ -0,0 +1,570 @@
+/*
+ * @author     ucchy
+ * @license    LGPLv3
+ * @copyright  Copyright ucchy 2015
+ */
+package org.bitbucket.ucchy.undine;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+import org.bitbucket.ucchy.undine.sender.MailSender;
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.bukkit.configuration.file.YamlConfiguration;
+
+/**
+ * 組み込みデータベースへ保存するストレージ。
+ * メール本体はYaml文字列として保存し、宛先と既読・ゴミ箱フラグは、
+ * 索引付きの別テーブルに保存する。
+ * 受信箱、添付ボックスの使用数、期限切れのメールは、SQLで問い合わせることができる。
+ * @author ucchy
+ */
+public class MailStorageSqlite implements MailStorage {
+
+    private static final int FLAG_READ = 1;
+    private static final int FLAG_TRASH = 2;
+
+    private UndineDatabase database;
+    private File legacyFolder;
+
+    /**
+     * コンストラクタ
+     * @param database データベース
+     * @param legacyFolder データベースが空のときに、インポートするYamlファイルのフォルダ
+     */
+    public MailStorageSqlite(UndineDatabase database, File legacyFolder) {
+        this.database = database;
+        this.legacyFolder = legacyFolder;
+    }
+
+    /**
+     * 保存されているすべてのメールを、ヘッダー部分だけロードする
+     * @return メールのリスト
+     * @see org.bitbucket.ucchy.undine.MailStorage#loadAll()
+     */
+    @Override
+    public List<MailData> loadAll() {
+
+        try {
+            // データベースがまだ空なら、Yamlファイルのメールを取り込む
+            if ( database.isEmpty("mails") && legacyFolder != null ) {
+                List<MailData> legacy = new MailStorageYaml(legacyFolder).loadAll(false);
+                if ( legacy.size() > 0 ) {
+                    importMails(legacy);
+                    UndineMailer.getInstance().getLogger().info(
+                            "Imported " + legacy.size() + " mails into the database.");
+                    for ( MailData mail : legacy ) {
+                        mail.unloadBody();
+                    }
+                    return legacy;
+                }
+            }
+
+            List<Callable<MailData>> tasks = database.execute(
+                    new UndineDatabase.Work<List<Callable<MailData>>>() {
+                public List<Callable<MailData>> run(Connection connection) throws SQLException {
+                    return readAll(connection);
+                }
+            });
+
+            // 本文の解析は、データベースのロックを外してから、複数スレッドで並列に行う
+            List<MailData> loaded = ParallelLoader.invokeAll(tasks);
+            fillAllMailColumn(loaded);
+            return loaded;
+
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return new ArrayList<MailData>();
+        }
+    }
+
+    /**
+     * メールを保存する
+     * @param mail メール
+     * @see org.bitbucket.ucchy.undine.MailStorage#saveMail(org.bitbucket.ucchy.undine.MailData)
+     */
+    @Override
+    public void saveMail(final MailData mail) {
+
+        // 本文のロードが発生することがあるので、エンコードはロックの外で行う
+        final String data = encodeMail(mail);
+
+        try {
+            database.transaction(new UndineDatabase.Work<Void>() {
+                public Void run(Connection connection) throws SQLException {
+                    writeMail(connection, mail, data);
+                    return null;
+                }
+            });
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 差分のロードには対応していないので、何もせずにfalseを返す
+     * @param changed 追加・変更されたメールを格納するリスト
+     * @param deleted 削除されたメールのインデクスを格納するリスト
+     * @return false
+     * @see org.bitbucket.ucchy.undine.MailStorage#loadChanges(java.util.List, java.util.List)
+     */
+    @Override
+    public boolean loadChanges(List<MailData> changed, List<Integer> deleted) {
+        return false;
+    }
+
+    /**
+     * 保存されているメールの、最大のインデクスを返す
+     * @return 最大のインデクス、メールが無い場合は0
+     * @see org.bitbucket.ucchy.undine.MailStorage#getLastIndex()
+     */
+    @Override
+    public int getLastIndex() {
+        try {
+            return database.execute(new UndineDatabase.Work<Integer>() {
+                public Integer run(Connection connection) throws SQLException {
+                    try (Statement statement = connection.createStatement();
+                            ResultSet rs = statement.executeQuery("SELECT MAX(idx) FROM mails")) {
+                        return rs.next() ? rs.getInt(1) : 0;
+                    }
+                }
+            });
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return 0;
+        }
+    }
+
+    /**
+     * 指定されたインデクスのメールを、本文を含めてロードする
+     * @param index インデクス
+     * @return メール、見つからない場合はnull
+     * @see org.bitbucket.ucchy.undine.MailStorage#loadMail(int)
+     */
+    @Override
+    public MailData loadMail(final int index) {
+
+        String data = null;
+        try {
+            data = database.execute(new UndineDatabase.Work<String>() {
+                public String run(Connection connection) throws SQLException {
+                    try (PreparedStatement statement = connection.prepareStatement(
+                            "SELECT data FROM mails WHERE idx = ?")) {
+                        statement.setInt(1, index);
+                        try (ResultSet rs = statement.executeQuery()) {
+                            return rs.next() ? rs.getString(1) : null;
+                        }
+                    }
+                }
+            });
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+
+        if ( data == null ) {
+            return null;
+        }
+
+        YamlConfiguration config = new YamlConfiguration();
+        try {
+            config.loadFromString(data);
+        } catch (InvalidConfigurationException e) {
+            e.printStackTrace();
+            return null;
+        }
+        return MailData.loadFromConfigSection(config);
+    }
+
+    /**
+     * メールの既読フラグとゴミ箱フラグだけを保存する
+     * @param mail メール
+     * @see org.bitbucket.ucchy.undine.MailStorage#saveFlags(org.bitbucket.ucchy.undine.MailData)
+     */
+    @Override
+    public void saveFlags(final MailData mail) {
+
+        try {
+            database.transaction(new UndineDatabase.Work<Void>() {
+                public Void run(Connection connection) throws SQLException {
+                    writeFlags(connection, mail);
+                    return null;
+                }
+            });
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 指定されたインデクスのメールを削除する
+     * @param index インデクス
+     * @see org.bitbucket.ucchy.undine.MailStorage#deleteMail(int)
+     */
+    @Override
+    public void deleteMail(int index) {
+        ArrayList<Integer> indexes = new ArrayList<Integer>();
+        indexes.add(index);
+        deleteMails(indexes);
+    }
+
+    /**
+     * 指定されたインデクスのメールを、1つのトランザクションでまとめて削除する
+     * @param indexes インデクス
+     * @see org.bitbucket.ucchy.undine.MailStorage#deleteMails(java.util.Collection)
+     */
+    @Override
+    public void deleteMails(final Collection<Integer> indexes) {
+
+        try {
+            database.transaction(new UndineDatabase.Work<Void>() {
+                public Void run(Connection connection) throws SQLException {
+                    deleteRows(connection, "DELETE FROM mails WHERE idx = ?", indexes);
+                    deleteRows(connection, "DELETE FROM mail_recipients WHERE idx = ?", indexes);
+                    deleteRows(connection, "DELETE FROM mail_flags WHERE idx = ?", indexes);
+                    deleteRows(connection, "DELETE FROM mail_flag_bits WHERE idx = ?", indexes);
+                    return null;
+                }
+            });
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @see org.bitbucket.ucchy.undine.MailStorage#isQueryable()
+     */
+    @Override
+    public boolean isQueryable() {
+        return true;
+    }
+
+    /**
+     * 指定されたsenderの受信箱に入るメールのインデクスを、SQLで問い合わせて取得する
+     * @param sender 受信者
+     * @return インデクスのリスト（新しい順）、問い合わせに失敗した場合はnull
+     * @see org.bitbucket.ucchy.undine.MailStorage#findInboxMails(org.bitbucket.ucchy.undine.sender.MailSender)
+     */
+    @Override
+    public List<Integer> findInboxMails(MailSender sender) {
+        final String member = sender.toString();
+        return queryIndexes(new UndineDatabase.Work<List<Integer>>() {
+            public List<Integer> run(Connection connection) throws SQLException {
+                try (PreparedStatement statement = connection.prepareStatement(
+                        "SELECT m.idx FROM mails m WHERE (m.all_mail = 1 OR EXISTS ("
+                        + "SELECT 1 FROM mail_recipients r WHERE r.idx = m.idx AND r.recipient = ?)) "
+                        + "AND NOT EXISTS (SELECT 1 FROM mail_flags f "
+                        + "WHERE f.idx = m.idx AND f.member = ? AND f.flag = " + FLAG_TRASH + ") "
+                        + "ORDER BY m.date DESC, m.idx DESC")) {
+                    statement.setString(1, member);
+                    statement.setString(2, member);
+                    return readIndexes(statement);
+                }
+            }
+        });
+    }
+
+    /**
+     * 指定されたsenderが送信した、添付アイテムが残っているメールの件数を、SQLで問い合わせて取得する
+     * @param sender 送信者
+     * @return 件数、問い合わせに失敗した場合は-1
+     * @see org.bitbucket.ucchy.undine.MailStorage#countAttachBoxUsage(org.bitbucket.ucchy.undine.sender.MailSender)
+     */
+    @Override
+    public int countAttachBoxUsage(MailSender sender) {
+        final String from = sender.toString();
+        try {
+            return database.execute(new UndineDatabase.Work<Integer>() {
+                public Integer run(Connection connection) throws SQLException {
+                    try (PreparedStatement statement = connection.prepareStatement(
+                            "SELECT COUNT(*) FROM mails WHERE sender = ? AND attachments > 0")) {
+                        statement.setString(1, from);
+                        try (ResultSet rs = statement.executeQuery()) {
+                            return rs.next() ? rs.getInt(1) : 0;
+                        }
+                    }
+                }
+            });
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return -1;
+        }
+    }
+
+    /**
+     * 指定された日時以前に送信されたメールのインデクスを、SQLで問い合わせて取得する
+     * @param limit 日時（ミリ秒）
+     * @return インデクスのリスト、問い合わせに失敗した場合はnull
+     * @see org.bitbucket.ucchy.undine.MailStorage#findExpiredMails(long)
+     */
+    @Override
+    public List<Integer> findExpiredMails(final long limit) {
+        return queryIndexes(new UndineDatabase.Work<List<Integer>>() {
+            public List<Integer> run(Connection connection) throws SQLException {
+                try (PreparedStatement statement = connection.prepareStatement(
+                        "SELECT idx FROM mails WHERE date <= ? ORDER BY date")) {
+                    statement.setLong(1, limit);
+                    return readIndexes(statement);
+                }
+            }
+        });
+    }
+
+    /**
+     * 不要になったデータを整理する。このストレージでは何もしない。
+     * @param mails 現在有効なすべてのメール
+     * @see org.bitbucket.ucchy.undine.MailStorage#compact(java.util.Collection)
+     */
+    @Override
+    public void compact(Collection<MailData> mails) {
+        // do nothing.
+    }
+
+    /**
+     * 開いているファイルなどを閉じる。
+     * データベースはプラグインが管理しているので、ここでは閉じない。
+     * @see org.bitbucket.ucchy.undine.MailStorage#close()
+     */
+    @Override
+    public void close() {
+        // do nothing.
+    }
+
+    /**
+     * Yamlファイルから読み込んだメールを、1つのトランザクションで書き込む
+     * @param mails メール
+     * @throws SQLException
+     */
+    private void importMails(final List<MailData> mails) throws SQLException {
+        database.transaction(new UndineDatabase.Work<Void>() {
+            public Void run(Connection connection) throws SQLException {
+                for ( MailData mail : mails ) {
+                    writeMail(connection, mail, encodeMail(mail));
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * 全てのメールとフラグを読み込んで、ヘッダーを解析するタスクを作成する
+     * @param connection 接続
+     * @return タスクのリスト
+     * @throws SQLException
+     */
+    private static List<Callable<MailData>> readAll(Connection connection) throws SQLException {
+
+        List<Callable<MailData>> tasks = new ArrayList<Callable<MailData>>();
+        HashMap<Integer, List<String>> reads = new HashMap<Integer, List<String>>();
+        HashMap<Integer, List<String>> trashes = new HashMap<Integer, List<String>>();
+        HashMap<Integer, String[]> bits = new HashMap<Integer, String[]>();
+
+        try (Statement statement = connection.createStatement();
+                ResultSet rs = statement.executeQuery(
+                        "SELECT idx, member, flag FROM mail_flags")) {
+            while ( rs.next() ) {
+                HashMap<Integer, List<String>> map =
+                        (rs.getInt(3) == FLAG_READ) ? reads : trashes;
+                List<String> list = map.get(rs.getInt(1));
+                if ( list == null ) {
+                    list = new ArrayList<String>();
+                    map.put(rs.getInt(1), list);
+                }
+                list.add(rs.getString(2));
+            }
+        }
+
+        try (Statement statement = connection.createStatement();
+                ResultSet rs = statement.executeQuery(
+                        "SELECT idx, reads, trashes FROM mail_flag_bits")) {
+            while ( rs.next() ) {
+                bits.put(rs.getInt(1), new String[]{rs.getString(2), rs.getString(3)});
+            }
+        }
+
+        try (Statement statement = connection.createStatement();
+                ResultSet rs = statement.executeQuery(
+                        "SELECT idx, data FROM mails ORDER BY idx")) {
+            while ( rs.next() ) {
+                final int index = rs.getInt(1);
+                final String data = rs.getString(2);
+                final List<String> readFlags = getOrEmpty(reads, index);
+                final List<String> trashFlags = getOrEmpty(trashes, index);
+                final String[] flagBits = bits.get(index);
+                tasks.add(new Callable<MailData>() {
+                    public MailData call() throws InvalidConfigurationException {
+                        YamlConfiguration config = new YamlConfiguration();
+                        config.loadFromString(data);
+                        config.set("readFlags", readFlags);
+                        config.set("trashFlags", trashFlags);
+                        config.set("readFlagsBits", flagBits != null ? flagBits[0] : null);
+                        config.set("trashFlagsBits", flagBits != null ? flagBits[1] : null);
+                        return MailData.loadHeaderFromConfigSection(config);
+                    }
+                });
+            }
+        }
+
+        return tasks;
+    }
+
+    /**
+     * 古いデータベースから移行した、全体メールの列の値が未確定の行を、ロードしたメールで埋める
+     * @param mails ロードしたメール
+     * @throws SQLException
+     */
+    private void fillAllMailColumn(final List<MailData> mails) throws SQLException {
+
+        database.transaction(new UndineDatabase.Work<Void>() {
+            public Void run(Connection connection) throws SQLException {
+                try (Statement statement = connection.createStatement();
+                        ResultSet rs = statement.executeQuery(
+                                "SELECT 1 FROM mails WHERE all_mail < 0 LIMIT 1")) {
+                    if ( !rs.next() ) {
+                        return null;
+                    }
+                }
+                try (PreparedStatement statement = connection.prepareStatement(
+                        "UPDATE mails SET all_mail = ? WHERE idx = ? AND all_mail < 0")) {
+                    for ( MailData mail : mails ) {
+                        statement.setInt(1, mail.isAllMail() ? 1 : 0);
+                        statement.setInt(2, mail.getIndex());
+                        statement.addBatch();
+                    }
+                    statement.executeBatch();
+                }
+                return null;
+            }
+        });
+    }
+
+    private static void writeMail(Connection connection, MailData mail, String data)
+            throws SQLException {
+
+        try (PreparedStatement statement = connection.prepareStatement(
+                "INSERT OR REPLACE INTO mails (idx, sender, date, attachments, all_mail, data) "
+                + "VALUES (?, ?, ?, ?, ?, ?)")) {
+            statement.setInt(1, mail.getIndex());
+            statement.setString(2, mail.getFrom().toString());
+            statement.setLong(3, mail.getDate() != null ? mail.getDate().getTime() : 0);
+            statement.setInt(4, mail.getAttachmentsCount());
+            statement.setInt(5, mail.isAllMail() ? 1 : 0);
+            statement.setString(6, data);
+            statement.executeUpdate();
+        }
+
+        deleteRows(connection, "DELETE FROM mail_recipients WHERE idx = ?", mail.getIndex());
+        List<MailSender> recipients = mail.getToTotal();
+        if ( recipients == null ) {
+            recipients = mail.getTo();
+        }
+        try (PreparedStatement statement = connection.prepareStatement(
+                "INSERT OR IGNORE INTO mail_recipients (idx, recipient) VALUES (?, ?)")) {
+            for ( MailSender ms : recipients ) {
+                statement.setInt(1, mail.getIndex());
+                statement.setString(2, ms.toString());
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        }
+
+        writeFlags(connection, mail);
+    }
+
+    private static void writeFlags(Connection connection, MailData mail) throws SQLException {
+
+        deleteRows(connection, "DELETE FROM mail_flags WHERE idx = ?", mail.getIndex());
+
+        // 宛先の多いメールのフラグは、メンバーごとの行にせず、ビット列で1行に保存する
+        Set<MailSender> reads = mail.getReadFlagSet();
+        Set<MailSender> trashes = mail.getTrashFlagSet();
+        if ( reads instanceof MailSenderBitSet ) {
+            try (PreparedStatement statement = connection.prepareStatement(
+                    "INSERT OR REPLACE INTO mail_flag_bits (idx, reads, trashes) VALUES (?, ?, ?)")) {
+                statement.setInt(1, mail.getIndex());
+                statement.setString(2, ((MailSenderBitSet)reads).encode());
+                statement.setString(3, ((MailSenderBitSet)trashes).encode());
+                statement.executeUpdate();
+            }
+            return;
+        }
+
+        deleteRows(connection, "DELETE FROM mail_flag_bits WHERE idx = ?", mail.getIndex());
+        try (PreparedStatement statement = connection.prepareStatement(
+                "INSERT OR IGNORE INTO mail_flags (idx, member, flag) VALUES (?, ?, ?)")) {
+            for ( MailSender ms : reads ) {
+                statement.setInt(1, mail.getIndex());
+                statement.setString(2, ms.toString());
+                statement.setInt(3, FLAG_READ);
+                statement.addBatch();
+            }
+            for ( MailSender ms : trashes ) {
+                statement.setInt(1, mail.getIndex());
+                statement.setString(2, ms.toString());
+                statement.setInt(3, FLAG_TRASH);
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        }
+    }
+
+    private List<Integer> queryIndexes(UndineDatabase.Work<List<Integer>> work) {
+        try {
+            return database.execute(work);
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private static List<Integer> readIndexes(PreparedStatement statement) throws SQLException {
+        List<Integer> result = new ArrayList<Integer>();
+        try (ResultSet rs = statement.executeQuery()) {
+            while ( rs.next() ) {
+                result.add(rs.getInt(1));
+            }
+        }
+        return result;
+    }
+
+    private static String encodeMail(MailData mail) {
+        YamlConfiguration config = new YamlConfiguration();
+        mail.saveToConfigSection(config);
+        return config.saveToString();
+    }
+
+    private static void deleteRows(Connection connection, String sql, int index) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(sql)) {
+            statement.setInt(1, index);
+            statement.executeUpdate();
+        }
+    }
+
+    private static void deleteRows(Connection connection, String sql, Collection<Integer> indexes)
+            throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(sql)) {
+            for ( int index : indexes ) {
+                statement.setInt(1, index);
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        }
+    }
+
+    private static List<String> getOrEmpty(HashMap<Integer, List<String>> map, int index) {
+        List<String> list = map.get(index);
+        if ( list == null ) {
+            return new ArrayList<String>();
+        }
+        return list;
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ * @author     ucchy
+ * @license    LGPLv3
+ * @copyright  Copyright ucchy 2015
+ */
+package org.bitbucket.ucchy.undine;
+
+/**
+ * メールデータの保存形式
+ * @author ucchy
+ */
+public enum MailStorageType {
+
+    /** メール1件ごとに1つのYamlファイル */
+    YAML,
+
+    /** 追記型のジャーナルファイル */
+    JOURNAL,
+
+    /** 組み込みデータベース（グループとUUIDキャッシュも含む） */
+    SQLITE,
+    ;
+
+    /**
+     * 文字列からMailStorageTypeを作成して返す
+     * @param str 文字列
+     * @param def デフォルト
+     * @return MailStorageType
+     */
+    public static MailStorageType getFromString(String str, MailStorageType def) {
+        if ( str == null ) return def;
+        for ( MailStorageType type : values() ) {
+            if ( type.toString().equals(str.toUpperCase()) ) return type;
+        }
+        return def;
+    }
+}
@@ -0,0 +1,414 @@
+/*
+ * @author     ucchy
+ * @license    LGPLv3
+ * @copyright  Copyright ucchy 2015
+ */
+package org.bitbucket.ucchy.undine;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FilenameFilter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.bitbucket.ucchy.undine.sender.MailSender;
+
+/**
+ * メール1件ごとに1つのYamlファイルへ保存するストレージ。
+ * 1つのフォルダのファイル数が増えすぎないように、ファイルはインデクスから決まる
+ * 2階層のサブフォルダに振り分けて格納する（例：00001234.yml は 00/12/ に格納される）。
+ * @author ucchy
+ */
+public class MailStorageYaml implements MailStorage {
+
+    private static final String SUFFIX = ".yml";
+
+    private File folder;
+
+    /** ロードまたは保存した時点の、ファイルの更新日時とサイズ。差分のロードに使用する。 */
+    private ConcurrentHashMap<Integer, FileStamp> stamps;
+
+    /**
+     * コンストラクタ
+     * @param folder メールデータを格納するフォルダ
+     */
+    public MailStorageYaml(File folder) {
+        this.folder = folder;
+        this.stamps = new ConcurrentHashMap<Integer, FileStamp>();
+    }
+
+    /**
+     * 保存されているすべてのメールを、ヘッダー部分だけロードする。
+     * ファイルの読み込みは、複数スレッドで並列に行う。
+     * @return メールのリスト
+     * @see org.bitbucket.ucchy.undine.MailStorage#loadAll()
+     */
+    @Override
+    public List<MailData> loadAll() {
+        return loadAll(true);
+    }
+
+    /**
+     * 保存されているすべてのメールをロードする。
+     * ファイルの読み込みは、複数スレッドで並列に行う。
+     * @param headerOnly ヘッダー部分だけロードするかどうか
+     * @return メールのリスト
+     */
+    synchronized List<MailData> loadAll(final boolean headerOnly) {
+
+        // 古い形式（フォルダ直下）のファイルがあれば、サブフォルダへ移動する
+        migrate();
+
+        stamps.clear();
+        List<File> files = listAllFiles();
+
+        List<Callable<MailData>> tasks = new ArrayList<Callable<MailData>>(files.size());
+        for ( final File file : files ) {
+            tasks.add(new Callable<MailData>() {
+                public MailData call() {
+                    stamp(file);
+                    return headerOnly ? MailData.loadHeader(file) : MailData.load(file);
+                }
+            });
+        }
+
+        return ParallelLoader.invokeAll(tasks);
+    }
+
+    /**
+     * 前回のロード以降に、外部で追加・変更・削除されたメールを調べて、
+     * 追加・変更されたメールだけを、ヘッダー部分だけロードする。
+     * ファイルの変更は、更新日時とサイズで判定する。
+     * @param changed 追加・変更されたメールを格納するリスト
+     * @param deleted 削除されたメールのインデクスを格納するリスト
+     * @return true
+     * @see org.bitbucket.ucchy.undine.MailStorage#loadChanges(java.util.List, java.util.List)
+     */
+    @Override
+    public synchronized boolean loadChanges(List<MailData> changed, List<Integer> deleted) {
+
+        migrate();
+
+        HashSet<Integer> found = new HashSet<Integer>();
+        List<Callable<MailData>> tasks = new ArrayList<Callable<MailData>>();
+        for ( final File file : listAllFiles() ) {
+            int index = getIndex(file);
+            if ( index < 0 ) continue;
+            found.add(index);
+
+            FileStamp stamp = stamps.get(index);
+            if ( stamp != null && stamp.matches(file) ) continue;
+
+            tasks.add(new Callable<MailData>() {
+                public MailData call() {
+                    stamp(file);
+                    return MailData.loadHeader(file);
+                }
+            });
+        }
+
+        for ( int index : stamps.keySet() ) {
+            if ( !found.contains(index) ) {
+                stamps.remove(index);
+                deleted.add(index);
+            }
+        }
+
+        changed.addAll(ParallelLoader.invokeAll(tasks));
+        return true;
+    }
+
+    /**
+     * 保存されているメールの、最大のインデクスを返す。
+     * フォルダを調べ直さずに、ロードと保存のときに記録したファイルのインデクスから求める。
+     * 解析できなかったファイルも記録されているので、そのインデクスも含まれる。
+     * @return 最大のインデクス、メールが無い場合は0
+     * @see org.bitbucket.ucchy.undine.MailStorage#getLastIndex()
+     */
+    @Override
+    public int getLastIndex() {
+        int last = 0;
+        for ( int index : stamps.keySet() ) {
+            last = Math.max(last, index);
+        }
+        return last;
+    }
+
+    /**
+     * 指定されたインデクスのメールを、本文を含めてロードする
+     * @param index インデクス
+     * @return メール、見つからない場合はnull
+     * @see org.bitbucket.ucchy.undine.MailStorage#loadMail(int)
+     */
+    @Override
+    public MailData loadMail(int index) {
+        File file = getFile(index);
+        if ( !file.exists() ) {
+            // まだ移動されていない、古い形式のファイルを探す
+            file = new File(folder, getFileName(index));
+            if ( !file.exists() ) {
+                return null;
+            }
+        }
+        return MailData.load(file);
+    }
+
+    /**
+     * メールを保存する
+     * @param mail メール
+     * @see org.bitbucket.ucchy.undine.MailStorage#saveMail(org.bitbucket.ucchy.undine.MailData)
+     */
+    @Override
+    public synchronized void saveMail(MailData mail) {
+        File file = getFile(mail.getIndex());
+        if ( !file.getParentFile().exists() ) {
+            file.getParentFile().mkdirs();
+        }
+        // 書き込みと記録の間に差分を調べられると、書きかけのファイルを外部の変更と
+        // 誤認してしまうので、差分の調査と同じロックの中で両方を行う
+        mail.save(file);
+        stamp(file);
+    }
+
+    /**
+     * メールの既読フラグとゴミ箱フラグだけを保存する。
+     * Yamlファイルは部分的に書き換えられないので、メール全体を保存する。
+     * @param mail メール
+     * @see org.bitbucket.ucchy.undine.MailStorage#saveFlags(org.bitbucket.ucchy.undine.MailData)
+     */
+    @Override
+    public void saveFlags(MailData mail) {
+        saveMail(mail);
+    }
+
+    /**
+     * 指定されたインデクスのメールを削除する
+     * @param index インデクス
+     * @see org.bitbucket.ucchy.undine.MailStorage#deleteMail(int)
+     */
+    @Override
+    public synchronized void deleteMail(int index) {
+        File file = getFile(index);
+        if ( !file.exists() ) {
+            file = new File(folder, getFileName(index));
+        }
+        if ( file.exists() ) {
+            file.delete();
+        }
+        stamps.remove(index);
+    }
+
+    /**
+     * 指定されたインデクスのメールを、まとめて削除する
+     * @param indexes インデクス
+     * @see org.bitbucket.ucchy.undine.MailStorage#deleteMails(java.util.Collection)
+     */
+    @Override
+    public void deleteMails(Collection<Integer> indexes) {
+        for ( int index : indexes ) {
+            deleteMail(index);
+        }
+    }
+
+    /**
+     * 問い合わせには対応していないので、falseを返す
+     * @return false
+     * @see org.bitbucket.ucchy.undine.MailStorage#isQueryable()
+     */
+    @Override
+    public boolean isQueryable() {
+        return false;
+    }
+
+    /**
+     * 問い合わせには対応していないので、nullを返す
+     * @param sender 受信者
+     * @return null
+     * @see org.bitbucket.ucchy.undine.MailStorage#findInboxMails(org.bitbucket.ucchy.undine.sender.MailSender)
+     */
+    @Override
+    public List<Integer> findInboxMails(MailSender sender) {
+        return null;
+    }
+
+    /**
+     * 問い合わせには対応していないので、-1を返す
+     * @param sender 送信者
+     * @return -1
+     * @see org.bitbucket.ucchy.undine.MailStorage#countAttachBoxUsage(org.bitbucket.ucchy.undine.sender.MailSender)
+     */
+    @Override
+    public int countAttachBoxUsage(MailSender sender) {
+        return -1;
+    }
+
+    /**
+     * 問い合わせには対応していないので、nullを返す
+     * @param limit 日時（ミリ秒）
+     * @return null
+     * @see org.bitbucket.ucchy.undine.MailStorage#findExpiredMails(long)
+     */
+    @Override
+    public List<Integer> findExpiredMails(long limit) {
+        return null;
+    }
+
+    /**
+     * 不要になったデータを整理する。このストレージでは何もしない。
+     * @param mails 現在有効なすべてのメール
+     * @see org.bitbucket.ucchy.undine.MailStorage#compact(java.util.Collection)
+     */
+    @Override
+    public void compact(Collection<MailData> mails) {
+        // do nothing.
+    }
+
+    /**
+     * 開いているファイルなどを閉じる。このストレージでは何もしない。
+     * @see org.bitbucket.ucchy.undine.MailStorage#close()
+     */
+    @Override
+    public void close() {
+        // do nothing.
+    }
+
+    /**
+     * フォルダ直下にある古い形式のファイルを、インデクスから決まるサブフォルダへ移動する
+     */
+    private void migrate() {
+
+        File[] files = listMailFiles(folder);
+        if ( files == null || files.length == 0 ) {
+            return;
+        }
+
+        int total = 0;
+        for ( File file : files ) {
+            String name = file.getName();
+            int index = getIndex(file);
+            if ( index < 0 ) {
+                continue; // メールのファイルではない
+            }
+
+            File dest = getFile(index);
+            if ( dest.exists() ) {
+                // 既にサブフォルダ側にあるなら、そちらの方が新しい
+                UndineMailer.getInstance().getLogger().warning(
+                        "Mail file " + name + " was not migrated, because " + dest.getPath() + " already exists.");
+                continue;
+            }
+            if ( !dest.getParentFile().exists() ) {
+                dest.getParentFile().mkdirs();
+            }
+            if ( file.renameTo(dest) ) {
+                total++;
+            }
+        }
+
+        if ( total > 0 ) {
+            UndineMailer.getInstance().getLogger().info(
+                    "Migrated " + total + " mail files into the sharded folder layout.");
+        }
+    }
+
+    /**
+     * 指定されたインデクスのメールの保存先ファイルを返す
+     * @param index インデクス
+     * @return ファイル
+     */
+    private File getFile(int index) {
+        String dir = String.format("%1$02d%2$s%3$02d", index / 10000, File.separator, (index / 100) % 100);
+        return new File(new File(folder, dir), getFileName(index));
+    }
+
+    /**
+     * サブフォルダに格納されている、すべてのメールのファイルを返す
+     * @return ファイル
+     */
+    private List<File> listAllFiles() {
+        List<File> files = new ArrayList<File>();
+        for ( File top : listDirectories(folder) ) {
+            for ( File sub : listDirectories(top) ) {
+                File[] list = listMailFiles(sub);
+                if ( list != null ) {
+                    files.addAll(Arrays.asList(list));
+                }
+            }
+        }
+        return files;
+    }
+
+    /**
+     * 指定されたファイルの、現在の更新日時とサイズを記録する
+     * @param file ファイル
+     */
+    private void stamp(File file) {
+        int index = getIndex(file);
+        if ( index >= 0 ) {
+            stamps.put(index, new FileStamp(file));
+        }
+    }
+
+    /**
+     * ファイル名から、メールのインデクスを取得する
+     * @param file ファイル
+     * @return インデクス、メールのファイルでない場合は-1
+     */
+    private static int getIndex(File file) {
+        String name = file.getName();
+        try {
+            return Integer.parseInt(name.substring(0, name.length() - SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static String getFileName(int index) {
+        return String.format("%1$08d", index) + SUFFIX;
+    }
+
+    private static File[] listMailFiles(File dir) {
+        return dir.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SUFFIX);
+            }
+        });
+    }
+
+    private static File[] listDirectories(File dir) {
+        File[] dirs = dir.listFiles(new FileFilter() {
+            public boolean accept(File file) {
+                return file.isDirectory();
+            }
+        });
+        return dirs != null ? dirs : new File[0];
+    }
+
+    /**
+     * ファイルの更新日時とサイズ
+     */
+    private static class FileStamp {
+
+        private long lastModified;
+        private long length;
+
+        private FileStamp(File file) {
+            this.lastModified = file.lastModified();
+            this.length = file.length();
+        }
+
+        /**
+         * 指定されたファイルが、記録した時点から変更されていないかどうかを返す
+         * @param file ファイル
+         * @return 変更されていないかどうか
+         */
+        private boolean matches(File file) {
+            return lastModified == file.lastModified() && length == file.length();
+        }
+    }
+}
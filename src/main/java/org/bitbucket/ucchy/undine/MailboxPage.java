@@ -0,0 +1,110 @@
+/*
+ * @author     ucchy
+ * @license    LGPLv3
+ * @copyright  Copyright ucchy 2015
+ */
+package org.bitbucket.ucchy.undine;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * メールボックスの1ページ分のメールと、メールボックス全体の件数。
+ * @author ucchy
+ */
+class MailboxPage {
+
+    /** 新しいメールから順に並べるComparator。日時が同じなら、インデクスの大きい方を先にする。 */
+    static final Comparator<MailData> NEWER_FIRST = new Comparator<MailData>() {
+        public int compare(MailData o1, MailData o2) {
+            int result = o2.getDate().compareTo(o1.getDate());
+            if ( result != 0 ) return result;
+            return Integer.compare(o2.getIndex(), o1.getIndex());
+        }
+    };
+
+    private List<MailData> mails;
+    private int total;
+
+    /**
+     * コンストラクタ
+     * @param mails ページのメール
+     * @param total メールボックス全体の件数
+     */
+    private MailboxPage(List<MailData> mails, int total) {
+        this.mails = mails;
+        this.total = total;
+    }
+
+    /**
+     * 並べ替え済みのリストから、ページを切り出す
+     * @param sorted 新しい順に並べ替え済みのリスト
+     * @param page ページ番号（1から始まる）
+     * @param size 1ページの件数
+     * @return ページ
+     */
+    static MailboxPage slice(List<MailData> sorted, int page, int size) {
+        int from = Math.max(0, (page - 1) * size);
+        int to = Math.min(sorted.size(), from + size);
+        if ( page < 1 || from >= to ) {
+            return new MailboxPage(new ArrayList<MailData>(), sorted.size());
+        }
+        return new MailboxPage(new ArrayList<MailData>(sorted.subList(from, to)), sorted.size());
+    }
+
+    /**
+     * 並べ替えていないメールから、指定されたページに入るメールだけを選び出す。
+     * 全体を並べ替えずに、ページの末尾までの件数を上限としたヒープで選ぶので、
+     * 先頭に近いページほど速く処理できる。
+     * @param mails 並べ替えていないメール
+     * @param page ページ番号（1から始まる）
+     * @param size 1ページの件数
+     * @return ページ
+     */
+    static MailboxPage select(Collection<MailData> mails, int page, int size) {
+
+        if ( page < 1 ) {
+            return new MailboxPage(new ArrayList<MailData>(), mails.size());
+        }
+
+        // 最も古いメールが先頭に来るヒープに、新しい方からlimit件だけを残す
+        int limit = page * size;
+        PriorityQueue<MailData> heap = new PriorityQueue<MailData>(
+                Math.min(limit, Math.max(1, mails.size())) + 1, Collections.reverseOrder(NEWER_FIRST));
+        for ( MailData mail : mails ) {
+            heap.offer(mail);
+            if ( heap.size() > limit ) {
+                heap.poll();
+            }
+        }
+
+        // ヒープの中のうち、古い方からページ分だけを取り出して、新しい順に並べる
+        int count = heap.size() - (page - 1) * size;
+        ArrayList<MailData> result = new ArrayList<MailData>();
+        for ( int i=0; i<count; i++ ) {
+            result.add(heap.poll());
+        }
+        Collections.reverse(result);
+        return new MailboxPage(result, mails.size());
+    }
+
+    /**
+     * ページのメールを取得する
+     * @return ページのメール（新しい順）
+     */
+    List<MailData> getMails() {
+        return mails;
+    }
+
+    /**
+     * メールボックス全体の件数を取得する
+     * @return 件数
+     */
+    int getTotal() {
+        return total;
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * @author     ucchy
+ * @license    LGPLv3
+ * @copyright  Copyright ucchy 2015
+ */
+package org.bitbucket.ucchy.undine;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.bitbucket.ucchy.undine.sender.MailSender;
+
+/**
+ * 並べ替え済みのメールボックスのリストを、プレイヤーとボックスごとに保持するキャッシュ。
+ * リストには、作成した時点の索引の更新番号を記録しておき、
+ * 索引の更新番号が変わっていたら（関係するメールが変更されていたら）、古いリストとして扱う。
+ * @author ucchy
+ */
+class MailboxViewCache {
+
+    private ConcurrentHashMap<String, View> views;
+
+    /**
+     * コンストラクタ
+     */
+    MailboxViewCache() {
+        views = new ConcurrentHashMap<String, View>();
+    }
+
+    /**
+     * キャッシュされたリストを取得する
+     * @param box ボックスの種類
+     * @param sender 対象
+     * @param index 索引
+     * @param version 索引の現在の更新番号
+     * @return リスト、キャッシュされていないか古くなっている場合はnull
+     */
+    List<MailData> get(String box, MailSender sender, MailRecipientIndex index, long version) {
+        View view = views.get(getKey(box, sender));
+        if ( view == null || view.index != index || view.version != version ) {
+            return null;
+        }
+        return view.mails;
+    }
+
+    /**
+     * リストをキャッシュする
+     * @param box ボックスの種類
+     * @param sender 対象
+     * @param index 索引
+     * @param version リストを作成する前に取得した、索引の更新番号
+     * @param mails 並べ替え済みのリスト（以降は変更しないこと）
+     */
+    void put(String box, MailSender sender, MailRecipientIndex index, long version, List<MailData> mails) {
+        views.put(getKey(box, sender), new View(index, version, mails));
+    }
+
+    /**
+     * 指定された対象の、指定されたボックスのリストを破棄する
+     * @param sender 対象
+     * @param boxes ボックスの種類
+     */
+    void remove(MailSender sender, String... boxes) {
+        for ( String box : boxes ) {
+            views.remove(getKey(box, sender));
+        }
+    }
+
+    private static String getKey(String box, MailSender sender) {
+        return box + ":" + sender.toString();
+    }
+
+    /**
+     * キャッシュされたリスト
+     */
+    private static class View {
+
+        private MailRecipientIndex index;
+        private long version;
+        private List<MailData> mails;
+
+        private View(MailRecipientIndex index, long version, List<MailData> mails) {
+            this.index = index;
+            this.version = version;
+            this.mails = mails;
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * @author     ucchy
+ * @license    LGPLv3
+ * @copyright  Copyright ucchy 2015
+ */
+package org.bitbucket.ucchy.undine;
+
+import java.util.ArrayList;
+
+/**
+ * 事前に解析しておいたメッセージリソース。
+ * メッセージを、固定の文字列と、"%" で始まるキーワードの部分に分割しておき、
+ * キーワードの置き換えを1回の走査で行う。
+ * @author ucchy
+ */
+class MessageTemplate {
+
+    private static final char KEYWORD_PREFIX = '%';
+
+    private String text;
+    private String[] parts;
+    private boolean[] isKeyword;
+
+    /**
+     * コンストラクタ
+     * @param text メッセージ（改行とカラーコードは変換済みのもの）
+     */
+    MessageTemplate(String text) {
+
+        this.text = text;
+
+        ArrayList<String> parts = new ArrayList<String>();
+        ArrayList<Boolean> isKeyword = new ArrayList<Boolean>();
+        int start = 0;
+        int pos = text.indexOf(KEYWORD_PREFIX);
+        while ( pos >= 0 ) {
+            int end = pos + 1;
+            while ( end < text.length() && isKeywordChar(text.charAt(end)) ) {
+                end++;
+            }
+            if ( start < pos ) {
+                parts.add(text.substring(start, pos));
+                isKeyword.add(false);
+            }
+            parts.add(text.substring(pos, end));
+            isKeyword.add(true);
+            start = end;
+            pos = text.indexOf(KEYWORD_PREFIX, end);
+        }
+        if ( start < text.length() ) {
+            parts.add(text.substring(start));
+            isKeyword.add(false);
+        }
+
+        this.parts = parts.toArray(new String[parts.size()]);
+        this.isKeyword = new boolean[isKeyword.size()];
+        for ( int i=0; i<this.isKeyword.length; i++ ) {
+            this.isKeyword[i] = isKeyword.get(i);
+        }
+    }
+
+    /**
+     * キーワードを置き換えないメッセージを取得する
+     * @return メッセージ
+     */
+    String getText() {
+        return text;
+    }
+
+    /**
+     * キーワードを置き換えたメッセージを作成する
+     * @param keyword キーワード
+     * @param value キーワードの置き換え値
+     * @return メッセージ
+     */
+    String render(String keyword, String value) {
+        return render(new String[]{keyword}, new String[]{value});
+    }
+
+    /**
+     * キーワードを置き換えたメッセージを作成する。
+     * キーワードの部分が、指定されたキーワードで始まっている場合は（%numに対する%numberなど）、
+     * String#replaceと同様に、先頭の一致した部分だけを置き換える。
+     * @param keys キーワード
+     * @param values キーワードの置き換え値
+     * @return メッセージ
+     */
+    String render(String[] keys, String[] values) {
+
+        for ( String key : keys ) {
+            if ( key.isEmpty() || key.charAt(0) != KEYWORD_PREFIX ) {
+                // "%" で始まらないキーワードは、分割した位置と合わないので、そのまま置き換える
+                return replaceAll(keys, values);
+            }
+        }
+
+        StringBuilder builder = new StringBuilder(text.length() + 16 * keys.length);
+        for ( int i=0; i<parts.length; i++ ) {
+            String part = parts[i];
+            if ( !isKeyword[i] ) {
+                builder.append(part);
+                continue;
+            }
+            boolean replaced = false;
+            for ( int k=0; k<keys.length && k<values.length; k++ ) {
+                if ( part.startsWith(keys[k]) ) {
+                    builder.append(values[k]);
+                    builder.append(part, keys[k].length(), part.length());
+                    replaced = true;
+                    break;
+                }
+            }
+            if ( !replaced ) {
+                builder.append(part);
+            }
+        }
+        return builder.toString();
+    }
+
+    private String replaceAll(String[] keys, String[] values) {
+        String message = text;
+        for ( int index=0; index<keys.length; index++ ) {
+            if ( values.length < (index + 1) ) continue;
+            message = message.replace(keys[index], values[index]);
+        }
+        return message;
+    }
+
+    private static boolean isKeywordChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '_';
+    }
+}
@@ -13,6 +13,9 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.jar.JarFile;
 import java.util.zip.ZipEntry;
 
@@ -30,9 +33,16 @@ public class Messages {
     private static File jar;
 
     private static Messages instance;
+    private static volatile int generation;
 
     private YamlConfiguration resources;
 
+    // リロード時に全てのリソースを解析しておき、以降は変更しない
+    private HashMap<String, MessageTemplate> templates;
+
+    // SimpleDateFormatはスレッドセーフではないので、スレッドごとに作成して使い回す
+    private ThreadLocal<SimpleDateFormat> dateFormat;
+
     /**
      * コンストラクタ
      * @param filename メッセージファイル
@@ -52,6 +62,21 @@ public class Messages {
 
         // デフォルトメッセージをデフォルトとして足す。
         resources.addDefaults(defaultMessages);
+
+        // 全てのリソースを、改行とカラーコードを変換してから解析しておく
+        templates = new HashMap<String, MessageTemplate>();
+        for ( String key : defaultMessages.getKeys(false) ) {
+            templates.put(key, new MessageTemplate(getMessage(key)));
+        }
+        for ( String key : resources.getKeys(false) ) {
+            templates.put(key, new MessageTemplate(getMessage(key)));
+        }
+
+        dateFormat = new ThreadLocal<SimpleDateFormat>() {
+            protected SimpleDateFormat initialValue() {
+                return new SimpleDateFormat(getMessage("DateFormat"));
+            }
+        };
     }
 
     /**
@@ -60,7 +85,44 @@ public class Messages {
      * @return リソース
      */
     public static String get(String key) {
-        String message = instance.resources.getString(key);
+        return getTemplate(key).getText();
+    }
+
+    /**
+     * 言語リソース設定（DateFormat）に従って、日時をフォーマットする
+     * @param date 日時
+     * @return フォーマットされた文字列
+     */
+    public static String formatDate(Date date) {
+        return instance.dateFormat.get().format(date);
+    }
+
+    /**
+     * リロードされるたびに増える番号を取得する。
+     * リソースから作成した文字列をキャッシュする場合に、古くなったかどうかの確認に使う。
+     * @return 番号
+     */
+    public static int getGeneration() {
+        return generation;
+    }
+
+    /**
+     * 解析済みのリソースを取得する
+     * @param key リソースキー
+     * @return リソース
+     */
+    private static MessageTemplate getTemplate(String key) {
+        Messages messages = instance;
+        MessageTemplate template = messages.templates.get(key);
+        if ( template == null ) {
+            // リロード時に無かったキーは、その都度解析する
+            template = new MessageTemplate(messages.getMessage(key));
+        }
+        return template;
+    }
+
+    private String getMessage(String key) {
+        String message = resources.getString(key);
         if ( message == null ) return "";
         message = message.replace("\\n", "\n");
         return ChatColor.translateAlternateColorCodes('&', message);
@@ -74,8 +136,7 @@ public class Messages {
      * @return リソース
      */
     public static String get(String key, String keyword, String value) {
-        String message = get(key).replace(keyword, value);
-        return message;
+        return getTemplate(key).render(keyword, value);
     }
 
     /**
@@ -86,8 +147,7 @@ public class Messages {
      * @return リソース
      */
     public static String get(String key, String keyword, int value) {
-        String message = get(key).replace(keyword, value + "");
-        return message;
+        return getTemplate(key).render(keyword, value + "");
     }
 
     /**
@@ -98,15 +158,7 @@ public class Messages {
      * @return リソース
      */
     public static String get(String key, String[] keys, String[] values) {
-
-        String message = get(key);
-
-        for ( int index=0; index<keys.length; index++ ) {
-            if ( values.length < (index + 1) ) continue;
-            message = message.replace(keys[index], values[index]);
-        }
-
-        return message;
+        return getTemplate(key).render(keys, values);
     }
 
     /**
@@ -226,5 +278,6 @@ public class Messages {
      */
     protected static void reload(String lang) {
         instance = new Messages(String.format("messages_%s.yml", lang));
+        generation++;
     }
 }
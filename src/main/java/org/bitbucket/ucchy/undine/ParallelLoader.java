@@ -0,0 +1,79 @@
+/*
+ * @author     ucchy
+ * @license    LGPLv3
+ * @copyright  Copyright ucchy 2015
+ */
+package org.bitbucket.ucchy.undine;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * データの読み込み処理を、複数スレッドで並列に実行するためのクラス
+ * @author ucchy
+ */
+class ParallelLoader {
+
+    /** 並列数の上限。サーバーのメインスレッドのために、CPUを使い切らないようにする。 */
+    private static final int MAX_THREADS = 4;
+
+    /** 並列数。1以下なら、呼び出したスレッドで順に実行する。 */
+    private static final int THREADS =
+            Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors() - 1);
+
+    /** すべてのロードで共有するスレッドプール。スレッドは、使われない間は自動的に終了する。 */
+    private static ForkJoinPool pool;
+
+    /**
+     * 指定されたタスクを並列に実行し、結果をタスクと同じ順序で返す。
+     * 結果がnullのタスクと、例外が発生したタスクの結果は含まれない。
+     * @param tasks タスク
+     * @return 結果
+     */
+    static <T> List<T> invokeAll(List<Callable<T>> tasks) {
+
+        List<T> result = new ArrayList<T>(tasks.size());
+
+        if ( THREADS <= 1 || tasks.size() <= 1 ) {
+            for ( Callable<T> task : tasks ) {
+                try {
+                    add(result, task.call());
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+            return result;
+        }
+
+        try {
+            for ( Future<T> future : getPool().invokeAll(tasks) ) {
+                try {
+                    add(result, future.get());
+                } catch (ExecutionException e) {
+                    e.getCause().printStackTrace();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        return result;
+    }
+
+    private static synchronized ForkJoinPool getPool() {
+        if ( pool == null ) {
+            pool = new ForkJoinPool(THREADS);
+        }
+        return pool;
+    }
+
+    private static <T> void add(List<T> list, T value) {
+        if ( value != null ) {
+            list.add(value);
+        }
+    }
+}
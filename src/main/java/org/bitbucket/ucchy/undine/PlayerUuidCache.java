@@ -1,38 +1,100 @@
 package org.bitbucket.ucchy.undine;
 
 import java.io.File;
+import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
 
 import org.bukkit.Bukkit;
 import org.bukkit.OfflinePlayer;
 import org.bukkit.scheduler.BukkitRunnable;
 
 /**
- * プレイヤーのUUIDのキャッシュを管理するクラス
+ * プレイヤーのUUIDのキャッシュを管理するクラス。
+ * キャッシュの参照は、メインスレッドからロック無しで行える。
+ * キャッシュの追加と差し替えは、非同期スレッドからも行われるので、このインスタンスで同期して行う。
+ * キャッシュに無いプレイヤーの解決は非同期スレッドで行い、同じプレイヤーへの同時の要求は、1つの解決を共有する。
+ * オンラインモードでは、メインスレッドから解決の完了を待つことはしない。
  * @author ucchy
  */
 public class PlayerUuidCache {
 
-    private HashMap<String, PlayerUuidCacheData> caches;
-    private boolean isPlayerCacheLoaded;
+    private static final String CACHE_FILE_NAME = "uuidcache.dat";
+
+    /** 最後に確認してから、この期間が過ぎたキャッシュデータは、再確認の対象にする。 */
+    static final long STALE_MILLIS = 1000L*24*3600* 30;
+
+    /** プレイヤー名として使える文字列 */
+    private static final Pattern PLAYER_NAME_PATTERN = Pattern.compile("[a-zA-Z0-9_]{1,16}");
+
+    private volatile PlayerUuidIndex index;
+    private volatile boolean isPlayerCacheLoaded;
     private UUIDResolver resolver;
+    private PlayerUuidCacheFile cacheFile;
+    private UndineDatabase database;
+    private Executor executor;
+    private UUIDBatchScheduler batchScheduler;
+    private int maxSize;
+
+    /** 解決中のプレイヤー名と、解決結果のUUID */
+    private ConcurrentHashMap<String, CompletableFuture<String>> pendingUuids;
+
+    /** 解決中のUUIDと、解決結果のプレイヤー名 */
+    private ConcurrentHashMap<String, CompletableFuture<String>> pendingNames;
 
     // コンストラクタ
     private PlayerUuidCache() {
-        caches = new HashMap<String, PlayerUuidCacheData>();
+        this(new UUIDResolver(
+                UndineMailer.getInstance().getUndineConfig().isUuidOnlineMode(),
+                UndineMailer.getInstance().getUndineConfig().getUuidApiBaseUrl()),
+                new PlayerUuidCacheFile(new File(UndineMailer.getInstance().getCacheFolder(), CACHE_FILE_NAME)),
+                UndineMailer.getInstance().getDatabase(),
+                new Executor() {
+                    public void execute(Runnable command) {
+                        Bukkit.getScheduler().runTaskAsynchronously(UndineMailer.getInstance(), command);
+                    }
+                },
+                UndineMailer.getInstance().getUndineConfig().getUuidCacheMaxSize());
+    }
+
+    /**
+     * コンストラクタ
+     * @param resolver キャッシュに無いプレイヤーの解決に使うリゾルバ
+     * @param cacheFile キャッシュファイル
+     * @param database データベース、使用しない場合はnull
+     * @param executor プレイヤーの解決を実行する、非同期スレッドのExecutor
+     * @param maxSize キャッシュする件数の上限、0以下なら上限なし
+     */
+    PlayerUuidCache(UUIDResolver resolver, PlayerUuidCacheFile cacheFile,
+            UndineDatabase database, Executor executor, int maxSize) {
+        index = new PlayerUuidIndex(maxSize);
         isPlayerCacheLoaded = false;
-        resolver = new UUIDResolver(
-                UndineMailer.getInstance().getUndineConfig().isUuidOnlineMode());
+        this.resolver = resolver;
+        this.cacheFile = cacheFile;
+        this.database = database;
+        this.executor = executor;
+        this.batchScheduler = new UUIDBatchScheduler(resolver);
+        this.maxSize = maxSize;
+        pendingUuids = new ConcurrentHashMap<String, CompletableFuture<String>>();
+        pendingNames = new ConcurrentHashMap<String, CompletableFuture<String>>();
     }
 
     /**
      * PlayerUuidCacheを、キャッシュフォルダ内のファイルからロードする。
+     * キャッシュファイルが無く、以前のバージョンのプレイヤーごとのYamlファイルがある場合は、
+     * それらを1つのキャッシュファイルにまとめる。
      * @return PlayerUuidCache
      */
     protected static PlayerUuidCache load() {
@@ -40,20 +102,34 @@ public class PlayerUuidCache {
         PlayerUuidCache puc = new PlayerUuidCache();
         long start = System.currentTimeMillis();
 
-        File folder = UndineMailer.getInstance().getCacheFolder();
-        File[] children =  folder.listFiles();
-        if ( children != null ) {
-            for ( File file : children ) {
-                if ( !file.getName().endsWith(".yml") ) {
-                    continue;
+        UndineDatabase database = puc.database;
+        if ( database != null && !isDatabaseEmpty(database) ) {
+            for ( PlayerUuidCacheData cache : PlayerUuidCacheData.loadFromDatabase(database) ) {
+                puc.put(cache);
+            }
+        } else {
+            List<PlayerUuidCacheData> loaded;
+            if ( puc.cacheFile.exists() ) {
+                loaded = puc.cacheFile.load();
+                if ( puc.cacheFile.isCompactionNeeded(loaded.size()) ) {
+                    puc.cacheFile.compact(loaded);
+                }
+            } else {
+                loaded = migrateLegacyFiles(UndineMailer.getInstance().getCacheFolder(), puc.cacheFile);
+            }
+
+            for ( PlayerUuidCacheData cache : loaded ) {
+                puc.put(cache);
+
+                // データベースを使用する場合は、ファイルのキャッシュを取り込む
+                if ( database != null ) {
+                    cache.saveToDatabase(database);
                 }
-                PlayerUuidCacheData cache = PlayerUuidCacheData.load(file);
-                puc.caches.put(cache.getName(), cache);
             }
         }
 
         UndineMailer.getInstance().getLogger().info("Load offline player data from cache... Done. Time: "
-                + (System.currentTimeMillis() - start) + "ms, Data: " + puc.caches.size() + ".");
+                + (System.currentTimeMillis() - start) + "ms, Data: " + puc.index.size() + ".");
 
         return puc;
     }
@@ -70,56 +146,89 @@ public class PlayerUuidCache {
             public void run() {
 
                 // UUIDがキャッシュされているかどうか確認し、キャッシュされていないプレイヤー名をリストして、
-                // 10プレイヤーずつ、10秒ごとに、UUIDの確認と更新を行う。
-                ArrayList<String> namesToCheck = new ArrayList<>();
-                HashMap<String, PlayerUuidCacheData> temp = new HashMap<String, PlayerUuidCacheData>();
+                // UUIDの確認と更新を行う。オンラインモードでは、リクエスト数の制限に合わせて、
+                // バッチスケジューラで少しずつ確認する。
+                final ArrayList<String> namesToCheck = new ArrayList<>();
+                final PlayerUuidIndex temp = new PlayerUuidIndex(maxSize);
+                final PlayerUuidIndex current = index;
 
                 for ( OfflinePlayer player : Bukkit.getOfflinePlayers() ) {
 
                     String name = player.getName();
                     if ( name == null ) continue;
 
-                    if ( caches.containsKey(name) ) {
-                        if ( isBefore30Days(caches.get(name).getLastKnownDate()) ) {
+                    PlayerUuidCacheData data = current.get(name);
+                    String uuid = current.getUuid(name);
+                    if ( data != null ) {
+                        if ( isBefore30Days(data.getLastKnownDate()) ) {
                             namesToCheck.add(name);
                         } else {
-                            temp.put(name, caches.get(name));
+                            temp.put(data);
                         }
+                    } else if ( uuid != null ) {
+                        // 上限を超えてキャッシュデータが取り除かれたプレイヤーは、問い合わせずに引き継ぐ
+                        temp.putUuid(name, uuid);
                     } else {
                         namesToCheck.add(name);
                     }
                 }
 
-                int pageSize = 10; // 10 names per a request.
-                long waitTime = 1000L * 10; // 10 seconds.
-
-                for ( int index = 0; index < namesToCheck.size(); index += pageSize ) {
-                    int endIndex = (index + pageSize > namesToCheck.size()) ? namesToCheck.size() : index + pageSize;
-                    List<String> next = namesToCheck.subList(index, endIndex);
+                if ( !resolver.isOnlineMode() ) {
+                    onRefreshResolved(start, current, temp, namesToCheck,
+                            resolver.getUUIDsFromNames(namesToCheck));
+                    return;
+                }
 
-                    Map<String, String> results = resolver.getUUIDsFromNames(next);
-                    for ( String name : results.keySet() ) {
-                        String uuid = results.get(name);
-                        PlayerUuidCacheData data = new PlayerUuidCacheData(name, uuid, new Date());
-                        data.save();
-                        temp.put(name, data);
+                batchScheduler.resolve(namesToCheck).thenAccept(new Consumer<Map<String, String>>() {
+                    public void accept(Map<String, String> results) {
+                        onRefreshResolved(start, current, temp, namesToCheck, results);
                     }
+                });
+            }
+        }.runTaskAsynchronously(UndineMailer.getInstance());
+    }
 
-                    if ( index + pageSize < namesToCheck.size() ) {
-                        try {
-                            Thread.sleep(waitTime);
-                        } catch (InterruptedException e) {
-                            // do nothing.
-                        }
-                    }
+    // プレイヤー一覧の確認が終わったら、キャッシュを差し替える。
+    private void onRefreshResolved(long start, PlayerUuidIndex current, PlayerUuidIndex temp,
+            List<String> namesToCheck, Map<String, String> results) {
+
+        for ( String name : results.keySet() ) {
+            String uuid = results.get(name);
+            PlayerUuidCacheData data = new PlayerUuidCacheData(name, uuid, new Date());
+            save(data);
+            temp.put(data);
+        }
+
+        // 再確認できなかったプレイヤーは、古いキャッシュデータを残す
+        for ( String name : namesToCheck ) {
+            if ( temp.get(name) == null ) {
+                PlayerUuidCacheData data = current.get(name);
+                if ( data != null ) {
+                    temp.put(data);
                 }
+            }
+        }
 
-                UndineMailer.getInstance().getLogger().info("Async refresh offline player data... Done. Time: "
-                        + (System.currentTimeMillis() - start) + "ms, Data: " + temp.size() + ".");
-                caches = temp;
-                isPlayerCacheLoaded = true;
+        UndineMailer.getInstance().getLogger().info("Async refresh offline player data... Done. Time: "
+                + (System.currentTimeMillis() - start) + "ms, Data: " + temp.size() + ".");
+        // 名前からUUIDと、UUIDから名前の索引を、同時に差し替える。
+        // 更新中に別のスレッドで追加されたデータは、新しい索引に引き継ぐ。
+        synchronized (this) {
+            for ( PlayerUuidCacheData data : index.values() ) {
+                if ( data.getLastKnownDate().getTime() >= start
+                        && temp.get(data.getName()) == null ) {
+                    temp.put(data);
+                }
             }
-        }.runTaskAsynchronously(UndineMailer.getInstance());
+            index = temp;
+        }
+        isPlayerCacheLoaded = true;
+
+        // 追記で古くなったレコードが溜まっていたら、ファイルを作り直す。
+        // メモリ上のキャッシュデータは上限で取り除かれていることがあるので、ファイルの内容から作り直す。
+        if ( database == null && cacheFile.isCompactionNeeded(temp.size()) ) {
+            cacheFile.compact();
+        }
     }
 
     /**
@@ -135,7 +244,7 @@ public class PlayerUuidCache {
      * @return プレイヤー名一覧
      */
     protected  Set<String> getPlayerNames() {
-        return caches.keySet();
+        return index.getPlayerNames();
     }
 
     /**
@@ -143,64 +252,149 @@ public class PlayerUuidCache {
      * @return すべてのUUID
      */
     protected HashSet<String> getPlayerUuids() {
-        HashSet<String> uuids = new HashSet<>();
-        for ( PlayerUuidCacheData d : caches.values() ) {
-            uuids.add(d.getUuid());
-        }
-        return uuids;
+        return new HashSet<>(index.getPlayerUuids());
     }
 
     /**
-     * 指定されたプレイヤー名のUUIDをキャッシュから取得する
+     * 指定されたプレイヤー名のUUIDがキャッシュされているかどうかを返す。
+     * オフラインモードでは、解決に通信を伴わないので、常にtrueを返す。
      * @param name プレイヤー名
-     * @return UUID
+     * @return キャッシュされているかどうか
+     */
+    protected boolean isUuidResolved(String name) {
+        return !resolver.isOnlineMode() || index.getUuid(name) != null;
+    }
+
+    /**
+     * 指定されたプレイヤー名のUUIDをキャッシュから取得する。
+     * キャッシュに無い場合は、オンラインモードのメインスレッドからの呼び出しなら、
+     * 非同期スレッドでの解決を開始してnullを返し、それ以外なら解決の完了を待つ。
+     * @param name プレイヤー名
+     * @return UUID、解決できなかった場合はnull
      */
     protected String getUUID(String name) {
-        if ( caches.containsKey(name) ) {
-            return caches.get(name).getUuid();
+        String uuid = index.getUuid(name);
+        if ( uuid != null ) {
+            return uuid;
+        }
+        if ( !resolver.isOnlineMode() ) {
+            return refreshPlayerUuid(name);
+        }
+        CompletableFuture<String> future = getUUIDAsync(name);
+        if ( Bukkit.isPrimaryThread() ) {
+            return future.getNow(null);
+        }
+        return join(future);
+    }
+
+    /**
+     * 指定されたプレイヤー名のUUIDを取得する。
+     * キャッシュに無い場合は、非同期スレッドで解決する。
+     * @param name プレイヤー名
+     * @return UUID、解決できなかった場合はnullで完了する
+     */
+    protected CompletableFuture<String> getUUIDAsync(final String name) {
+        String uuid = index.getUuid(name);
+        if ( uuid != null ) {
+            return CompletableFuture.completedFuture(uuid);
+        }
+        return submit(pendingUuids, name, new Callable<String>() {
+            public String call() {
+                return refreshPlayerUuid(name);
+            }
+        });
+    }
+
+    /**
+     * 指定されたプレイヤー名のUUIDを、まとめて解決する。
+     * キャッシュに無いものだけを非同期スレッドで解決する。
+     * プレイヤー名として使えない文字列（グループ名など）は、問い合わせずに無視する。
+     * @param names プレイヤー名
+     * @return 全ての解決が終わったら完了する。解決できなかった名前があっても、正常に完了する。
+     */
+    protected CompletableFuture<Void> resolveAll(Collection<String> names) {
+        ArrayList<CompletableFuture<String>> futures = new ArrayList<CompletableFuture<String>>();
+        for ( String name : names ) {
+            if ( PLAYER_NAME_PATTERN.matcher(name).matches() && !isUuidResolved(name) ) {
+                futures.add(getUUIDAsync(name));
+            }
         }
-        return refreshPlayerUuid(name);
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()]));
     }
 
     /**
-     * 指定されたUUIDのプレイヤー名をキャッシュから取得する
+     * 指定されたUUIDのプレイヤー名をキャッシュから取得する。
+     * キャッシュに無い場合の扱いは、getUUIDと同様。
      * @param uuid UUID
-     * @return プレイヤー名
+     * @return プレイヤー名、解決できなかった場合はnull
      */
     protected String getName(String uuid) {
-        for ( PlayerUuidCacheData d : caches.values() ) {
-            if ( d.getUuid().equals(uuid) ) {
-                return d.getName();
-            }
+        String name = index.getName(uuid);
+        if ( name != null ) {
+            return name;
+        }
+        if ( !resolver.isOnlineMode() ) {
+            return resolver.getNameFromUUID(uuid);
         }
-        return resolver.getNameFromUUID(uuid);
+        CompletableFuture<String> future = getNameAsync(uuid);
+        if ( Bukkit.isPrimaryThread() ) {
+            return future.getNow(null);
+        }
+        return join(future);
+    }
+
+    /**
+     * 指定されたUUIDのプレイヤー名を取得する。
+     * キャッシュに無い場合は、非同期スレッドで解決し、解決できたらキャッシュに追加する。
+     * @param uuid UUID
+     * @return プレイヤー名、解決できなかった場合はnullで完了する
+     */
+    protected CompletableFuture<String> getNameAsync(final String uuid) {
+        String name = index.getName(uuid);
+        if ( name != null ) {
+            return CompletableFuture.completedFuture(name);
+        }
+        return submit(pendingNames, uuid, new Callable<String>() {
+            public String call() {
+                String name = resolver.getNameFromUUID(uuid);
+                if ( name != null ) {
+                    PlayerUuidCacheData data = new PlayerUuidCacheData(name, uuid, new Date());
+                    put(data);
+                    save(data);
+                }
+                return name;
+            }
+        });
+    }
+
+    /**
+     * キャッシュデータを追加する
+     * @param data キャッシュデータ
+     */
+    synchronized void put(PlayerUuidCacheData data) {
+        index.put(data);
     }
 
     /**
      * 指定されたプレイヤー名のUUIDを更新する
      * @param name プレイヤー名
+     * @return UUID、解決できなかった場合はnull
      */
     private String refreshPlayerUuid(String name) {
 
-        String uuid = null;
-        PlayerUuidCacheData data = null;
-        if ( caches.containsKey(name) ) {
-            data = caches.get(name);
-            if ( isBefore30Days(data.getLastKnownDate()) ) {
-                uuid = resolver.getUUIDFromName(name, new Date());
-                if ( uuid == null ) return null;
-                data = new PlayerUuidCacheData(name, uuid, new Date());
-                caches.put(name, data);
-                data.save();
-            }
-        } else {
-            uuid = resolver.getUUIDFromName(name, new Date());
-            if ( uuid == null ) return null;
-            data = new PlayerUuidCacheData(name, uuid, new Date());
-            caches.put(name, data);
-            data.save();
+        PlayerUuidCacheData data = index.get(name);
+        if ( data != null && !isBefore30Days(data.getLastKnownDate()) ) {
+            return data.getUuid();
         }
 
+        String uuid = resolver.getUUIDFromName(name, new Date());
+        if ( uuid == null ) {
+            // 再確認できなかった場合は、古いキャッシュデータか、上限で取り除かれる前の対応を使う
+            return (data != null) ? data.getUuid() : index.getUuid(name);
+        }
+        data = new PlayerUuidCacheData(name, uuid, new Date());
+        put(data);
+        save(data);
         return uuid;
     }
 
@@ -208,17 +402,122 @@ public class PlayerUuidCache {
      * 指定されたプレイヤー名のUUIDを、非同期スレッドで更新する
      * @param name プレイヤー名
      */
-    protected void asyncRefreshPlayerUuid(String name) {
+    protected void asyncRefreshPlayerUuid(final String name) {
+        submit(pendingUuids, name, new Callable<String>() {
+            public String call() {
+                return refreshPlayerUuid(name);
+            }
+        });
+    }
 
-        new BukkitRunnable() {
-            public void run() {
-                refreshPlayerUuid(name);
+    // キャッシュデータを、データベースかキャッシュファイルに保存する。
+    private void save(PlayerUuidCacheData data) {
+        if ( database != null ) {
+            data.saveToDatabase(database);
+        } else if ( cacheFile != null ) {
+            cacheFile.append(data);
+        }
+    }
+
+    // 指定されたキーの解決を、非同期スレッドで開始する。
+    // 同じキーの解決が実行中なら、新しく開始せずに、実行中の解決の結果を共有する。
+    private CompletableFuture<String> submit(
+            final ConcurrentHashMap<String, CompletableFuture<String>> pending,
+            final String key, final Callable<String> task) {
+
+        CompletableFuture<String> future = pending.get(key);
+        if ( future != null ) {
+            return future;
+        }
+        final CompletableFuture<String> created = new CompletableFuture<String>();
+        future = pending.putIfAbsent(key, created);
+        if ( future != null ) {
+            return future;
+        }
+
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        created.complete(task.call());
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                        created.complete(null);
+                    } finally {
+                        pending.remove(key, created);
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            // プラグインの無効化中などで、非同期タスクを開始できなかった
+            pending.remove(key, created);
+            created.complete(null);
+        }
+        return created;
+    }
+
+    // 解決の完了を待つ。
+    private static String join(CompletableFuture<String> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            return null;
+        }
+    }
+
+    /**
+     * バッチスケジューラを停止して、キャッシュファイルを閉じる
+     */
+    protected void close() {
+        batchScheduler.shutdown();
+        cacheFile.close();
+    }
+
+    /**
+     * 以前のバージョンの、プレイヤーごとのYamlファイルを読み込んで、キャッシュファイルにまとめる。
+     * キャッシュファイルを作成できた場合は、Yamlファイルを削除する。
+     * @param folder Yamlファイルのあるフォルダ
+     * @param cacheFile キャッシュファイル
+     * @return 読み込んだキャッシュデータ
+     */
+    static List<PlayerUuidCacheData> migrateLegacyFiles(File folder, PlayerUuidCacheFile cacheFile) {
+
+        ArrayList<PlayerUuidCacheData> loaded = new ArrayList<PlayerUuidCacheData>();
+        ArrayList<File> files = new ArrayList<File>();
+        File[] children = folder.listFiles();
+        if ( children != null ) {
+            for ( File file : children ) {
+                if ( !file.getName().endsWith(".yml") ) {
+                    continue;
+                }
+                loaded.add(PlayerUuidCacheData.load(file));
+                files.add(file);
             }
-        }.runTaskAsynchronously(UndineMailer.getInstance());
+        }
+
+        if ( cacheFile.compact(loaded) ) {
+            for ( File file : files ) {
+                file.delete();
+            }
+        }
+        return loaded;
+    }
+
+    // データベースのキャッシュテーブルが空かどうかを判定する。
+    private static boolean isDatabaseEmpty(UndineDatabase database) {
+        try {
+            return database.isEmpty("uuid_cache");
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return true;
+        }
     }
 
     // 指定されたDateが、30日以前かどうかを判定する。
     private static boolean isBefore30Days(Date date) {
-        return date.before(new Date(System.currentTimeMillis() - 1000L*24*3600* 30));
+        return date.before(new Date(System.currentTimeMillis() - STALE_MILLIS));
     }
 }
@@ -1,8 +1,14 @@
 package org.bitbucket.ucchy.undine;
 
 import java.io.File;
-import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 
 import org.bukkit.configuration.file.YamlConfiguration;
 
@@ -15,6 +21,7 @@ public class PlayerUuidCacheData {
     private String name;
     private String uuid;
     private Date lastKnownDate;
+    private volatile long lastAccessTime;
 
     /**
      * コンストラクタ
@@ -28,6 +35,11 @@ public class PlayerUuidCacheData {
         this.lastKnownDate = lastKnownDate;
     }
 
+    /**
+     * 以前のバージョンの、プレイヤーごとのYamlファイルからキャッシュデータをロードする
+     * @param file ファイル
+     * @return キャッシュデータ
+     */
     protected static PlayerUuidCacheData load(File file) {
 
         YamlConfiguration conf = YamlConfiguration.loadConfiguration(file);
@@ -38,21 +50,73 @@ public class PlayerUuidCacheData {
         return new PlayerUuidCacheData(name, uuid, date);
     }
 
-    protected void save() {
+    /**
+     * データベースから全てのキャッシュデータをロードする
+     * @param database データベース
+     * @return キャッシュデータのリスト
+     */
+    protected static List<PlayerUuidCacheData> loadFromDatabase(UndineDatabase database) {
 
-        File folder = UndineMailer.getInstance().getCacheFolder();
-        YamlConfiguration conf = new YamlConfiguration();
-        conf.set("name", name);
-        conf.set("uuid", uuid);
-        conf.set("lastKnownDate", lastKnownDate.getTime());
+        try {
+            return database.execute(new UndineDatabase.Work<List<PlayerUuidCacheData>>() {
+                public List<PlayerUuidCacheData> run(Connection connection) throws SQLException {
+                    List<PlayerUuidCacheData> result = new ArrayList<PlayerUuidCacheData>();
+                    try (Statement statement = connection.createStatement();
+                            ResultSet rs = statement.executeQuery(
+                                    "SELECT name, uuid, last_known_date FROM uuid_cache")) {
+                        while ( rs.next() ) {
+                            result.add(new PlayerUuidCacheData(
+                                    rs.getString(1), rs.getString(2), new Date(rs.getLong(3))));
+                        }
+                    }
+                    return result;
+                }
+            });
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return new ArrayList<PlayerUuidCacheData>();
+        }
+    }
+
+    /**
+     * データベースにキャッシュデータを保存する
+     * @param database データベース
+     */
+    protected void saveToDatabase(UndineDatabase database) {
 
         try {
-            conf.save(new File(folder, uuid + ".yml"));
-        } catch (IOException e) {
+            database.execute(new UndineDatabase.Work<Void>() {
+                public Void run(Connection connection) throws SQLException {
+                    try (PreparedStatement statement = connection.prepareStatement(
+                            "INSERT OR REPLACE INTO uuid_cache (uuid, name, last_known_date) VALUES (?, ?, ?)")) {
+                        statement.setString(1, uuid);
+                        statement.setString(2, name);
+                        statement.setLong(3, lastKnownDate.getTime());
+                        statement.executeUpdate();
+                    }
+                    return null;
+                }
+            });
+        } catch (SQLException e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * キャッシュから参照されたことを記録する
+     */
+    protected void touch() {
+        lastAccessTime = System.currentTimeMillis();
+    }
+
+    /**
+     * キャッシュから最後に参照された時刻を返す
+     * @return 時刻
+     */
+    protected long getLastAccessTime() {
+        return lastAccessTime;
+    }
+
     /**
      * @return name
      */
@@ -0,0 +1,257 @@
+/*
+ * @author     ucchy
+ * @license    LGPLv3
+ * @copyright  Copyright ucchy 2015
+ */
+package org.bitbucket.ucchy.undine;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * プレイヤーのUUIDキャッシュを、1つのファイルにまとめて保存するクラス。
+ * キャッシュデータの変更は、ファイルの末尾へのレコード追記として記録され、
+ * 同じプレイヤー名の古いレコードは、compactでファイルを作り直すときに取り除かれる。
+ * レコードは、長さ、内容（名前、UUID、最終確認日時）、チェックサムの順に書き込まれる。
+ * @author ucchy
+ */
+class PlayerUuidCacheFile {
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /** 1レコードの最大長。これを超える長さのレコードは壊れているとみなす。 */
+    private static final int RECORD_MAX_LENGTH = 64 * 1024;
+
+    /** 不要になったレコードが、この数以下ならコンパクションしない。 */
+    private static final int COMPACT_MIN_GARBAGE = 1000;
+
+    private File file;
+    private DataOutputStream out;
+    private int records;
+
+    /**
+     * コンストラクタ
+     * @param file キャッシュファイル
+     */
+    PlayerUuidCacheFile(File file) {
+        this.file = file;
+    }
+
+    /**
+     * キャッシュファイルが存在するかどうかを返す
+     * @return 存在するかどうか
+     */
+    boolean exists() {
+        return file.exists();
+    }
+
+    /**
+     * キャッシュファイルから、全てのキャッシュデータをロードする。
+     * 同じプレイヤー名のレコードが複数ある場合は、後に書き込まれたものを使用する。
+     * 末尾に壊れたレコードがある場合は、そのレコード以降を切り捨てる。
+     * @return キャッシュデータのリスト
+     */
+    synchronized List<PlayerUuidCacheData> load() {
+
+        LinkedHashMap<String, PlayerUuidCacheData> state = new LinkedHashMap<String, PlayerUuidCacheData>();
+        records = 0;
+        if ( !file.exists() ) {
+            return new ArrayList<PlayerUuidCacheData>();
+        }
+
+        long position = 0;
+        boolean broken = false;
+
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+
+            while ( true ) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                if ( length < 0 || length > RECORD_MAX_LENGTH ) {
+                    broken = true;
+                    break;
+                }
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                if ( in.readLong() != checksum(payload) ) {
+                    broken = true;
+                    break;
+                }
+
+                PlayerUuidCacheData data = decode(payload);
+                state.remove(data.getName());
+                state.put(data.getName(), data);
+                records++;
+                position += recordSize(payload);
+            }
+
+        } catch (EOFException e) {
+            broken = true;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        if ( broken ) {
+            UndineMailer.getInstance().getLogger().warning(
+                    "Player cache " + file.getName() + " has a broken record at "
+                    + position + ". The rest of the file was discarded.");
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(position);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        return new ArrayList<PlayerUuidCacheData>(state.values());
+    }
+
+    /**
+     * キャッシュデータを、ファイルの末尾に追記する
+     * @param data キャッシュデータ
+     */
+    synchronized void append(PlayerUuidCacheData data) {
+
+        try {
+            if ( out == null ) {
+                out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+            }
+            writeRecord(out, encode(data));
+            out.flush();
+            records++;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * コンパクションが必要かどうかを返す
+     * @param size 現在キャッシュしているプレイヤーの数
+     * @return 不要になったレコードが、一定数以上かつプレイヤーの数以上あるかどうか
+     */
+    synchronized boolean isCompactionNeeded(int size) {
+        int garbage = records - size;
+        return garbage > COMPACT_MIN_GARBAGE && garbage > size;
+    }
+
+    /**
+     * プレイヤー名ごとに最新のレコードだけを含むように、ファイルの内容から作り直す。
+     * 読み込みから置き換えまでの間に、他のスレッドからの追記が割り込まないように同期して行う。
+     * @return 作り直せたかどうか
+     */
+    synchronized boolean compact() {
+        return compact(load());
+    }
+
+    /**
+     * 指定されたキャッシュデータだけを含むように、ファイルを作り直す。
+     * 書き出しは一時ファイルに対して行い、完了してからキャッシュファイルと置き換える。
+     * @param caches キャッシュデータ
+     * @return 作り直せたかどうか
+     */
+    synchronized boolean compact(Collection<PlayerUuidCacheData> caches) {
+
+        File temp = new File(file.getParentFile(), file.getName() + TEMP_SUFFIX);
+        int written = 0;
+
+        try (DataOutputStream snapshot = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temp)))) {
+            for ( PlayerUuidCacheData data : caches ) {
+                writeRecord(snapshot, encode(data));
+                written++;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            temp.delete();
+            return false;
+        }
+
+        close();
+        try {
+            try {
+                Files.move(temp.toPath(), file.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            temp.delete();
+            return false;
+        }
+
+        records = written;
+        return true;
+    }
+
+    /**
+     * ファイルを閉じる
+     */
+    synchronized void close() {
+        if ( out == null ) return;
+        try {
+            out.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        out = null;
+    }
+
+    private static byte[] encode(PlayerUuidCacheData data) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeUTF(data.getName());
+            out.writeUTF(data.getUuid());
+            out.writeLong(data.getLastKnownDate().getTime());
+        }
+        return bytes.toByteArray();
+    }
+
+    private static PlayerUuidCacheData decode(byte[] payload) throws IOException {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload))) {
+            String name = in.readUTF();
+            String uuid = in.readUTF();
+            Date date = new Date(in.readLong());
+            return new PlayerUuidCacheData(name, uuid, date);
+        }
+    }
+
+    private static void writeRecord(DataOutputStream out, byte[] payload) throws IOException {
+        out.writeInt(payload.length);
+        out.write(payload);
+        out.writeLong(checksum(payload));
+    }
+
+    private static long recordSize(byte[] payload) {
+        return 4 + payload.length + 8;
+    }
+
+    private static long checksum(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        return crc.getValue();
+    }
+}
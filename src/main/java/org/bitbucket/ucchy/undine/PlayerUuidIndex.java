@@ -0,0 +1,192 @@
+/*
+ * @author     ucchy
+ * @license    LGPLv3
+ * @copyright  Copyright ucchy 2015
+ */
+package org.bitbucket.ucchy.undine;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * プレイヤー名とUUIDの双方向の索引と、プレイヤー名からUUIDキャッシュデータの索引。
+ * 参照はロック無しで、どのスレッドからも行える。追加は同期して行う。
+ * 上限の件数が指定されている場合は、上限を超えたときに、キャッシュデータだけを
+ * 30日以上確認していないデータ、最近参照されていないデータの順に取り除く。
+ * プレイヤー名とUUIDの対応は、取り除かずに全て保持する。
+ * @author ucchy
+ */
+class PlayerUuidIndex {
+
+    private ConcurrentHashMap<String, PlayerUuidCacheData> caches;
+    private ConcurrentHashMap<String, String> uuids;
+    private ConcurrentHashMap<String, String> names;
+    private int maxSize;
+
+    /**
+     * コンストラクタ
+     * @param maxSize 上限の件数、0以下なら上限なし
+     */
+    PlayerUuidIndex(int maxSize) {
+        caches = new ConcurrentHashMap<String, PlayerUuidCacheData>();
+        uuids = new ConcurrentHashMap<String, String>();
+        names = new ConcurrentHashMap<String, String>();
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * 指定されたプレイヤー名のキャッシュデータを取得する
+     * @param name プレイヤー名
+     * @return キャッシュデータ、無い場合と、上限を超えて取り除かれた場合はnull
+     */
+    PlayerUuidCacheData get(String name) {
+        PlayerUuidCacheData data = caches.get(name);
+        if ( data != null ) {
+            data.touch();
+        }
+        return data;
+    }
+
+    /**
+     * 指定されたプレイヤー名のUUIDを取得する
+     * @param name プレイヤー名
+     * @return UUID、無い場合はnull
+     */
+    String getUuid(String name) {
+        PlayerUuidCacheData data = get(name);
+        if ( data != null ) {
+            return data.getUuid();
+        }
+        return uuids.get(name);
+    }
+
+    /**
+     * 指定されたUUIDのプレイヤー名を取得する
+     * @param uuid UUID
+     * @return プレイヤー名、無い場合はnull
+     */
+    String getName(String uuid) {
+        String name = names.get(uuid);
+        if ( name != null ) {
+            PlayerUuidCacheData data = caches.get(name);
+            if ( data != null ) {
+                data.touch();
+            }
+        }
+        return name;
+    }
+
+    /**
+     * キャッシュデータを追加する。
+     * 同じ名前が別のUUIDに変わった場合は、古いUUIDから名前への対応を取り除く。
+     * @param data キャッシュデータ
+     */
+    synchronized void put(PlayerUuidCacheData data) {
+
+        data.touch();
+        putUuid(data.getName(), data.getUuid());
+        caches.put(data.getName(), data);
+
+        if ( maxSize > 0 && caches.size() > maxSize ) {
+            evict();
+        }
+    }
+
+    /**
+     * キャッシュデータを持たずに、プレイヤー名とUUIDの対応だけを追加する。
+     * 上限を超えてキャッシュデータが取り除かれたプレイヤーを、引き継ぐときに使う。
+     * @param name プレイヤー名
+     * @param uuid UUID
+     */
+    synchronized void putUuid(String name, String uuid) {
+        String old = uuids.put(name, uuid);
+        if ( old != null && !old.equals(uuid) ) {
+            names.remove(old, name);
+        }
+        names.put(uuid, name);
+    }
+
+    /**
+     * 保持しているプレイヤーの数を返す
+     * @return 件数
+     */
+    int size() {
+        return uuids.size();
+    }
+
+    /**
+     * 保持しているキャッシュデータの件数を返す
+     * @return 件数
+     */
+    int getCachedSize() {
+        return caches.size();
+    }
+
+    /**
+     * 保持しているプレイヤー名を返す
+     * @return プレイヤー名
+     */
+    Set<String> getPlayerNames() {
+        return Collections.unmodifiableSet(uuids.keySet());
+    }
+
+    /**
+     * 保持しているUUIDを返す
+     * @return UUID
+     */
+    Set<String> getPlayerUuids() {
+        return Collections.unmodifiableSet(names.keySet());
+    }
+
+    /**
+     * 保持しているキャッシュデータを返す。上限を超えて取り除かれたものは含まれない。
+     * @return キャッシュデータ
+     */
+    Collection<PlayerUuidCacheData> values() {
+        return Collections.unmodifiableCollection(caches.values());
+    }
+
+    // 上限の9割まで、古いキャッシュデータから取り除く。プレイヤー名とUUIDの対応は残す。
+    // 1件ごとに全体を並べ替えないように、まとめて取り除く。
+    private void evict() {
+
+        // 並べ替えの途中で参照時刻が変わらないように、先に写し取っておく
+        long staleLimit = System.currentTimeMillis() - PlayerUuidCache.STALE_MILLIS;
+        ArrayList<Candidate> list = new ArrayList<Candidate>(caches.size());
+        for ( PlayerUuidCacheData data : caches.values() ) {
+            list.add(new Candidate(data, data.getLastKnownDate().getTime() < staleLimit));
+        }
+        Collections.sort(list, new Comparator<Candidate>() {
+            public int compare(Candidate o1, Candidate o2) {
+                if ( o1.stale != o2.stale ) return o1.stale ? -1 : 1;
+                return Long.compare(o1.accessTime, o2.accessTime);
+            }
+        });
+
+        int count = list.size() - Math.max(1, maxSize * 9 / 10);
+        for ( int i=0; i<count; i++ ) {
+            PlayerUuidCacheData data = list.get(i).data;
+            caches.remove(data.getName(), data);
+        }
+    }
+
+    /**
+     * 取り除く候補のデータ
+     */
+    private static class Candidate {
+
+        private PlayerUuidCacheData data;
+        private boolean stale;
+        private long accessTime;
+
+        private Candidate(PlayerUuidCacheData data, boolean stale) {
+            this.data = data;
+            this.stale = stale;
+            this.accessTime = data.getLastAccessTime();
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * @author     ucchy
+ * @license    LGPLv3
+ * @copyright  Copyright ucchy 2015
+ */
+package org.bitbucket.ucchy.undine;
+
+/**
+ * リクエスト数を制限するためのトークンバケット。
+ * 一定時間ごとにトークンが1つずつ補充され、リクエストのたびにトークンを1つ消費する。
+ * 時刻は呼び出し側から渡すので、このクラス自体は待機を行わない。
+ * @author ucchy
+ */
+class TokenBucket {
+
+    private int capacity;
+    private long refillMillis;
+    private double tokens;
+    private long lastRefill;
+
+    /**
+     * コンストラクタ。満杯の状態で作成する。
+     * @param capacity トークンの最大数（連続してリクエストできる数）
+     * @param refillMillis トークンを1つ補充する間隔（ミリ秒）
+     * @param now 現在時刻（ミリ秒）
+     */
+    TokenBucket(int capacity, long refillMillis, long now) {
+        this.capacity = capacity;
+        this.refillMillis = refillMillis;
+        this.tokens = capacity;
+        this.lastRefill = now;
+    }
+
+    /**
+     * トークンを1つ取得する
+     * @param now 現在時刻（ミリ秒）
+     * @return 取得できた場合は0、取得できなかった場合は次のトークンが補充されるまでの時間（ミリ秒）
+     */
+    synchronized long tryAcquire(long now) {
+        refill(now);
+        if ( tokens >= 1 ) {
+            tokens -= 1;
+            return 0;
+        }
+        return Math.max(1, (long)Math.ceil((1 - tokens) * refillMillis));
+    }
+
+    /**
+     * トークンを全て捨てる。サーバーから制限超過を通知された場合に使用する。
+     * @param now 現在時刻（ミリ秒）
+     */
+    synchronized void drain(long now) {
+        refill(now);
+        tokens = 0;
+    }
+
+    /**
+     * 残っているトークンの数を返す
+     * @param now 現在時刻（ミリ秒）
+     * @return トークンの数
+     */
+    synchronized int getTokens(long now) {
+        refill(now);
+        return (int)tokens;
+    }
+
+    private void refill(long now) {
+        if ( now <= lastRefill ) return;
+        tokens = Math.min(capacity, tokens + (double)(now - lastRefill) / refillMillis);
+        lastRefill = now;
+    }
+}
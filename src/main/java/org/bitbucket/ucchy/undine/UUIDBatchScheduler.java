@@ -0,0 +1,279 @@
+/*
+ * @author     ucchy
+ * @license    LGPLv3
+ * @copyright  Copyright ucchy 2015
+ */
+package org.bitbucket.ucchy.undine;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 複数のプレイヤー名のUUIDを、APIのリクエスト数の制限に合わせてまとめて解決するスケジューラ。
+ * リクエストはトークンバケットで間隔を空け、バッチサイズは応答に合わせて増減させる。
+ * 制限超過や通信の失敗は、揺らぎを加えた指数的な間隔で再試行する。
+ * 待機はスレッドを止めずに、専用のスレッドへの遅延実行で行う。
+ * @author ucchy
+ */
+class UUIDBatchScheduler {
+
+    /** トークンの最大数。連続して送るリクエストの数。 */
+    static final int DEFAULT_BUCKET_CAPACITY = 10;
+
+    /** トークンを補充する間隔。Mojangの制限（10分間に600リクエスト）に合わせて、1秒に1つ。 */
+    static final long DEFAULT_REFILL_MILLIS = 1000L;
+
+    /** 再試行の間隔の初期値 */
+    static final long DEFAULT_BACKOFF_MILLIS = 5000L;
+
+    /** 1回に問い合わせる件数の上限。Mojangの制限。 */
+    private static final int MAX_BATCH_SIZE = 10;
+
+    /** 再試行の間隔の上限 */
+    private static final long MAX_BACKOFF_MILLIS = 10L * 60 * 1000;
+
+    /** 同じバッチを再試行する回数の上限。超えたら、そのバッチは解決できなかったものとする。 */
+    private static final int MAX_RETRIES = 6;
+
+    private UUIDResolver resolver;
+    private TokenBucket bucket;
+    private long backoffMillis;
+    private Random random;
+
+    private ScheduledExecutorService executor;
+    private ArrayDeque<Job> queue;
+    private boolean running;
+    private boolean isShutdown;
+    private int batchSize;
+    private int maxBatchSize;
+    private int failures;
+
+    /**
+     * コンストラクタ
+     * @param resolver リゾルバ
+     */
+    UUIDBatchScheduler(UUIDResolver resolver) {
+        this(resolver, DEFAULT_BUCKET_CAPACITY, DEFAULT_REFILL_MILLIS, DEFAULT_BACKOFF_MILLIS);
+    }
+
+    /**
+     * コンストラクタ
+     * @param resolver リゾルバ
+     * @param capacity トークンの最大数
+     * @param refillMillis トークンを1つ補充する間隔（ミリ秒）
+     * @param backoffMillis 再試行の間隔の初期値（ミリ秒）
+     */
+    UUIDBatchScheduler(UUIDResolver resolver, int capacity, long refillMillis, long backoffMillis) {
+        this.resolver = resolver;
+        this.bucket = new TokenBucket(capacity, refillMillis, System.currentTimeMillis());
+        this.backoffMillis = backoffMillis;
+        this.random = new Random();
+        this.queue = new ArrayDeque<Job>();
+        this.batchSize = MAX_BATCH_SIZE;
+        this.maxBatchSize = MAX_BATCH_SIZE;
+    }
+
+    /**
+     * 指定されたプレイヤー名のUUIDの解決を予約する。
+     * 先に予約されたものから順に解決する。
+     * 停止した後は予約を受け付けず、キャッシュにある分だけで完了させる。
+     * @param names プレイヤー名
+     * @return 解決できたプレイヤー名とUUID（存在しないプレイヤー名は含まれない）で完了する
+     */
+    synchronized CompletableFuture<Map<String, String>> resolve(Collection<String> names) {
+
+        Job job = new Job();
+        for ( String name : names ) {
+            String cached = resolver.getCachedUUID(name);
+            if ( cached != null ) {
+                job.results.put(name, cached);
+            } else {
+                job.remaining.add(name);
+            }
+        }
+        if ( job.remaining.isEmpty() || isShutdown ) {
+            job.future.complete(job.results);
+            return job.future;
+        }
+
+        queue.add(job);
+        if ( !running ) {
+            running = true;
+            schedule(0);
+        }
+        return job.future;
+    }
+
+    /**
+     * スケジューラを停止する。解決中の予約は、それまでに解決できた分で完了させる。
+     * 停止したスケジューラは、再び使うことはできない。
+     */
+    synchronized void shutdown() {
+        isShutdown = true;
+        if ( executor != null ) {
+            executor.shutdownNow();
+            executor = null;
+        }
+        running = false;
+        while ( !queue.isEmpty() ) {
+            Job job = queue.poll();
+            job.future.complete(job.results);
+        }
+    }
+
+    /**
+     * 現在のバッチサイズを返す
+     * @return バッチサイズ
+     */
+    synchronized int getBatchSize() {
+        return batchSize;
+    }
+
+    // 先頭の予約から、1バッチ分を問い合わせる。
+    private void step() {
+
+        Job job;
+        List<String> batch;
+        synchronized (this) {
+            if ( !running ) return;
+            job = queue.peek();
+            if ( job == null ) {
+                running = false;
+                return;
+            }
+            long wait = bucket.tryAcquire(System.currentTimeMillis());
+            if ( wait > 0 ) {
+                schedule(wait);
+                return;
+            }
+            batch = job.next(batchSize);
+        }
+
+        // 通信中はロックを持たない
+        UUIDResolver.ProfileResponse response = resolver.requestProfiles(batch);
+
+        synchronized (this) {
+            if ( !running ) return;
+            long delay = 0;
+
+            if ( response.isSuccess() ) {
+                job.complete(batch, response.getProfiles());
+                failures = 0;
+                if ( batchSize < maxBatchSize ) {
+                    batchSize++;
+                }
+
+            } else if ( response.isRateLimited() ) {
+                // 他のプラグインなどと制限を共有している可能性があるので、トークンを捨てて待つ
+                bucket.drain(System.currentTimeMillis());
+                delay = nextBackoff(batch, job);
+
+            } else if ( response.getMaxBatchSize() > 0 ) {
+                maxBatchSize = response.getMaxBatchSize();
+                batchSize = Math.min(batchSize, maxBatchSize);
+
+            } else if ( response.getStatus() == 400 ) {
+                // 不正な名前が含まれているバッチは、半分ずつに分けて、不正な名前だけを取り除く
+                if ( batch.size() > 1 ) {
+                    batchSize = Math.max(1, batch.size() / 2);
+                } else {
+                    job.skip(batch);
+                }
+
+            } else {
+                delay = nextBackoff(batch, job);
+            }
+
+            if ( job.remaining.isEmpty() ) {
+                queue.remove(job);
+                job.future.complete(job.results);
+            }
+            schedule(delay);
+        }
+    }
+
+    // 失敗の回数に応じた、次の再試行までの時間を返す。
+    // 再試行の上限を超えた場合は、そのバッチを諦めて次に進む。
+    private long nextBackoff(List<String> batch, Job job) {
+        failures++;
+        if ( failures > MAX_RETRIES ) {
+            UUIDResolver.getLogger().warning("Gave up resolving UUIDs of " + batch + ".");
+            job.skip(batch);
+            failures = 0;
+            return backoffMillis;
+        }
+        long max = Math.min(MAX_BACKOFF_MILLIS, backoffMillis << Math.min(failures - 1, 20));
+        return max / 2 + (long)(random.nextDouble() * (max / 2));
+    }
+
+    private void schedule(long delay) {
+        if ( isShutdown ) {
+            running = false;
+            return;
+        }
+        if ( executor == null ) {
+            executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "UndineMailer UUID resolver");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        try {
+            executor.schedule(new Runnable() {
+                public void run() {
+                    step();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            running = false;
+        }
+    }
+
+    /**
+     * 解決の予約
+     */
+    private static class Job {
+
+        private ArrayDeque<String> remaining = new ArrayDeque<String>();
+        private Map<String, String> results = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+        private CompletableFuture<Map<String, String>> future = new CompletableFuture<Map<String, String>>();
+
+        // 残りの名前の先頭から、指定された件数を取り出す（まだ取り除かない）
+        private List<String> next(int size) {
+            ArrayList<String> batch = new ArrayList<String>(size);
+            Iterator<String> it = remaining.iterator();
+            while ( it.hasNext() && batch.size() < size ) {
+                batch.add(it.next());
+            }
+            return batch;
+        }
+
+        private void complete(List<String> batch, Map<String, UUID> profiles) {
+            for ( Map.Entry<String, UUID> entry : profiles.entrySet() ) {
+                results.put(entry.getKey(), entry.getValue().toString());
+            }
+            skip(batch);
+        }
+
+        private void skip(List<String> batch) {
+            for ( int i=0; i<batch.size(); i++ ) {
+                remaining.poll();
+            }
+        }
+    }
+}
@@ -23,13 +23,13 @@ import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
-import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
 import java.util.TreeMap;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -51,12 +51,15 @@ public class UUIDResolver {
     private static final Pattern API_MAX_PROFILE_BATCH_SIZE_PATTERN = Pattern.compile(".*Not more that (?<batchSize>\\d+) profile name per call is allowed.*");
     private static final String UUID_FORMAT_REGEX = "(\\w{8})(\\w{4})(\\w{4})(\\w{4})(\\w{12})";
     private static final String UUID_FORMAT_REPLACE_TO = "$1-$2-$3-$4-$5";
-    private static final long MOJANG_QUERY_RETRY_TIME = 600000L;
+
+    /** MojangのAPIのベースURL */
+    public static final String DEFAULT_API_BASE_URL = "https://api.mojang.com";
 
     private static final Gson GSON = new Gson();
-    private static final Map<String, String> UUID_CACHE = new HashMap<String, String>();
+    private static final Map<String, String> UUID_CACHE = new ConcurrentHashMap<String, String>();
 
     private boolean onlineMode = false;
+    private String apiBaseUrl;
 
     /**
      * コンストラクタ
@@ -70,10 +73,29 @@ public class UUIDResolver {
      * @param useUserCacheJson usercache.jsonからキャッシュの初期値を取得するかどうか
      */
     public UUIDResolver(boolean onlineMode) {
+        this(onlineMode, DEFAULT_API_BASE_URL);
+    }
+
+    /**
+     * コンストラクタ
+     * @param onlineMode オンラインモードかどうか
+     * @param apiBaseUrl オンラインモードで問い合わせるAPIのベースURL（末尾の/は不要）
+     */
+    public UUIDResolver(boolean onlineMode, String apiBaseUrl) {
         this.onlineMode = onlineMode;
+        this.apiBaseUrl = apiBaseUrl.endsWith("/")
+                ? apiBaseUrl.substring(0, apiBaseUrl.length() - 1) : apiBaseUrl;
         if ( !onlineMode ) loadUserCache();
     }
 
+    /**
+     * オンラインモードかどうかを返す
+     * @return オンラインモードかどうか
+     */
+    protected boolean isOnlineMode() {
+        return onlineMode;
+    }
+
     // usercache.jsonを、uuidCacheの初期値としてロードする
     private void loadUserCache() {
 
@@ -97,7 +119,7 @@ public class UUIDResolver {
             e.printStackTrace();
         }
 
-        System.out.println("Loaded " + loaded + " UUIDs from local cache.");
+        getLogger().info("Loaded " + loaded + " UUIDs from local cache.");
     }
 
     /**
@@ -127,17 +149,17 @@ public class UUIDResolver {
     private NameChange[] getOnlineNamesFromUUID(String uuid) {
         NameChange[] names = null;
         try {
-            Scanner jsonScanner = new Scanner((new URL("https://api.mojang.com/user/profiles/" + uuid.replaceAll("-", "") + "/names")).openConnection().getInputStream(), "UTF-8");
+            Scanner jsonScanner = new Scanner((new URL(apiBaseUrl + "/user/profiles/" + uuid.replaceAll("-", "") + "/names")).openConnection().getInputStream(), "UTF-8");
             names = GSON.fromJson(jsonScanner.next(), NameChange[].class);
             jsonScanner.close();
         } catch(IOException e) {
             if (e.getMessage().contains("HTTP response code: 429")) {
-                System.out.println("You have reached the request limit of the Mojang api! Please retry later!");
+                getLogger().warning("You have reached the request limit of the Mojang api! Please retry later!");
             } else {
-                System.out.println("Looks like there is a problem with the connection with Mojang. Please retry later.");
+                getLogger().warning("Looks like there is a problem with the connection with Mojang. Please retry later.");
             }
         } catch(Exception e) {
-            System.out.println("Looks like there is no player with this uuid!\n UUID: \"" + uuid + "\"");
+            getLogger().warning("Looks like there is no player with this uuid!\n UUID: \"" + uuid + "\"");
         }
         return names;
     }
@@ -175,37 +197,38 @@ public class UUIDResolver {
 
         String uuid = null;
         try (BufferedReader in = new BufferedReader(new InputStreamReader(
-                new URL("https://api.mojang.com/users/profiles/minecraft/" + name + ((at != null) ? "?at=" + (at.getTime()/1000L) : "")).openStream(), StandardCharsets.UTF_8))) {
+                new URL(apiBaseUrl + "/users/profiles/minecraft/" + name + ((at != null) ? "?at=" + (at.getTime()/1000L) : "")).openStream(), StandardCharsets.UTF_8))) {
             uuid = (((JsonObject) new JsonParser().parse(in)).get("id")).getAsString();
             if (uuid != null && (at == null || at.after(new Date(System.currentTimeMillis() - 1000L*24*3600* 30)))) {
                 UUID_CACHE.put(name, uuid);
             }
         } catch(MalformedURLException e) {
-            System.out.println("Failed to get uuid cause of a malformed url!\n Name: \"" + name + "\" Date: " + ((at != null) ? "?at=" + at.getTime()/1000L : "null"));
+            getLogger().warning("Failed to get uuid cause of a malformed url!\n Name: \"" + name + "\" Date: " + ((at != null) ? "?at=" + at.getTime()/1000L : "null"));
         } catch(IOException e) {
             if (e.getMessage().contains("HTTP response code: 429")) {
-                System.out.println("You have reached the request limit of the mojang api! Please retry later!");
+                getLogger().warning("You have reached the request limit of the mojang api! Please retry later!");
             } else {
-                System.out.println("Looks like there is a problem with the connection with mojang. Please retry later.");
+                getLogger().warning("Looks like there is a problem with the connection with mojang. Please retry later.");
             }
         } catch(Exception e) {
             if(at == null) {
                 // We can't resolve the uuid for the player
-                System.out.println("Unable to get UUID for: " + name + "!");
+                getLogger().warning("Unable to get UUID for: " + name + "!");
             } else if(at.getTime() == 0) {
                 // If it's not his first name maybe it's his current name
-                System.out.println("Unable to get UUID for: " + name + " at 0! Trying without date!");
+                getLogger().info("Unable to get UUID for: " + name + " at 0! Trying without date!");
                 uuid = getOnlineUUID(name, null);
             } else {
                 // If we cant get the player with the date he was here last time it's likely that it is his first name
-                System.out.println("Unable to get UUID for: " + name + " at " + at.getTime()/1000L + "! Trying at=0!");
+                getLogger().info("Unable to get UUID for: " + name + " at " + at.getTime()/1000L + "! Trying at=0!");
                 uuid = getOnlineUUID(name, new Date(0));
             }
         }
         return uuid;
     }
 
-    private static int BATCH_SIZE = 10; // Limit from Mojang
+    /** 1回に問い合わせる件数の初期値。Mojangの制限。 */
+    private static final int DEFAULT_BATCH_SIZE = 10;
 
     /**
      * 複数のプレイヤー名からUUIDをまとめて取得する
@@ -240,84 +263,192 @@ public class UUIDResolver {
             return result;
         }
 
-        List<String> batch = new ArrayList<>(BATCH_SIZE);
-        Iterator<String> players = names.iterator();
-        boolean success;
+        List<String> pending = new ArrayList<>();
         int fromCache = 0, fromWeb = 0;
-        while (players.hasNext()) {
-            while (players.hasNext() && batch.size() < BATCH_SIZE) {
-                String name = players.next();
-                if (UUID_CACHE.containsKey(name)) {
-                    result.put(name, UUID.fromString(UUID_CACHE.get(name).replaceAll(UUID_FORMAT_REGEX, UUID_FORMAT_REPLACE_TO)));
-                    fromCache++;
-                } else {
-                    batch.add(name);
+        for (String name : names) {
+            String cached = getCachedUUID(name);
+            if (cached != null) {
+                result.put(name, UUID.fromString(cached));
+                fromCache++;
+            } else {
+                pending.add(name);
+            }
+        }
+
+        // バッチサイズは呼び出しごとに持ち、他のスレッドの呼び出しと共有しない
+        int batchSize = DEFAULT_BATCH_SIZE;
+        int index = 0;
+        while (index < pending.size()) {
+            List<String> batch = pending.subList(index, Math.min(index + batchSize, pending.size()));
+            ProfileResponse response = requestProfiles(batch);
+            if (response.isSuccess()) {
+                result.putAll(response.getProfiles());
+                fromWeb += response.getProfiles().size();
+                index += batch.size();
+            } else if (response.getMaxBatchSize() > 0 && response.getMaxBatchSize() < batch.size()) {
+                batchSize = response.getMaxBatchSize();
+                getLogger().info("Reducing batch size to " + batchSize + " and try again ...");
+            } else {
+                // ここでは待機や再試行をせずに、解決できた分だけを返す。
+                // 制限に合わせた再試行が必要な場合は、UUIDBatchSchedulerを使うこと。
+                getLogger().warning("Could not convert all names to uuids because of an issue. Please check the log.");
+                break;
+            }
+        }
+
+        getLogger().info("Converted " + (fromCache + fromWeb) + "/" + names.size() + " UUIDs (" + fromCache + " of them from the cache and " + fromWeb + " from Mojang).");
+        return result;
+    }
+
+    /**
+     * 指定されたプレイヤー名のUUIDが、Mojangへの問い合わせ結果のキャッシュにあれば取得する
+     * @param name プレイヤー名
+     * @return UUID、キャッシュに無い場合はnull
+     */
+    protected String getCachedUUID(String name) {
+        String uuid = UUID_CACHE.get(name);
+        if ( uuid == null ) return null;
+        return uuid.replaceAll(UUID_FORMAT_REGEX, UUID_FORMAT_REPLACE_TO);
+    }
+
+    /**
+     * 複数のプレイヤー名のUUIDを、1回のリクエストで問い合わせる。
+     * 待機や再試行は行わないので、応答に応じて呼び出し側で行うこと。
+     * @param batch プレイヤー名
+     * @return 応答
+     */
+    protected ProfileResponse requestProfiles(List<String> batch) {
+
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection) new URL(apiBaseUrl + "/profiles/minecraft").openConnection();
+            connection.setRequestMethod("POST");
+            connection.setRequestProperty("Content-Type", "application/json; encoding=UTF-8");
+            connection.setUseCaches(false);
+            connection.setDoInput(true);
+            connection.setDoOutput(true);
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(GSON.toJson(batch).getBytes(Charsets.UTF_8));
+            }
+
+            int status = connection.getResponseCode();
+            if (status != HttpURLConnection.HTTP_OK) {
+                String errorMessage = readError(connection);
+                if (status != 429) {
+                    getLogger().warning("Mojang responded with status code: " + status + " Message: " + errorMessage);
                 }
+                Matcher matcher = API_MAX_PROFILE_BATCH_SIZE_PATTERN.matcher(errorMessage);
+                int maxBatchSize = (status == 400 && matcher.matches())
+                        ? Integer.parseInt(matcher.group("batchSize")) : -1;
+                return new ProfileResponse(status, null, maxBatchSize);
             }
 
-            do {
-                HttpURLConnection connection = null;
-                try {
-                    connection = (HttpURLConnection) new URL("https://api.mojang.com/profiles/minecraft").openConnection();
-                    connection.setRequestMethod("POST");
-                    connection.setRequestProperty("Content-Type", "application/json; encoding=UTF-8");
-                    connection.setUseCaches(false);
-                    connection.setDoInput(true);
-                    connection.setDoOutput(true);
-                    try (OutputStream out = connection.getOutputStream()) {
-                        out.write(GSON.toJson(batch).getBytes(Charsets.UTF_8));
-                    }
-                    Profile[] profiles;
-                    try (Reader in = new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8))) {
-                        profiles = GSON.fromJson(in, Profile[].class);
-                    }
-                    for (Profile profile : profiles) {
-                        result.put(profile.name, profile.getUUID());
-                        UUID_CACHE.put(profile.name, profile.getUUID().toString());
-                        fromWeb++;
-                    }
-                } catch(IOException e) {
-                    try {
-                        if(connection != null) {
-                            if(connection.getResponseCode() == 429) {
-                                System.out.println("Reached the request limit of the mojang api!\nConverting will be paused for 10 minutes and then continue!");
-                                Thread.sleep(MOJANG_QUERY_RETRY_TIME);
-                                success = false;
-                                continue;
-                            } else {
-                                InputStream errorStream = connection.getErrorStream();
-                                StringBuilder errorBuilder = new StringBuilder();
-                                int c;
-                                while ((c = errorStream.read()) != -1) {
-                                    errorBuilder.append((char) c);
-                                }
-                                String errorMessage = errorBuilder.toString();
-                                System.out.println("Mojang responded with status code: " + connection.getResponseCode() + " Message: " + errorMessage);
-                                Matcher matcher = API_MAX_PROFILE_BATCH_SIZE_PATTERN.matcher(errorMessage);
-                                if (connection.getResponseCode() == 400 && matcher.matches()) {
-                                    BATCH_SIZE = Integer.parseInt(matcher.group("batchSize"));
-                                    System.out.println("Reducing batch size to " + BATCH_SIZE + " and try again ...");
-                                    return getUUIDsFromNamesAsUUIDs(names);
-                                } else {
-                                    e.printStackTrace();
-                                }
-                            }
-                        } else {
-                            e.printStackTrace();
-                        }
-                    }
-                    catch(InterruptedException | IOException ignore) {}
-
-                    System.out.println("Could not convert all names to uuids because of an issue. Please check the log.");
-                    return result;
+            Profile[] profiles;
+            try (Reader in = new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8))) {
+                profiles = GSON.fromJson(in, Profile[].class);
+            }
+            Map<String, UUID> result = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+            if (profiles != null) {
+                for (Profile profile : profiles) {
+                    result.put(profile.name, profile.getUUID());
+                    UUID_CACHE.put(profile.name, profile.getUUID().toString());
                 }
-                batch.clear();
-                success = true;
-            } while(!success);
+            }
+            return new ProfileResponse(status, result, -1);
+
+        } catch(IOException e) {
+            getLogger().warning("Looks like there is a problem with the connection with mojang. Please retry later.");
+            return new ProfileResponse(-1, null, -1);
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
         }
+    }
 
-        System.out.println("Converted " + (fromCache + fromWeb) + "/" + names.size() + " UUIDs (" + fromCache + " of them from the cache and " + fromWeb + " from Mojang).");
-        return result;
+    /**
+     * ログの出力先を返す。プラグインが有効でない場合（テストなど）は、このクラスのロガーを返す。
+     * @return ロガー
+     */
+    static Logger getLogger() {
+        if ( Bukkit.getServer() != null ) {
+            UndineMailer plugin = UndineMailer.getInstance();
+            if ( plugin != null ) {
+                return plugin.getLogger();
+            }
+        }
+        return Logger.getLogger(UUIDResolver.class.getName());
+    }
+
+    // エラー応答の本文を読み込む
+    private static String readError(HttpURLConnection connection) throws IOException {
+        InputStream errorStream = connection.getErrorStream();
+        if (errorStream == null) return "";
+        StringBuilder errorBuilder = new StringBuilder();
+        try (Reader in = new InputStreamReader(errorStream, StandardCharsets.UTF_8)) {
+            int c;
+            while ((c = in.read()) != -1) {
+                errorBuilder.append((char) c);
+            }
+        }
+        return errorBuilder.toString();
+    }
+
+    /**
+     * 複数のプレイヤー名の問い合わせに対する応答
+     */
+    protected static class ProfileResponse {
+
+        private int status;
+        private Map<String, UUID> profiles;
+        private int maxBatchSize;
+
+        /**
+         * コンストラクタ
+         * @param status HTTPステータスコード、通信に失敗した場合は-1
+         * @param profiles 解決できたプレイヤー名とUUID、失敗した場合はnull
+         * @param maxBatchSize 1回に問い合わせできる件数の上限を通知された場合はその値、それ以外は-1
+         */
+        protected ProfileResponse(int status, Map<String, UUID> profiles, int maxBatchSize) {
+            this.status = status;
+            this.profiles = profiles;
+            this.maxBatchSize = maxBatchSize;
+        }
+
+        /**
+         * @return 成功したかどうか
+         */
+        protected boolean isSuccess() {
+            return profiles != null;
+        }
+
+        /**
+         * @return リクエスト数の制限を超えたかどうか
+         */
+        protected boolean isRateLimited() {
+            return status == 429;
+        }
+
+        /**
+         * @return HTTPステータスコード、通信に失敗した場合は-1
+         */
+        protected int getStatus() {
+            return status;
+        }
+
+        /**
+         * @return 解決できたプレイヤー名とUUID（存在しないプレイヤー名は含まれない）
+         */
+        protected Map<String, UUID> getProfiles() {
+            return profiles;
+        }
+
+        /**
+         * @return 1回に問い合わせできる件数の上限、通知されていない場合は-1
+         */
+        protected int getMaxBatchSize() {
+            return maxBatchSize;
+        }
     }
 
     public class NameChange {
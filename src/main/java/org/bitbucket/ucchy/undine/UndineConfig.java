@@ -114,6 +114,9 @@ public class UndineConfig {
     /** メールの保存期間（日数） */
     private int mailStorageTermDays;
 
+    /** 保存期間を過ぎたメールを、削除せずにアーカイブするかどうか */
+    private boolean enableMailArchive;
+
     /** メールスパム保護期間（秒） */
     private int mailSpamProtectionSeconds;
 
@@ -132,6 +135,15 @@ public class UndineConfig {
     /** UUIDのオンラインモード */
     private boolean uuidOnlineMode;
 
+    /** UUIDキャッシュの上限件数 */
+    private int uuidCacheMaxSize;
+
+    /** UUIDのオンラインモードで問い合わせるAPIのベースURL */
+    private String uuidApiBaseUrl;
+
+    /** メールデータの保存形式 */
+    private MailStorageType mailStorageType;
+
     private UndineMailer parent;
 
     /**
@@ -221,6 +233,7 @@ public class UndineConfig {
                 conf.getString("specialGroupAllLoginSendMode"),
                 GroupPermissionMode.OP);
         mailStorageTermDays = conf.getInt("mailStorageTermDays", 30);
+        enableMailArchive = conf.getBoolean("enableMailArchive", false);
         mailSpamProtectionSeconds = conf.getInt("mailSpamProtectionSeconds", 15);
         loginNotificationDelaySeconds = conf.getInt("loginNotificationDelaySeconds", 3);
         useWelcomeMail = conf.getBoolean("useWelcomeMail", true);
@@ -231,6 +244,11 @@ public class UndineConfig {
         prohibitItemsToAttach = conf.getStringList("prohibitItemsToAttach");
 
         uuidOnlineMode = conf.getBoolean("uuidOnlineMode", false);
+        uuidCacheMaxSize = conf.getInt("uuidCacheMaxSize", 0);
+        uuidApiBaseUrl = conf.getString("uuidApiBaseUrl", UUIDResolver.DEFAULT_API_BASE_URL);
+
+        mailStorageType = MailStorageType.getFromString(
+                conf.getString("mailStorageType"), MailStorageType.YAML);
 
         // sendFeeは、マイナスが指定されていたら0に変更する
         if ( sendFee < 0 ) {
@@ -513,6 +531,13 @@ public class UndineConfig {
         return mailStorageTermDays;
     }
 
+    /**
+     * @return enableMailArchive
+     */
+    public boolean isEnableMailArchive() {
+        return enableMailArchive;
+    }
+
     /**
      * @return mailSpamProtectionSeconds
      */
@@ -554,4 +579,25 @@ public class UndineConfig {
     public boolean isUuidOnlineMode() {
         return uuidOnlineMode;
     }
+
+    /**
+     * @return uuidCacheMaxSize
+     */
+    public int getUuidCacheMaxSize() {
+        return uuidCacheMaxSize;
+    }
+
+    /**
+     * @return uuidApiBaseUrl
+     */
+    public String getUuidApiBaseUrl() {
+        return uuidApiBaseUrl;
+    }
+
+    /**
+     * @return mailStorageType
+     */
+    public MailStorageType getMailStorageType() {
+        return mailStorageType;
+    }
 }
@@ -0,0 +1,187 @@
+/*
+ * @author     ucchy
+ * @license    LGPLv3
+ * @copyright  Copyright ucchy 2015
+ */
+package org.bitbucket.ucchy.undine;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * 組み込みデータベース（SQLite）への接続を管理するクラス。
+ * SQLiteのJDBCドライバは、Bukkitサーバーに同梱されているものを使用する。
+ * 接続は1つだけなので、接続を使用する処理は、executeかtransactionに渡して実行する。
+ * これらのメソッドは同期されているので、複数スレッドから呼び出してもよい。
+ * @author ucchy
+ */
+public class UndineDatabase {
+
+    private static final String DRIVER = "org.sqlite.JDBC";
+
+    private static final String[] SCHEMA = {
+        "CREATE TABLE IF NOT EXISTS mails ("
+                + "idx INTEGER PRIMARY KEY, sender TEXT NOT NULL, date INTEGER NOT NULL, "
+                + "attachments INTEGER NOT NULL, all_mail INTEGER NOT NULL, data TEXT NOT NULL)",
+        "CREATE INDEX IF NOT EXISTS mails_sender ON mails (sender)",
+        "CREATE INDEX IF NOT EXISTS mails_date ON mails (date)",
+        "CREATE TABLE IF NOT EXISTS mail_recipients ("
+                + "idx INTEGER NOT NULL, recipient TEXT NOT NULL, PRIMARY KEY (idx, recipient))",
+        "CREATE INDEX IF NOT EXISTS mail_recipients_recipient ON mail_recipients (recipient)",
+        "CREATE TABLE IF NOT EXISTS mail_flags ("
+                + "idx INTEGER NOT NULL, member TEXT NOT NULL, flag INTEGER NOT NULL, "
+                + "PRIMARY KEY (idx, member, flag))",
+        "CREATE INDEX IF NOT EXISTS mail_flags_member ON mail_flags (member, flag)",
+        "CREATE TABLE IF NOT EXISTS mail_flag_bits ("
+                + "idx INTEGER PRIMARY KEY, reads TEXT NOT NULL, trashes TEXT NOT NULL)",
+        "CREATE TABLE IF NOT EXISTS mail_groups ("
+                + "name TEXT PRIMARY KEY, owner TEXT NOT NULL, data TEXT NOT NULL)",
+        "CREATE TABLE IF NOT EXISTS mail_group_members ("
+                + "name TEXT NOT NULL, member TEXT NOT NULL, PRIMARY KEY (name, member))",
+        "CREATE INDEX IF NOT EXISTS mail_group_members_member ON mail_group_members (member)",
+        "CREATE TABLE IF NOT EXISTS uuid_cache ("
+                + "uuid TEXT PRIMARY KEY, name TEXT NOT NULL, last_known_date INTEGER NOT NULL)",
+        "CREATE INDEX IF NOT EXISTS uuid_cache_name ON uuid_cache (name)",
+    };
+
+    private Connection connection;
+
+    // コンストラクタ
+    private UndineDatabase(Connection connection) {
+        this.connection = connection;
+    }
+
+    /**
+     * 指定されたファイルのデータベースを開く。ファイルが無い場合は新規に作成される。
+     * @param file データベースファイル
+     * @return データベース、開けなかった場合はnull
+     */
+    public static UndineDatabase open(File file) {
+
+        try {
+            Class.forName(DRIVER);
+        } catch (ClassNotFoundException e) {
+            UndineMailer.getInstance().getLogger().warning(
+                    "SQLite JDBC driver was not found on this server.");
+            return null;
+        }
+
+        try {
+            Connection connection = DriverManager.getConnection(
+                    "jdbc:sqlite:" + file.getAbsolutePath());
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("PRAGMA journal_mode=WAL");
+                for ( String sql : SCHEMA ) {
+                    statement.execute(sql);
+                }
+
+                // 全体メールの列が無い、古いデータベースには列を追加する。
+                // 既存の行の値は未確定(-1)にしておき、メールのロード時に埋める。
+                if ( !hasColumn(connection, "mails", "all_mail") ) {
+                    statement.execute(
+                            "ALTER TABLE mails ADD COLUMN all_mail INTEGER NOT NULL DEFAULT -1");
+                }
+            }
+            return new UndineDatabase(connection);
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * 指定された処理を、自動コミットのまま実行する
+     * @param work 処理
+     * @return 処理の結果
+     * @throws SQLException
+     */
+    public synchronized <T> T execute(Work<T> work) throws SQLException {
+        return work.run(connection);
+    }
+
+    /**
+     * 指定された処理を、1つのトランザクションで実行する。
+     * 処理が例外で終了した場合は、ロールバックしてから例外をそのまま投げる。
+     * @param work 処理
+     * @return 処理の結果
+     * @throws SQLException
+     */
+    public synchronized <T> T transaction(Work<T> work) throws SQLException {
+        connection.setAutoCommit(false);
+        try {
+            T result = work.run(connection);
+            connection.commit();
+            return result;
+        } catch (SQLException | RuntimeException e) {
+            rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(true);
+        }
+    }
+
+    /**
+     * 指定されたテーブルが空かどうかを返す
+     * @param table テーブル名
+     * @return 空かどうか
+     * @throws SQLException
+     */
+    public synchronized boolean isEmpty(String table) throws SQLException {
+        try (Statement statement = connection.createStatement();
+                ResultSet result = statement.executeQuery(
+                        "SELECT 1 FROM " + table + " LIMIT 1")) {
+            return !result.next();
+        }
+    }
+
+    /**
+     * データベースを閉じる
+     */
+    public synchronized void close() {
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static boolean hasColumn(Connection connection, String table, String column)
+            throws SQLException {
+        try (Statement statement = connection.createStatement();
+                ResultSet result = statement.executeQuery("PRAGMA table_info(" + table + ")")) {
+            while ( result.next() ) {
+                if ( column.equals(result.getString("name")) ) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private void rollback() {
+        try {
+            connection.rollback();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * データベースの接続を使用する処理
+     * @param <T> 処理の結果の型
+     */
+    public interface Work<T> {
+
+        /**
+         * 処理を実行する
+         * @param connection データベースへの接続
+         * @return 処理の結果
+         * @throws SQLException
+         */
+        public T run(Connection connection) throws SQLException;
+    }
+}
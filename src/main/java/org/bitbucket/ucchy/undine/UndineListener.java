@@ -18,6 +18,7 @@ import org.bukkit.event.inventory.InventoryClickEvent;
 import org.bukkit.event.inventory.InventoryCloseEvent;
 import org.bukkit.event.inventory.InventoryDragEvent;
 import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
 import org.bukkit.inventory.ItemStack;
 import org.bukkit.scheduler.BukkitRunnable;
 
@@ -61,8 +62,7 @@ public class UndineListener implements Listener {
     @EventHandler
     public void onPlayerJoin(PlayerJoinEvent event) {
 
-        Player player = event.getPlayer();
-        UndineConfig config = parent.getUndineConfig();
+        final Player player = event.getPlayer();
 
         // プレイヤーキャッシュを非同期更新する
         parent.asyncRefreshPlayerUuid(player.getName());
@@ -72,6 +72,25 @@ public class UndineListener implements Listener {
             return;
         }
 
+        // UUIDが未解決なら、メインスレッドで解決を待たずに、解決してから以降の処理を行う
+        final boolean isNewPlayer = !player.hasPlayedBefore();
+        parent.runAfterUuidResolved(player.getName(), new Runnable() {
+            public void run() {
+                if ( player.isOnline() ) {
+                    onPlayerJoinResolved(player, isNewPlayer);
+                }
+            }
+        });
+    }
+
+    /**
+     * 参加したプレイヤーのUUIDが解決された後の処理
+     * @param player プレイヤー
+     * @param isNewPlayer 新規プレイヤーかどうか
+     */
+    private void onPlayerJoinResolved(Player player, boolean isNewPlayer) {
+
+        UndineConfig config = parent.getUndineConfig();
         final MailSender sender = MailSender.getMailSender(player);
 
         // 未読のメールを遅れて表示する
@@ -83,7 +102,7 @@ public class UndineListener implements Listener {
         }.runTaskLater(parent, delay * 20);
 
         // 新規プレイヤーの場合は、ウェルカムメールを送る
-        if ( !player.hasPlayedBefore() && config.isUseWelcomeMail() ) {
+        if ( isNewPlayer && config.isUseWelcomeMail() ) {
             MailSender from = MailSenderConsole.getMailSenderConsole();
             List<MailSender> to = new ArrayList<MailSender>();
             to.add(sender);
@@ -102,6 +121,18 @@ public class UndineListener implements Listener {
         }
     }
 
+    /**
+     * プレイヤーがサーバーから退出した時に呼び出されるメソッド
+     * @param event
+     */
+    @EventHandler
+    public void onPlayerQuit(PlayerQuitEvent event) {
+
+        // キャッシュしているメールボックスのリストを破棄する
+        MailSender sender = MailSender.getMailSender(event.getPlayer());
+        parent.getMailManager().clearMailboxViews(sender);
+    }
+
     /**
      * プレイヤーがインベントリ内をクリックした時に呼び出されるメソッド
      * @param event
@@ -6,10 +6,12 @@
 package org.bitbucket.ucchy.undine;
 
 import java.io.File;
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 import org.bitbucket.ucchy.undine.bridge.PermissionsExBridge;
 import org.bitbucket.ucchy.undine.bridge.VaultEcoBridge;
@@ -17,9 +19,11 @@ import org.bitbucket.ucchy.undine.command.GroupCommand;
 import org.bitbucket.ucchy.undine.command.ListCommand;
 import org.bitbucket.ucchy.undine.command.UndineCommand;
 import org.bitbucket.ucchy.undine.group.GroupManager;
+import org.bitbucket.ucchy.undine.sender.MailSenderPlayer;
 import org.bukkit.Bukkit;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandSender;
+import org.bukkit.entity.Player;
 import org.bukkit.plugin.java.JavaPlugin;
 
 /**
@@ -31,12 +35,15 @@ public class UndineMailer extends JavaPlugin {
     private static final String MAIL_FOLDER = "mail";
     private static final String GROUP_FOLDER = "group";
     private static final String CACHE_FOLDER = "cache";
+    private static final String DATABASE_FILE = "undine.db";
 
     private MailManager mailManager;
     private AttachmentBoxManager boxManager;
     private GroupManager groupManager;
     private MailCleanupTask cleanupTask;
+    private MailSaveTask saveTask;
     private PlayerUuidCache playerUuidCache;
+    private UndineDatabase database;
 
     private UndineCommand undineCommand;
     private ListCommand listCommand;
@@ -57,6 +64,14 @@ public class UndineMailer extends JavaPlugin {
         // コンフィグをロードする
         config = new UndineConfig(this);
 
+        // データベースを使用する設定なら、データベースを開く
+        if ( config.getMailStorageType() == MailStorageType.SQLITE ) {
+            database = UndineDatabase.open(new File(getDataFolder(), DATABASE_FILE));
+            if ( database == null ) {
+                getLogger().warning("Could not open the database. Using yaml files instead.");
+            }
+        }
+
         // VaultEcoをロード
         if ( getServer().getPluginManager().isPluginEnabled("Vault") ) {
             vaulteco = VaultEcoBridge.load(
@@ -88,6 +103,10 @@ public class UndineMailer extends JavaPlugin {
         cleanupTask = new MailCleanupTask(mailManager);
         cleanupTask.startTask();
 
+        // メール保存タスクを起動する
+        saveTask = new MailSaveTask(mailManager);
+        saveTask.startTask();
+
         // リスナーの登録
         getServer().getPluginManager().registerEvents(new UndineListener(this), this);
 
@@ -107,6 +126,7 @@ public class UndineMailer extends JavaPlugin {
 
         // タスクを停止する
         cleanupTask.cancel();
+        saveTask.cancel();
 
         // 添付ボックスを開いたままにしているプレイヤーの
         // インベントリを強制的に閉じる
@@ -114,6 +134,22 @@ public class UndineMailer extends JavaPlugin {
 
         // 編集中メールの保存
         mailManager.storeEditmodeMail();
+
+        // 保存待ちのメールデータを書き込んで、保存先を閉じる
+        mailManager.closeStorage();
+
+        // 共有しているプレイヤーを破棄する
+        MailSenderPlayer.clearRegistry();
+
+        // プレイヤーキャッシュのファイルを閉じる
+        if ( playerUuidCache != null ) {
+            playerUuidCache.close();
+        }
+
+        // データベースを閉じる
+        if ( database != null ) {
+            database.close();
+        }
     }
 
     /**
@@ -121,7 +157,25 @@ public class UndineMailer extends JavaPlugin {
      * @see org.bukkit.plugin.java.JavaPlugin#onCommand(org.bukkit.command.CommandSender, org.bukkit.command.Command, java.lang.String, java.lang.String[])
      */
     @Override
-    public boolean onCommand(CommandSender sender, Command command, String label, String[] args) {
+    public boolean onCommand(final CommandSender sender, final Command command,
+            final String label, final String[] args) {
+
+        // 実行者のUUIDが未解決なら、解決を待ってからメインスレッドで実行する
+        if ( sender instanceof Player && !playerUuidCache.isUuidResolved(sender.getName()) ) {
+            runAfterUuidResolved(sender.getName(), new Runnable() {
+                public void run() {
+                    if ( ((Player)sender).isOnline() ) {
+                        dispatchCommand(sender, command, label, args);
+                    }
+                }
+            });
+            return true;
+        }
+        return dispatchCommand(sender, command, label, args);
+    }
+
+    // コマンドを、それぞれのコマンドクラスに振り分ける
+    private boolean dispatchCommand(CommandSender sender, Command command, String label, String[] args) {
         if ( command.getName().equals("mail") )
             return undineCommand.onCommand(sender, command, label, args);
         else if ( command.getName().equals("undinelist") )
@@ -182,6 +236,14 @@ public class UndineMailer extends JavaPlugin {
         return folder;
     }
 
+    /**
+     * データベースを取得する
+     * @return データベース、データベースを使用しない設定の場合はnull
+     */
+    public UndineDatabase getDatabase() {
+        return database;
+    }
+
     /**
      * メールマネージャを取得する
      * @return メールマネージャ
@@ -266,6 +328,56 @@ public class UndineMailer extends JavaPlugin {
         return playerUuidCache.getName(uuid);
     }
 
+    /**
+     * 指定されたプレイヤー名のUUIDを取得する。キャッシュに無い場合は、非同期スレッドで解決する。
+     * 結果を受け取る処理は、非同期スレッドで呼び出されることがあるので注意すること。
+     * @param name プレイヤー名
+     * @return UUID、解決できなかった場合はnullで完了する
+     */
+    public CompletableFuture<String> getUUIDAsync(String name) {
+        return playerUuidCache.getUUIDAsync(name);
+    }
+
+    /**
+     * 指定されたプレイヤー名のUUIDが解決済みなら、すぐに処理を実行する。
+     * 未解決なら、非同期スレッドで解決してから、メインスレッドで処理を実行する。
+     * @param name プレイヤー名
+     * @param task 処理
+     */
+    public void runAfterUuidResolved(String name, final Runnable task) {
+        if ( playerUuidCache.isUuidResolved(name) ) {
+            task.run();
+            return;
+        }
+        runOnMainThread(playerUuidCache.getUUIDAsync(name), task);
+    }
+
+    /**
+     * 指定されたプレイヤー名のUUIDが全て解決済みなら、すぐに処理を実行する。
+     * 未解決のものがあれば、非同期スレッドで全て解決してから、メインスレッドで処理を実行する。
+     * 解決できなかった名前があっても、処理は実行する。
+     * @param names プレイヤー名
+     * @param task 処理
+     */
+    public void runAfterUuidsResolved(Collection<String> names, final Runnable task) {
+        CompletableFuture<Void> future = playerUuidCache.resolveAll(names);
+        if ( future.isDone() ) {
+            task.run();
+            return;
+        }
+        runOnMainThread(future, task);
+    }
+
+    // 解決が終わったら、メインスレッドで処理を実行する。
+    private void runOnMainThread(CompletableFuture<?> future, final Runnable task) {
+        future.thenRun(new Runnable() {
+            public void run() {
+                if ( !isEnabled() ) return;
+                Bukkit.getScheduler().runTask(UndineMailer.this, task);
+            }
+        });
+    }
+
     /**
      * 指定されたプレイヤー名のUUIDを、非同期スレッドで更新する
      * @param name プレイヤー名
@@ -295,6 +407,8 @@ public class UndineMailer extends JavaPlugin {
      * @param sender リロードが完了した時に、通知する先。通知が不要なら、nullでよい。
      */
     public void reloadAll(CommandSender sender) {
+        // 共有しているプレイヤーを破棄して、名前の変更などを取り込み直す
+        MailSenderPlayer.clearRegistry();
         groupManager.reload();
         if ( mailManager.isLoaded() ) {
             mailManager.reload(sender);
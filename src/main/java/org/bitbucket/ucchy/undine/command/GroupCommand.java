@@ -59,7 +59,8 @@ public class GroupCommand implements TabExecutor {
      * @see org.bukkit.command.CommandExecutor#onCommand(org.bukkit.command.CommandSender, org.bukkit.command.Command, java.lang.String, java.lang.String[])
      */
     @Override
-    public boolean onCommand(CommandSender sender, Command command, String label, String[] args) {
+    public boolean onCommand(final CommandSender sender, final Command command,
+            final String label, final String[] args) {
 
         // 引数なしの場合は、listを開く
         if ( args.length == 0 ) {
@@ -76,11 +77,23 @@ public class GroupCommand implements TabExecutor {
         } else if ( args[0].equalsIgnoreCase("detail") ) {
             return doDetailCommand(sender, command, label, args);
         } else if ( args[0].equalsIgnoreCase("add") ) {
-            return doAddCommand(sender, command, label, args);
+            // 追加するプレイヤーのUUIDを解決してから実行する
+            parent.runAfterUuidsResolved(getPlayerNameArgs(args), new Runnable() {
+                public void run() {
+                    doAddCommand(sender, command, label, args);
+                }
+            });
+            return true;
         } else if ( args[0].equalsIgnoreCase("addalllogin") ) {
             return doAddAllLoginCommand(sender, command, label, args);
         } else if ( args[0].equalsIgnoreCase("remove") ) {
-            return doRemoveCommand(sender, command, label, args);
+            // 削除するプレイヤーのUUIDを解決してから実行する
+            parent.runAfterUuidsResolved(getPlayerNameArgs(args), new Runnable() {
+                public void run() {
+                    doRemoveCommand(sender, command, label, args);
+                }
+            });
+            return true;
         } else if ( args[0].equalsIgnoreCase("perm") ) {
             return doPermCommand(sender, command, label, args);
         }
@@ -161,6 +174,15 @@ public class GroupCommand implements TabExecutor {
         return null;
     }
 
+    // add、removeコマンドの引数から、プレイヤー名を取り出す
+    private static List<String> getPlayerNameArgs(String[] args) {
+        ArrayList<String> names = new ArrayList<String>();
+        if ( args.length >= 3 ) {
+            names.add(args[2]);
+        }
+        return names;
+    }
+
     private boolean doCreateCommand(CommandSender sender, Command command2, String label, String[] args) {
 
         // パーミッション確認
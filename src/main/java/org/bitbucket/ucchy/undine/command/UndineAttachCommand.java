@@ -296,7 +296,7 @@ public class UndineAttachCommand implements SubCommand {
             }
 
             // 受信者ではないならエラーを表示して終了
-            if ( !mail.getToTotal().contains(ms) ) {
+            if ( !mail.isRecipient(ms) ) {
                 player.sendMessage(Messages.get("ErrorNoneRefuseAttachPermission"));
                 return;
             }
@@ -80,6 +80,16 @@ public class UndineReadCommand implements SubCommand {
         int index = Integer.parseInt(args[1]);
         MailData mail = manager.getMail(index);
 
+        // 他人のメールを読む権限があるなら、アーカイブされたメールも表示する。
+        // アーカイブされたメールには、既読を付けない。
+        if ( mail == null && sender.hasPermission(NODE_READALL) ) {
+            MailData archived = manager.getArchivedMail(index);
+            if ( archived != null ) {
+                manager.displayMailDescription(MailSender.getMailSender(sender), archived);
+                return;
+            }
+        }
+
         // メールが見つからない場合はエラーを表示して終了
         if ( mail == null ) {
             sender.sendMessage(Messages.get("ErrorInvalidIndex", "%index", args[1]));
@@ -149,7 +149,7 @@ public class UndineSendCommand implements SubCommand {
                 }
 
                 for ( String uuid : parent.getPlayerUuids() ) {
-                    to_total.add(new MailSenderPlayer("$" + uuid));
+                    to_total.add(MailSenderPlayer.getMailSenderPlayer("$" + uuid));
                 }
 
             } else {
@@ -6,6 +6,7 @@
 package org.bitbucket.ucchy.undine.command;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import org.bitbucket.ucchy.undine.MailData;
@@ -75,7 +76,28 @@ public class UndineTextCommand implements SubCommand {
      * @see org.bitbucket.ucchy.undine.command.SubCommand#runCommand(org.bukkit.command.CommandSender, java.lang.String[])
      */
     @Override
-    public void runCommand(CommandSender sender, String label, String[] args) {
+    public void runCommand(final CommandSender sender, final String label, final String[] args) {
+
+        // 宛先のプレイヤーのUUIDを全て解決してから実行する。
+        // 未解決のまま実行すると、宛先がプレイヤー名で保存されてしまう。
+        ArrayList<String> names = new ArrayList<String>();
+        if ( args.length >= 2 ) {
+            names.addAll(Arrays.asList(args[1].split(",")));
+        }
+        parent.runAfterUuidsResolved(names, new Runnable() {
+            public void run() {
+                sendText(sender, label, args);
+            }
+        });
+    }
+
+    /**
+     * テキストメールを送信する
+     * @param sender コマンド実行者
+     * @param label 実行時のラベル
+     * @param args 実行時の引数
+     */
+    private void sendText(CommandSender sender, String label, String[] args) {
 
         // MailManagerのロードが完了していないなら、エラーを表示して終了
         if ( !manager.isLoaded() ) {
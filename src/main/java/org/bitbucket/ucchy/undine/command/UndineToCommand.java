@@ -68,7 +68,28 @@ public class UndineToCommand implements SubCommand {
      * @see org.bitbucket.ucchy.undine.command.SubCommand#runCommand(org.bukkit.command.CommandSender, java.lang.String[])
      */
     @Override
-    public void runCommand(CommandSender sender, String label, String[] args) {
+    public void runCommand(final CommandSender sender, final String label, final String[] args) {
+
+        // 宛先のプレイヤーのUUIDを全て解決してから実行する。
+        // 未解決のまま実行すると、宛先がプレイヤー名で保存されてしまう。
+        ArrayList<String> names = new ArrayList<String>();
+        if ( args.length >= 3 && args[1].matches("[0-9]{1,2}") ) {
+            names.add(args[2]);
+        }
+        parent.runAfterUuidsResolved(names, new Runnable() {
+            public void run() {
+                setDestination(sender, label, args);
+            }
+        });
+    }
+
+    /**
+     * 宛先を設定する
+     * @param sender コマンド実行者
+     * @param label 実行時のラベル
+     * @param args 実行時の引数
+     */
+    private void setDestination(CommandSender sender, String label, String[] args) {
 
         MailData mail = manager.getEditmodeMail(MailSender.getMailSender(sender));
 
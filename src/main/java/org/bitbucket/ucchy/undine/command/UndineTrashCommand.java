@@ -109,14 +109,14 @@ public class UndineTrashCommand implements SubCommand {
             }
 
             // 添付アイテムが残っているメールならエラーを表示して終了
-            if ( mail.getAttachments().size() > 0 ) {
+            if ( mail.getAttachmentsCount() > 0 ) {
                 sender.sendMessage(Messages.get("ErrorCannotDropBecauseAttached", "%index", mail.getIndex()));
                 return;
             }
 
             // ゴミフラグを設定
             mail.setTrashFlag(ms);
-            manager.saveMail(mail);
+            manager.saveMailFlags(mail);
 
             sender.sendMessage(Messages.get("InformationTrashed", "%index", mail.getIndex()));
             return;
@@ -153,7 +153,7 @@ public class UndineTrashCommand implements SubCommand {
 
             // ゴミフラグを除去
             mail.removeTrashFlag(ms);
-            manager.saveMail(mail);
+            manager.saveMailFlags(mail);
 
             sender.sendMessage(Messages.get("InformationTrashRestored", "%index", mail.getIndex()));
             return;
@@ -171,14 +171,14 @@ public class UndineTrashCommand implements SubCommand {
                         for ( MailData mail : manager.getInboxMails(ms) ) {
                             if ( mail.isRead(ms) ) {
                                 mail.setTrashFlag(ms);
-                                manager.saveMail(mail);
+                                manager.saveMailFlags(mail);
                                 total++;
                             }
                         }
                         for ( MailData mail : manager.getOutboxMails(ms) ) {
                             if ( mail.isRead(ms) ) {
                                 mail.setTrashFlag(ms);
-                                manager.saveMail(mail);
+                                manager.saveMailFlags(mail);
                                 total++;
                             }
                         }
@@ -208,7 +208,7 @@ public class UndineTrashCommand implements SubCommand {
                         int total = 0;
                         for ( MailData mail : manager.getTrashboxMails(ms) ) {
                             mail.removeTrashFlag(ms);
-                            manager.saveMail(mail);
+                            manager.saveMailFlags(mail);
                             total++;
                         }
                         ms.sendMessage(Messages.get("InformationRestoreAllDone", "%num", total));
@@ -68,7 +68,28 @@ public class UndineWriteCommand implements SubCommand {
      * @see org.bitbucket.ucchy.undine.command.SubCommand#runCommand(org.bukkit.command.CommandSender, java.lang.String[])
      */
     @Override
-    public void runCommand(CommandSender sender, String label, String[] args) {
+    public void runCommand(final CommandSender sender, final String label, final String[] args) {
+
+        // 宛先のプレイヤーのUUIDを全て解決してから実行する。
+        // 未解決のまま実行すると、宛先がプレイヤー名で保存されてしまう。
+        ArrayList<String> names = new ArrayList<String>();
+        for ( int i=1; i<args.length; i++ ) {
+            names.add(args[i]);
+        }
+        UndineMailer.getInstance().runAfterUuidsResolved(names, new Runnable() {
+            public void run() {
+                startWrite(sender, label, args);
+            }
+        });
+    }
+
+    /**
+     * 編集モードを開始する
+     * @param sender コマンド実行者
+     * @param label 実行時のラベル
+     * @param args 実行時の引数
+     */
+    private void startWrite(CommandSender sender, String label, String[] args) {
 
         MailSender ms = MailSender.getMailSender(sender);
 
@@ -7,14 +7,21 @@ package org.bitbucket.ucchy.undine.group;
 
 import java.io.File;
 import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.List;
 
+import org.bitbucket.ucchy.undine.UndineDatabase;
 import org.bitbucket.ucchy.undine.UndineMailer;
 import org.bitbucket.ucchy.undine.sender.MailSender;
 import org.bitbucket.ucchy.undine.sender.MailSenderPlayer;
 import org.bukkit.ChatColor;
 import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.InvalidConfigurationException;
 import org.bukkit.configuration.file.YamlConfiguration;
 
 /**
@@ -294,6 +301,118 @@ public class GroupData {
         return loadFromSection(config);
     }
 
+    /**
+     * データベースにグループを保存する
+     * @param database データベース
+     */
+    protected void saveToDatabase(UndineDatabase database) {
+
+        YamlConfiguration config = new YamlConfiguration();
+        saveToSection(config);
+        final String key = name.toLowerCase();
+        final String data = config.saveToString();
+
+        try {
+            database.transaction(new UndineDatabase.Work<Void>() {
+                public Void run(Connection connection) throws SQLException {
+                    try (PreparedStatement statement = connection.prepareStatement(
+                            "INSERT OR REPLACE INTO mail_groups (name, owner, data) VALUES (?, ?, ?)")) {
+                        statement.setString(1, key);
+                        statement.setString(2, owner.toString());
+                        statement.setString(3, data);
+                        statement.executeUpdate();
+                    }
+                    try (PreparedStatement statement = connection.prepareStatement(
+                            "DELETE FROM mail_group_members WHERE name = ?")) {
+                        statement.setString(1, key);
+                        statement.executeUpdate();
+                    }
+                    try (PreparedStatement statement = connection.prepareStatement(
+                            "INSERT OR IGNORE INTO mail_group_members (name, member) VALUES (?, ?)")) {
+                        for ( MailSender mem : members ) {
+                            statement.setString(1, key);
+                            statement.setString(2, mem.toString());
+                            statement.addBatch();
+                        }
+                        statement.executeBatch();
+                    }
+                    return null;
+                }
+            });
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * データベースから全てのグループをロードする
+     * @param database データベース
+     * @return グループのリスト
+     */
+    protected static ArrayList<GroupData> loadFromDatabase(UndineDatabase database) {
+
+        ArrayList<String> data = new ArrayList<String>();
+        try {
+            data = database.execute(new UndineDatabase.Work<ArrayList<String>>() {
+                public ArrayList<String> run(Connection connection) throws SQLException {
+                    ArrayList<String> list = new ArrayList<String>();
+                    try (Statement statement = connection.createStatement();
+                            ResultSet rs = statement.executeQuery("SELECT data FROM mail_groups")) {
+                        while ( rs.next() ) {
+                            list.add(rs.getString(1));
+                        }
+                    }
+                    return list;
+                }
+            });
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+
+        ArrayList<GroupData> result = new ArrayList<GroupData>();
+        for ( String d : data ) {
+            YamlConfiguration config = new YamlConfiguration();
+            try {
+                config.loadFromString(d);
+            } catch (InvalidConfigurationException e) {
+                e.printStackTrace();
+                continue;
+            }
+            result.add(loadFromSection(config));
+        }
+        return result;
+    }
+
+    /**
+     * データベースから指定した名前のグループを削除する
+     * @param database データベース
+     * @param name グループ名
+     */
+    protected static void deleteFromDatabase(UndineDatabase database, String name) {
+
+        final String key = name.toLowerCase();
+
+        try {
+            database.transaction(new UndineDatabase.Work<Void>() {
+                public Void run(Connection connection) throws SQLException {
+                    try (PreparedStatement statement = connection.prepareStatement(
+                            "DELETE FROM mail_groups WHERE name = ?")) {
+                        statement.setString(1, key);
+                        statement.executeUpdate();
+                    }
+                    try (PreparedStatement statement = connection.prepareStatement(
+                            "DELETE FROM mail_group_members WHERE name = ?")) {
+                        statement.setString(1, key);
+                        statement.executeUpdate();
+                    }
+                    return null;
+                }
+            });
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
     /**
      * パーミッションのチェックを行う
      * @param sender
@@ -328,13 +447,18 @@ public class GroupData {
     protected boolean upgrade() {
         boolean upgraded = false;
         if ( owner instanceof MailSenderPlayer ) {
-            if ( ((MailSenderPlayer) owner).upgrade() ) {
+            MailSenderPlayer ownerUpgraded = ((MailSenderPlayer) owner).getUpgraded();
+            if ( ownerUpgraded != null ) {
+                owner = ownerUpgraded;
                 upgraded = true;
             }
         }
-        for ( MailSender ms : members ) {
+        for ( int i=0; i<members.size(); i++ ) {
+            MailSender ms = members.get(i);
             if ( ms instanceof MailSenderPlayer ) {
-                if ( ((MailSenderPlayer) ms).upgrade() ) {
+                MailSenderPlayer msUpgraded = ((MailSenderPlayer) ms).getUpgraded();
+                if ( msUpgraded != null ) {
+                    members.set(i, msUpgraded);
                     upgraded = true;
                 }
             }
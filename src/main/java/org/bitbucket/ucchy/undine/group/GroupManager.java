@@ -7,12 +7,14 @@ package org.bitbucket.ucchy.undine.group;
 
 import java.io.File;
 import java.io.FilenameFilter;
+import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 
 import org.bitbucket.ucchy.undine.Messages;
+import org.bitbucket.ucchy.undine.UndineDatabase;
 import org.bitbucket.ucchy.undine.UndineMailer;
 import org.bitbucket.ucchy.undine.bridge.PermissionsExBridge;
 import org.bitbucket.ucchy.undine.command.GroupCommand;
@@ -69,20 +71,32 @@ public class GroupManager {
 
         long start = System.currentTimeMillis();
 
-        File folder = parent.getGroupFolder();
-        File[] files = folder.listFiles(new FilenameFilter() {
-            public boolean accept(File dir, String name) {
-                return name.endsWith(".yml");
-            }
-        });
-
         groups = new HashMap<String, GroupData>();
 
-        if ( files != null ) {
-            for ( File f : files ) {
-                GroupData group = GroupData.loadFromFile(f);
+        UndineDatabase database = parent.getDatabase();
+        if ( database != null && !isDatabaseEmpty(database) ) {
+            for ( GroupData group : GroupData.loadFromDatabase(database) ) {
                 groups.put(group.getName().toLowerCase(), group);
             }
+        } else {
+            File folder = parent.getGroupFolder();
+            File[] files = folder.listFiles(new FilenameFilter() {
+                public boolean accept(File dir, String name) {
+                    return name.endsWith(".yml");
+                }
+            });
+
+            if ( files != null ) {
+                for ( File f : files ) {
+                    GroupData group = GroupData.loadFromFile(f);
+                    groups.put(group.getName().toLowerCase(), group);
+
+                    // データベースを使用する場合は、ファイルのグループを取り込む
+                    if ( database != null ) {
+                        group.saveToDatabase(database);
+                    }
+                }
+            }
         }
 
         // 特殊グループを追加する
@@ -152,6 +166,10 @@ public class GroupManager {
         name = name.toLowerCase();
         if ( groups.containsKey(name) ) {
             groups.remove(name);
+            if ( parent.getDatabase() != null ) {
+                GroupData.deleteFromDatabase(parent.getDatabase(), name);
+                return;
+            }
             File folder = parent.getGroupFolder();
             File file = new File(folder, name + ".yml");
             file.delete();
@@ -191,11 +209,29 @@ public class GroupManager {
      * @param group グループ
      */
     public void saveGroupData(GroupData group) {
+        if ( parent.getDatabase() != null ) {
+            group.saveToDatabase(parent.getDatabase());
+            return;
+        }
         File folder = parent.getGroupFolder();
         File file = new File(folder, group.getName().toLowerCase() + ".yml");
         group.saveToFile(file);
     }
 
+    /**
+     * データベースのグループテーブルが空かどうかを確認する
+     * @param database データベース
+     * @return 空かどうか
+     */
+    private static boolean isDatabaseEmpty(UndineDatabase database) {
+        try {
+            return database.isEmpty("mail_groups");
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return true;
+        }
+    }
+
     /**
      * グループ名として使用できる名前かどうかを確認する
      * @param name グループ名
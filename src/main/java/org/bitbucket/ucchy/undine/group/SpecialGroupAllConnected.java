@@ -42,7 +42,7 @@ public class SpecialGroupAllConnected extends GroupData {
     public ArrayList<MailSender> getMembers() {
         ArrayList<MailSender> members = new ArrayList<MailSender>();
         for ( String uuid : UndineMailer.getInstance().getPlayerUuids() ) {
-            members.add(new MailSenderPlayer("$" + uuid));
+            members.add(MailSenderPlayer.getMailSenderPlayer("$" + uuid));
         }
         return members;
     }
@@ -5,7 +5,6 @@
  */
 package org.bitbucket.ucchy.undine.sender;
 
-import org.bitbucket.ucchy.undine.UndineMailer;
 import org.bukkit.Bukkit;
 import org.bukkit.Location;
 import org.bukkit.OfflinePlayer;
@@ -136,12 +135,26 @@ public abstract class MailSender implements Comparable<MailSender> {
      */
     @Override
     public boolean equals(Object other) {
+        if ( this == other ) {
+            return true;
+        }
         if ( !(other instanceof MailSender) ) {
             return false;
         }
         return this.toString().equals(((MailSender)other).toString());
     }
 
+    /**
+     * ハッシュ値を返す。equalsと同じく、文字列表現から求める。
+     * 文字列表現は作成後に変わらないので、セットやマップのキーに使用できる。
+     * @return ハッシュ値
+     * @see java.lang.Object#hashCode()
+     */
+    @Override
+    public int hashCode() {
+        return toString().hashCode();
+    }
+
     /**
      * インスタンス同士の比較を行う。このメソッドを実装しておくことで、
      * Java8でのHashMapのキー挿入における高速化が期待できる（らしい）。
@@ -163,9 +176,9 @@ public abstract class MailSender implements Comparable<MailSender> {
 
         if ( nameOrUuid == null ) return null;
 
-        // UUIDからの変換
+        // UUIDからの変換（同じUUIDなら、同じインスタンスが返される）
         if ( nameOrUuid.startsWith("$") ) {
-            return new MailSenderPlayer(nameOrUuid);
+            return MailSenderPlayer.getMailSenderPlayer(nameOrUuid);
         }
 
         // nameからの変換
@@ -176,11 +189,12 @@ public abstract class MailSender implements Comparable<MailSender> {
             return new MailSenderBlock(null);
         }
 
-        return new MailSenderPlayer(nameOrUuid);
+        return MailSenderPlayer.getMailSenderPlayer(nameOrUuid);
     }
 
     /**
-     * CommandSenderから、MailSenderを作成して返す
+     * CommandSenderから、MailSenderを作成して返す。
+     * プレイヤーの場合は、名前またはUUIDから取得する場合と同じく、共有インスタンスを返す。
      * @param sender
      * @return MailSender
      */
@@ -192,8 +206,7 @@ public abstract class MailSender implements Comparable<MailSender> {
         } else if ( sender instanceof ConsoleCommandSender ) {
             return new MailSenderConsole((ConsoleCommandSender)sender);
         } else if ( sender instanceof OfflinePlayer ) {
-            OfflinePlayer player = (OfflinePlayer)sender;
-            return new MailSenderPlayer("$" + UndineMailer.getInstance().getUUID(player.getName()));
+            return MailSenderPlayer.getMailSenderPlayer(((OfflinePlayer)sender).getName());
         }
         return null;
     }
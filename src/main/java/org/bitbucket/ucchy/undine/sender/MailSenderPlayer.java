@@ -6,6 +6,9 @@
 package org.bitbucket.ucchy.undine.sender;
 
 import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.bitbucket.ucchy.undine.UndineMailer;
 import org.bitbucket.ucchy.undine.Utility;
@@ -23,8 +26,20 @@ import org.bukkit.metadata.MetadataValue;
  */
 public class MailSenderPlayer extends MailSender {
 
-    private String nameOrUuid;
-    private OfflinePlayer offline;
+    /** UUIDで識別されるプレイヤーの共有インスタンス。同じUUIDのインスタンスは1つだけ作られる。 */
+    private static final ConcurrentHashMap<String, MailSenderPlayer> registry =
+            new ConcurrentHashMap<String, MailSenderPlayer>();
+
+    /** 保持しているOfflinePlayerの世代。リロードのたびに進めて、全てのインスタンスに取得し直させる。 */
+    private static final AtomicInteger generation = new AtomicInteger();
+
+    /** CB1.7.8以降かどうか。サーバーのバージョンは変わらないので、最初に1回だけ確認する。 */
+    private static volatile Boolean isCB178orLater;
+
+    // 識別子は作成時に決まり、以降は変わらない。アップグレードは、別のインスタンスへの差し替えで行う。
+    private final String nameOrUuid;
+    private final int hash;
+    private volatile CachedPlayer offline;
 
     /**
      * コンストラクタ
@@ -32,15 +47,56 @@ public class MailSenderPlayer extends MailSender {
      */
     public MailSenderPlayer(String nameOrUuid) {
         this.nameOrUuid = nameOrUuid;
+        this.hash = nameOrUuid.hashCode();
     }
 
     /**
-     * コンストラクタ
+     * コンストラクタ。
+     * UUIDがまだ解決されていない場合は、プレイヤー名で作成される。
+     * 解決された後は、getUpgradedで取得したインスタンスに差し替えること。
      * @param player プレイヤー
      */
     public MailSenderPlayer(OfflinePlayer player) {
-        String uuid = UndineMailer.getInstance().getUUID(player.getName());
-        this.nameOrUuid = "$" + uuid;
+        this(toKey(player.getName(), UndineMailer.getInstance().getUUID(player.getName())));
+    }
+
+    /**
+     * 名前またはUUIDから、MailSenderPlayerを取得する。
+     * 名前で指定された場合も、UUIDが分かっていれば、UUIDで識別されるインスタンスを返す。
+     * UUIDで識別されるインスタンスは、同じUUIDに対して常に同じインスタンスを返す。
+     * @param nameOrUuid プレイヤー名、または、"$"+UUID
+     * @return MailSenderPlayer
+     */
+    public static MailSenderPlayer getMailSenderPlayer(String nameOrUuid) {
+
+        String key = nameOrUuid;
+        if ( !key.startsWith("$") ) {
+            String uuid = findUUID(key);
+            if ( uuid == null ) {
+                // UUIDが分からない名前は、共有せずに名前で識別する
+                return new MailSenderPlayer(key);
+            }
+            key = "$" + uuid;
+        }
+
+        MailSenderPlayer sender = registry.get(key);
+        if ( sender == null ) {
+            MailSenderPlayer created = new MailSenderPlayer(key);
+            sender = registry.putIfAbsent(key, created);
+            if ( sender == null ) {
+                sender = created;
+            }
+        }
+        return sender;
+    }
+
+    /**
+     * 共有インスタンスを全て破棄し、全てのインスタンスが保持しているOfflinePlayerを取得し直させる。
+     * リロード時と、プラグインの無効化時に呼び出される。
+     */
+    public static void clearRegistry() {
+        registry.clear();
+        generation.incrementAndGet();
     }
 
     /**
@@ -49,9 +105,7 @@ public class MailSenderPlayer extends MailSender {
      */
     @Override
     public boolean isOnline() {
-        if ( offline == null ) {
-            offline = getOfflinePlayer();
-        }
+        OfflinePlayer offline = getOfflinePlayer();
         return offline.isOnline();
     }
 
@@ -61,10 +115,15 @@ public class MailSenderPlayer extends MailSender {
      */
     @Override
     public boolean isValidDestination() {
-        if ( offline == null ) {
-            offline = getOfflinePlayer();
+
+        // UUIDを使用するサーバーで、UUIDを解決できなかったプレイヤーは、宛先にしない。
+        // 名前のまま保存すると、UUIDで識別される本人のインスタンスと一致しなくなる。
+        if ( !nameOrUuid.startsWith("$") && isUuidEnabled() ) {
+            return false;
         }
 
+        OfflinePlayer offline = getOfflinePlayer();
+
         return offline.hasPlayedBefore() || offline.isOnline();
     }
 
@@ -75,9 +134,7 @@ public class MailSenderPlayer extends MailSender {
      */
     @Override
     public String getName() {
-        if ( offline == null ) {
-            offline = getOfflinePlayer();
-        }
+        OfflinePlayer offline = getOfflinePlayer();
         return offline.getName();
     }
 
@@ -116,15 +173,24 @@ public class MailSenderPlayer extends MailSender {
     @SuppressWarnings("deprecation")
     @Override
     public OfflinePlayer getOfflinePlayer() {
-        if ( offline != null ) return offline;
+        int current = generation.get();
+        CachedPlayer cached = offline;
+        if ( cached != null && cached.generation == current ) return cached.player;
+
+        OfflinePlayer player;
         if ( nameOrUuid.startsWith("$") ) {
-            //offline = Bukkit.getOfflinePlayer(UUID.fromString(nameOrUuid.substring(1)));
             String name = UndineMailer.getInstance().getName(nameOrUuid.substring(1));
-            offline = Bukkit.getOfflinePlayer(name);
+            if ( name == null ) {
+                // 名前がまだ解決されていない場合は、サーバーが知っているプレイヤーを使い、
+                // 解決された後に改めて取得するため、保持はしない
+                return Bukkit.getOfflinePlayer(UUID.fromString(nameOrUuid.substring(1)));
+            }
+            player = Bukkit.getOfflinePlayer(name);
         } else {
-            offline = Bukkit.getOfflinePlayer(nameOrUuid);
+            player = Bukkit.getOfflinePlayer(nameOrUuid);
         }
-        return offline;
+        offline = new CachedPlayer(player, current);
+        return player;
     }
 
     /**
@@ -134,9 +200,7 @@ public class MailSenderPlayer extends MailSender {
      */
     @Override
     public Player getPlayer() {
-        if ( offline == null ) {
-            offline = getOfflinePlayer();
-        }
+        OfflinePlayer offline = getOfflinePlayer();
         return offline.getPlayer();
     }
 
@@ -191,9 +255,7 @@ public class MailSenderPlayer extends MailSender {
      */
     @Override
     public boolean isOp() {
-        if ( offline == null ) {
-            offline = getOfflinePlayer();
-        }
+        OfflinePlayer offline = getOfflinePlayer();
         return offline.isOp();
     }
 
@@ -205,9 +267,7 @@ public class MailSenderPlayer extends MailSender {
      */
     @Override
     public void setStringMetadata(String key, String value) {
-        if ( offline == null ) {
-            offline = getOfflinePlayer();
-        }
+        OfflinePlayer offline = getOfflinePlayer();
         Player player = offline.getPlayer();
         if ( !offline.isOnline() || player == null ) {
             return;
@@ -224,9 +284,7 @@ public class MailSenderPlayer extends MailSender {
      */
     @Override
     public String getStringMetadata(String key) {
-        if ( offline == null ) {
-            offline = getOfflinePlayer();
-        }
+        OfflinePlayer offline = getOfflinePlayer();
         Player player = offline.getPlayer();
         if ( !offline.isOnline() || player == null ) {
             return null;
@@ -246,9 +304,7 @@ public class MailSenderPlayer extends MailSender {
      */
     @Override
     public void setBooleanMetadata(String key, boolean value) {
-        if ( offline == null ) {
-            offline = getOfflinePlayer();
-        }
+        OfflinePlayer offline = getOfflinePlayer();
         Player player = offline.getPlayer();
         if ( !offline.isOnline() || player == null ) {
             return;
@@ -265,9 +321,7 @@ public class MailSenderPlayer extends MailSender {
      */
     @Override
     public boolean getBooleanMetadata(String key) {
-        if ( offline == null ) {
-            offline = getOfflinePlayer();
-        }
+        OfflinePlayer offline = getOfflinePlayer();
         Player player = offline.getPlayer();
         if ( !offline.isOnline() || player == null ) {
             return false;
@@ -292,7 +346,11 @@ public class MailSenderPlayer extends MailSender {
         }
         OfflinePlayer player = (OfflinePlayer)sender;
         if ( nameOrUuid.startsWith("$") ) {
-            return nameOrUuid.equals("$" + UndineMailer.getInstance().getUUID(player.getName()));
+            String uuid = UndineMailer.getInstance().getUUID(player.getName());
+            if ( uuid == null ) {
+                return player.getName().equals(getName());
+            }
+            return nameOrUuid.equals("$" + uuid);
         } else {
             return nameOrUuid.equals(player.getName());
         }
@@ -303,39 +361,105 @@ public class MailSenderPlayer extends MailSender {
      * @return キャッシュされているかどうか
      */
     public boolean isUuidCached() {
-        upgrade();
-        if ( !nameOrUuid.startsWith("$") ) return false;
+        if ( !nameOrUuid.startsWith("$") ) {
+            MailSenderPlayer upgraded = getUpgraded();
+            return upgraded != null && upgraded.isUuidCached();
+        }
         String uuid = nameOrUuid.substring(1);
         return UndineMailer.getInstance().getPlayerUuids().contains(uuid);
     }
 
     /**
-     * IDを返す
-     * @return CB178以降なら "$" + UUID を返す、CB175以前ならIDを返す
+     * IDを返す。IDは作成時に決まり、以降は変わらない。
+     * @return UUIDで識別されているなら "$" + UUID を返す、名前で識別されているなら名前を返す
      * @see org.bitbucket.ucchy.undine.sender.MailSender#toString()
      */
     @Override
     public String toString() {
-        upgrade();
         return nameOrUuid;
     }
 
     /**
-     * データのアップグレードを行う。
-     * @return アップグレードを実行したかどうか
+     * ハッシュ値を返す。IDから作成時に求めておいた値を返す。
+     * @return ハッシュ値
+     * @see org.bitbucket.ucchy.undine.sender.MailSender#hashCode()
+     */
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    /**
+     * データのアップグレードができるかどうかを返す。
+     * このインスタンスのIDは変更しないので、アップグレード後のインスタンスは、
+     * getUpgradedで取得して差し替えること。
+     * @return アップグレードできるかどうか
      */
     public boolean upgrade() {
+        return getUpgraded() != null;
+    }
 
-        // CB1.7.5 以前なら、何もしない
-        if ( !Utility.isCB178orLater() ) return false;
+    /**
+     * データのアップグレードを行う。
+     * このインスタンスのIDは変更せず、UUIDで識別される共有インスタンスを返すので、
+     * 呼び出し元で差し替えること。
+     * @return アップグレード後のインスタンス、アップグレードしなかった場合はnull
+     */
+    public MailSenderPlayer getUpgraded() {
 
         // nameOrUuidが $ から始まる文字列なら、アップグレード済みなので何もしない
-        if ( nameOrUuid.startsWith("$") ) return false;
+        if ( nameOrUuid.startsWith("$") ) return null;
+
+        String uuid = findUUID(nameOrUuid);
+        if ( uuid == null ) return null;
+        return getMailSenderPlayer("$" + uuid);
+    }
+
+    /**
+     * 指定された名前のプレイヤーのUUIDを取得する。
+     * CB1.7.5以前のサーバーと、サーバーの外から使われている場合は、UUIDを使用しないのでnullを返す。
+     * @param name プレイヤー名
+     * @return UUID、使用しない場合と解決できなかった場合はnull
+     */
+    private static String findUUID(String name) {
 
-        // nameOrUuidを、$ + UUID に変更する
-        String uuid = UndineMailer.getInstance().getUUID(nameOrUuid);
-        if ( uuid.equals("") ) return false;
-        nameOrUuid = "$" + uuid;
-        return true;
+        if ( !isUuidEnabled() ) return null;
+
+        String uuid = UndineMailer.getInstance().getUUID(name);
+        if ( uuid == null || uuid.equals("") ) return null;
+        return uuid;
+    }
+
+    /**
+     * プレイヤーをUUIDで識別するかどうかを返す。
+     * CB1.7.5以前のサーバーと、サーバーの外から使われている場合は、UUIDを使用しない。
+     * @return UUIDで識別するかどうか
+     */
+    private static boolean isUuidEnabled() {
+
+        if ( Bukkit.getServer() == null ) return false;
+
+        if ( isCB178orLater == null ) {
+            isCB178orLater = Utility.isCB178orLater();
+        }
+        return isCB178orLater;
+    }
+
+    private static String toKey(String name, String uuid) {
+        return (uuid != null) ? "$" + uuid : name;
+    }
+
+    /**
+     * 保持しているOfflinePlayerと、その世代
+     */
+    private static class CachedPlayer {
+
+        private final OfflinePlayer player;
+        private final int generation;
+
+        private CachedPlayer(OfflinePlayer player, int generation) {
+            this.player = player;
+            this.generation = generation;
+        }
     }
 }
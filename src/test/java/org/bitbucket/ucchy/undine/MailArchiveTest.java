@@ -0,0 +1,78 @@
+package org.bitbucket.ucchy.undine;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bitbucket.ucchy.undine.sender.MailSender;
+import org.bitbucket.ucchy.undine.sender.MailSenderDummy;
+
+import junit.framework.TestCase;
+
+public class MailArchiveTest extends TestCase {
+
+    private File folder;
+
+    @Override
+    protected void setUp() throws IOException {
+        folder = File.createTempFile("undine", "archive");
+        folder.delete();
+        folder.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() {
+        File[] files = folder.listFiles();
+        if ( files != null ) {
+            for ( File file : files ) {
+                file.delete();
+            }
+        }
+        folder.delete();
+    }
+
+    public void testArchive() {
+
+        MailArchive archive = new MailArchive(folder);
+        List<MailData> mails = new ArrayList<MailData>();
+        for ( int i=1; i<=100; i++ ) {
+            mails.add(makeMail(i));
+        }
+        assertTrue(archive.archive(mails.subList(0, 70)));
+        assertTrue(archive.archive(mails.subList(70, 100)));
+        assertEquals(100, archive.size());
+
+        // 開き直しても、インデクスを指定して参照できる
+        archive = new MailArchive(folder);
+        assertEquals(100, archive.size());
+        assertEquals("test 1", archive.getMail(1).getMessage().get(0));
+        assertEquals("test 65", archive.getMail(65).getMessage().get(0));
+        assertEquals("test 100", archive.getMail(100).getMessage().get(0));
+        assertNull(archive.getMail(101));
+    }
+
+    public void testLastIndex() {
+
+        MailArchive archive = new MailArchive(folder);
+        assertEquals(0, archive.getLastIndex());
+
+        List<MailData> mails = new ArrayList<MailData>();
+        mails.add(makeMail(12));
+        mails.add(makeMail(7));
+        assertTrue(archive.archive(mails));
+        assertEquals(12, archive.getLastIndex());
+
+        // 開き直しても、最大のインデクスは変わらない
+        archive = new MailArchive(folder);
+        assertEquals(12, archive.getLastIndex());
+    }
+
+    private static MailData makeMail(int index) {
+        List<MailSender> to = new ArrayList<MailSender>();
+        to.add(new MailSenderDummy("bob"));
+        MailData mail = new MailData(to, new MailSenderDummy("alice"), "test " + index);
+        mail.setIndex(index);
+        return mail;
+    }
+}
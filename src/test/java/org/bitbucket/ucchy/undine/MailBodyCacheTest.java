@@ -0,0 +1,121 @@
+package org.bitbucket.ucchy.undine;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bitbucket.ucchy.undine.sender.MailSender;
+import org.bitbucket.ucchy.undine.sender.MailSenderDummy;
+
+import junit.framework.TestCase;
+
+public class MailBodyCacheTest extends TestCase {
+
+    private File folder;
+
+    @Override
+    protected void setUp() throws IOException {
+        folder = File.createTempFile("undine", "cache");
+        folder.delete();
+        folder.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() {
+        File[] files = folder.listFiles();
+        if ( files != null ) {
+            for ( File file : files ) {
+                file.delete();
+            }
+        }
+        folder.delete();
+    }
+
+    public void testEviction() {
+
+        MailStorageJournal storage = new MailStorageJournal(folder, null);
+        storage.loadAll();
+        for ( int i=1; i<=3; i++ ) {
+            storage.saveMail(makeMail(i));
+        }
+        storage.close();
+
+        List<MailData> mails = storage.loadAll();
+        MailBodyCache cache = new MailBodyCache(storage, 2);
+        for ( MailData mail : mails ) {
+            mail.setBodyCache(cache);
+        }
+
+        // 本文は、参照された時にロードされる
+        assertEquals("test 1", mails.get(0).getMessage().get(0));
+        assertEquals("test 2", mails.get(1).getMessage().get(0));
+        assertTrue(mails.get(0).isBodyLoaded());
+
+        // 上限を超えると、最も長く参照されていないメールの本文が破棄される
+        assertEquals("test 3", mails.get(2).getMessage().get(0));
+        assertFalse(mails.get(0).isBodyLoaded());
+        assertTrue(mails.get(1).isBodyLoaded());
+        assertEquals("test 1", mails.get(0).getMessageHead());
+        assertEquals(0, mails.get(0).getAttachmentsCount());
+    }
+
+    public void testUnsavedBody() {
+
+        MailStorageJournal storage = new MailStorageJournal(folder, null);
+        storage.loadAll();
+        storage.saveMail(makeMail(2));
+        MailBodyCache cache = new MailBodyCache(storage, 1);
+
+        // まだ書き込まれていない新しいメールは、押し出されても本文が破棄されない
+        MailData sent = makeMail(1);
+        cache.add(sent);
+        MailData stored = storage.loadMail(2);
+        cache.add(stored);
+        assertTrue(sent.isBodyLoaded());
+
+        // 書き込み済みで変更の無いメールは、破棄される
+        stored.setBodyCache(cache);
+        cache.load(sent);
+        assertFalse(stored.isBodyLoaded());
+
+        // 変更したメールは、書き込みが終わるまで破棄されない
+        stored.addMessage("changed");
+        cache.load(sent);
+        assertTrue(stored.isBodyLoaded());
+        storage.close();
+    }
+
+    public void testLoadFailure() {
+
+        MailStorageJournal storage = new MailStorageJournal(folder, null);
+        storage.loadAll();
+        storage.saveMail(makeMail(1));
+        storage.close();
+
+        List<MailData> mails = storage.loadAll();
+        MailBodyCache cache = new MailBodyCache(storage, 2);
+        MailData mail = mails.get(0);
+        mail.setBodyCache(cache);
+        storage.deleteMail(1);
+
+        // 本文を読めない場合は、空の本文で補わずにエラーにする
+        try {
+            mail.getMessage();
+            fail();
+        } catch (IllegalStateException e) {
+            // 正しい動作
+        }
+        assertFalse(mail.isBodyLoaded());
+        assertEquals("test 1", mail.getMessageHead());
+        storage.close();
+    }
+
+    private static MailData makeMail(int index) {
+        List<MailSender> to = new ArrayList<MailSender>();
+        to.add(new MailSenderDummy("bob"));
+        MailData mail = new MailData(to, new MailSenderDummy("alice"), "test " + index);
+        mail.setIndex(index);
+        return mail;
+    }
+}
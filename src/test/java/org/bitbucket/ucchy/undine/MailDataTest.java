@@ -0,0 +1,121 @@
+package org.bitbucket.ucchy.undine;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bitbucket.ucchy.undine.sender.MailSender;
+import org.bitbucket.ucchy.undine.sender.MailSenderDummy;
+import org.bukkit.configuration.file.YamlConfiguration;
+
+import junit.framework.TestCase;
+
+public class MailDataTest extends TestCase {
+
+    private static final String BOB = "bob";
+    private static final String CAROL = "carol";
+    private static final String DAVE = "dave";
+
+    public void testFlags() {
+
+        List<MailSender> to = new ArrayList<MailSender>();
+        to.add(new MailSenderDummy(BOB));
+        MailData mail = new MailData(to, new MailSenderDummy("alice"), "test");
+
+        mail.setReadFlag(new MailSenderDummy(DAVE));
+        mail.setReadFlag(new MailSenderDummy(CAROL));
+        mail.setReadFlag(new MailSenderDummy(DAVE));
+        assertEquals(2, mail.getReadFlags().size());
+        assertTrue(mail.isRead(new MailSenderDummy(CAROL)));
+
+        mail.setTrashFlag(new MailSenderDummy(CAROL));
+        assertTrue(mail.isSetTrash(new MailSenderDummy(CAROL)));
+        mail.removeTrashFlag(new MailSenderDummy(CAROL));
+        assertFalse(mail.isSetTrash(new MailSenderDummy(CAROL)));
+
+        // 保存時は、既読になった順序が保たれる
+        YamlConfiguration config = new YamlConfiguration();
+        mail.saveToConfigSection(config);
+        List<String> reads = config.getStringList("readFlags");
+        assertEquals(DAVE, reads.get(0));
+        assertEquals(CAROL, reads.get(1));
+
+        MailData loaded = MailData.loadHeaderFromConfigSection(config);
+        List<MailSender> flags = new ArrayList<MailSender>(loaded.getReadFlags());
+        assertEquals(DAVE, flags.get(0).toString());
+        assertEquals(CAROL, flags.get(1).toString());
+    }
+
+    public void testBitSetRecipients() throws IOException {
+
+        // 宛先の通し番号の表を、一時ファイルで開いておく
+        File file = File.createTempFile("undine", "ordinals");
+        file.delete();
+        MailSenderOrdinals.getInstance().open(file);
+        try {
+            checkBitSetRecipients();
+        } finally {
+            MailSenderOrdinals.getInstance().close();
+            file.delete();
+        }
+    }
+
+    public void testBitSetWithoutTable() {
+
+        // 通し番号の表が保存できない場合は、ビット列を使わない
+        MailSenderOrdinals.getInstance().close();
+        List<MailSender> total = new ArrayList<MailSender>();
+        for ( int i = 0; i < 150; i++ ) {
+            total.add(new MailSenderDummy(String.format("$00000000-0000-0000-0002-%012d", i)));
+        }
+        MailData mail = new MailData(total, new MailSenderDummy("alice"), "test");
+        mail.setToTotal(total);
+        mail.setReadFlag(total.get(10));
+
+        assertFalse(mail.getReadFlagSet() instanceof MailSenderBitSet);
+        assertTrue(mail.isRecipient(total.get(149)));
+        assertTrue(mail.isRead(total.get(10)));
+
+        YamlConfiguration config = new YamlConfiguration();
+        mail.saveToConfigSection(config);
+        assertFalse(config.contains("toTotalBits"));
+        assertFalse(config.contains("readFlagsBits"));
+        assertEquals(150, config.getStringList("toTotal").size());
+    }
+
+    private void checkBitSetRecipients() {
+
+        List<MailSender> total = new ArrayList<MailSender>();
+        for ( int i = 0; i < 150; i++ ) {
+            total.add(new MailSenderDummy(String.format("$00000000-0000-0000-0001-%012d", i)));
+        }
+        MailData mail = new MailData(total, new MailSenderDummy("alice"), "test");
+        mail.setToTotal(total);
+        mail.setReadFlag(total.get(10));
+        mail.setTrashFlag(total.get(20));
+
+        assertTrue(mail.getReadFlagSet() instanceof MailSenderBitSet);
+        assertTrue(mail.isRecipient(total.get(149)));
+        assertFalse(mail.isRecipient(new MailSenderDummy(BOB)));
+        assertEquals(150, mail.getToTotal().size());
+
+        // 宛先とフラグは、ビット列の文字列として保存される
+        YamlConfiguration config = new YamlConfiguration();
+        mail.saveToConfigSection(config);
+        assertFalse(config.contains("toTotal"));
+        assertFalse(config.contains("readFlags"));
+        assertTrue(config.contains("toTotalBits"));
+
+        MailData loaded = MailData.loadHeaderFromConfigSection(config);
+        assertTrue(loaded.isRecipient(total.get(0)));
+        assertTrue(loaded.isRead(total.get(10)));
+        assertFalse(loaded.isRead(total.get(11)));
+        assertTrue(loaded.isSetTrash(total.get(20)));
+        assertEquals(1, loaded.getReadFlags().size());
+
+        loaded.setReadFlag(total.get(11));
+        assertEquals(2, loaded.getReadFlags().size());
+        assertEquals(1, mail.getReadFlags().size());
+    }
+}
@@ -0,0 +1,51 @@
+package org.bitbucket.ucchy.undine;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.bitbucket.ucchy.undine.sender.MailSender;
+import org.bitbucket.ucchy.undine.sender.MailSenderDummy;
+
+import junit.framework.TestCase;
+
+public class MailExpiryIndexTest extends TestCase {
+
+    public void testPollExpired() {
+
+        MailExpiryIndex index = new MailExpiryIndex();
+        MailData mail1 = makeMail(1, 1000);
+        MailData mail2 = makeMail(2, 3000);
+        MailData mail3 = makeMail(3, 2000);
+        MailData mail4 = makeMail(4, 2000);
+        index.add(mail1);
+        index.add(mail2);
+        index.add(mail3);
+        index.add(mail4);
+        index.add(makeMail(5, -1));
+        assertEquals(4, index.size());
+
+        index.remove(mail4);
+
+        // 指定日時以前のメールだけが、古い順に取り出される
+        List<MailData> expired = index.pollExpired(2000);
+        assertEquals(2, expired.size());
+        assertSame(mail1, expired.get(0));
+        assertSame(mail3, expired.get(1));
+        assertEquals(1, index.size());
+
+        assertTrue(index.pollExpired(2000).isEmpty());
+        assertSame(mail2, index.pollExpired(5000).get(0));
+    }
+
+    private static MailData makeMail(int index, long time) {
+        List<MailSender> to = new ArrayList<MailSender>();
+        to.add(new MailSenderDummy("bob"));
+        MailData mail = new MailData(to, new MailSenderDummy("alice"), "test");
+        mail.setIndex(index);
+        if ( time >= 0 ) {
+            mail.setDate(new Date(time));
+        }
+        return mail;
+    }
+}
@@ -0,0 +1,122 @@
+package org.bitbucket.ucchy.undine;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bitbucket.ucchy.undine.group.SpecialGroupAll;
+import org.bitbucket.ucchy.undine.sender.MailSender;
+import org.bitbucket.ucchy.undine.sender.MailSenderDummy;
+
+import junit.framework.TestCase;
+
+public class MailRecipientIndexTest extends TestCase {
+
+    private int nextIndex = 1;
+
+    public void testReceivedAndTrashed() {
+
+        MailSender alice = new MailSenderDummy("alice");
+        MailSender bob = new MailSenderDummy("bob");
+        MailSender carol = new MailSenderDummy("carol");
+
+        MailData toBob = makeMail(alice, bob);
+        MailData toCarol = makeMail(alice, carol);
+        MailData toAll = makeMail(carol, null);
+        toAll.getToGroups().add(SpecialGroupAll.NAME);
+
+        MailRecipientIndex index = new MailRecipientIndex();
+        index.add(toBob);
+        index.add(toCarol);
+        index.add(toAll);
+
+        assertEquals(2, index.getReceived(bob).size());
+        assertTrue(index.getReceived(bob).contains(toBob));
+        assertFalse(index.getReceived(bob).contains(toCarol));
+        assertEquals(2, index.getSent(alice).size());
+        assertEquals(2, index.getRelated(carol).size());
+        assertEquals(3, index.getRelated(alice).size());
+
+        // フラグの変更は索引に反映される
+        toBob.setTrashFlag(bob);
+        assertTrue(index.getTrashed(bob).contains(toBob));
+        toBob.removeTrashFlag(bob);
+        assertTrue(index.getTrashed(bob).isEmpty());
+
+        index.remove(toBob);
+        assertEquals(1, index.getReceived(bob).size());
+        assertEquals(1, index.getSent(alice).size());
+    }
+
+    public void testUnreadCount() {
+
+        MailSender alice = new MailSenderDummy("alice");
+        MailSender bob = new MailSenderDummy("bob");
+
+        MailData first = makeMail(alice, bob);
+        MailData second = makeMail(alice, bob);
+        MailData toAll = makeMail(alice, null);
+        toAll.getToGroups().add(SpecialGroupAll.NAME);
+
+        MailRecipientIndex index = new MailRecipientIndex();
+        index.add(first);
+        index.add(second);
+        index.add(toAll);
+
+        assertEquals(3, index.getUnreadCount(bob));
+        assertEquals(toAll, index.getUnread(bob, 1).get(0));
+        assertEquals(second, index.getUnread(bob, 2).get(1));
+
+        // 既読・ゴミ箱・削除で、未読の件数が更新される
+        first.setReadFlag(bob);
+        first.setReadFlag(bob);
+        assertEquals(2, index.getUnreadCount(bob));
+        second.setTrashFlag(bob);
+        assertEquals(1, index.getUnreadCount(bob));
+        second.removeTrashFlag(bob);
+        assertEquals(2, index.getUnreadCount(bob));
+        toAll.setReadFlag(bob);
+        assertEquals(1, index.getUnreadCount(bob));
+        index.remove(second);
+        assertEquals(0, index.getUnreadCount(bob));
+        assertTrue(index.getUnread(bob, 5).isEmpty());
+    }
+
+    public void testVersion() {
+
+        MailSender alice = new MailSenderDummy("alice");
+        MailSender bob = new MailSenderDummy("bob");
+        MailSender carol = new MailSenderDummy("carol");
+
+        MailRecipientIndex index = new MailRecipientIndex();
+        MailData toBob = makeMail(alice, bob);
+        index.add(toBob);
+
+        long version = index.getVersion(bob, false);
+        long withReads = index.getVersion(bob, true);
+        long other = index.getVersion(carol, true);
+
+        // 既読の変更は、既読を含めた更新番号だけを変える
+        toBob.setReadFlag(bob);
+        assertEquals(version, index.getVersion(bob, false));
+        assertTrue(withReads != index.getVersion(bob, true));
+
+        toBob.setTrashFlag(bob);
+        assertTrue(version != index.getVersion(bob, false));
+
+        // 関係の無い人の更新番号は変わらない
+        assertEquals(other, index.getVersion(carol, true));
+        index.remove(toBob);
+        assertEquals(other, index.getVersion(carol, true));
+    }
+
+    private MailData makeMail(MailSender from, MailSender to) {
+        List<MailSender> toList = new ArrayList<MailSender>();
+        if ( to != null ) {
+            toList.add(to);
+        }
+        MailData mail = new MailData(toList, from, "test");
+        mail.setToTotal(new ArrayList<MailSender>(toList));
+        mail.setIndex(nextIndex++);
+        return mail;
+    }
+}
@@ -0,0 +1,116 @@
+package org.bitbucket.ucchy.undine;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bitbucket.ucchy.undine.sender.MailSender;
+import org.bitbucket.ucchy.undine.sender.MailSenderDummy;
+
+import junit.framework.TestCase;
+
+public class MailSaveQueueTest extends TestCase {
+
+    private File folder;
+
+    @Override
+    protected void setUp() throws IOException {
+        folder = File.createTempFile("undine", "queue");
+        folder.delete();
+        folder.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() {
+        File[] files = folder.listFiles();
+        if ( files != null ) {
+            for ( File file : files ) {
+                file.delete();
+            }
+        }
+        folder.delete();
+    }
+
+    public void testCoalesce() {
+
+        MailStorageJournal storage = new MailStorageJournal(folder, null);
+        storage.loadAll();
+        MailSaveQueue queue = new MailSaveQueue(storage);
+
+        MailData mail1 = makeMail(1);
+        MailData mail2 = makeMail(2);
+        queue.saveMail(mail1);
+        queue.saveFlags(mail1);
+        queue.saveMail(mail1);
+        queue.saveMail(mail2);
+        queue.deleteMail(2);
+        assertEquals(2, queue.size());
+
+        // flushされるまでは書き込まれない
+        assertNull(storage.loadMail(1));
+
+        queue.flush();
+        assertEquals(0, queue.size());
+        assertEquals("test 1", storage.loadMail(1).getMessage().get(0));
+        assertNull(storage.loadMail(2));
+        storage.close();
+    }
+
+    public void testPinnedBody() {
+
+        MailStorageJournal storage = new MailStorageJournal(folder, null);
+        storage.loadAll();
+        MailSaveQueue queue = new MailSaveQueue(storage);
+        MailBodyCache cache = new MailBodyCache(storage, 1);
+
+        // 2通目は、書き込み済みのメールにしておく
+        storage.saveMail(makeMail(2));
+        MailData mail1 = makeMail(1);
+        MailData mail2 = storage.loadMail(2);
+        cache.add(mail1);
+        mail1.setMessage(new ArrayList<String>());
+        mail1.addMessage("changed");
+        queue.saveMail(mail1);
+
+        // 保存待ちのメールは、キャッシュから押し出されても本文が破棄されない
+        cache.add(mail2);
+        assertTrue(mail1.isBodyLoaded());
+
+        // 書き込みが終われば、再び破棄できるようになる
+        queue.flush();
+        assertEquals("changed", storage.loadMail(1).getMessage().get(0));
+        assertFalse(mail2.isBodyLoaded());
+        storage.close();
+    }
+
+    public void testRetarget() {
+
+        MailStorageJournal storage = new MailStorageJournal(folder, null);
+        storage.loadAll();
+        MailSaveQueue queue = new MailSaveQueue(storage);
+
+        // リロード前のインスタンスへの保存待ちは、差し替え後のインスタンスで書き込まれる
+        MailData old = makeMail(1);
+        queue.saveMail(old);
+        MailData reloaded = makeMail(1);
+        reloaded.setMessage(0, "reloaded");
+        Map<Integer, MailData> mails = new HashMap<Integer, MailData>();
+        mails.put(1, reloaded);
+        queue.retarget(mails);
+
+        queue.flush();
+        assertEquals("reloaded", storage.loadMail(1).getMessage().get(0));
+        storage.close();
+    }
+
+    private static MailData makeMail(int index) {
+        List<MailSender> to = new ArrayList<MailSender>();
+        to.add(new MailSenderDummy("bob"));
+        MailData mail = new MailData(to, new MailSenderDummy("alice"), "test " + index);
+        mail.setIndex(index);
+        return mail;
+    }
+}
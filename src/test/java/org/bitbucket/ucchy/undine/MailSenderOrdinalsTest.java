@@ -0,0 +1,71 @@
+package org.bitbucket.ucchy.undine;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import org.bitbucket.ucchy.undine.sender.MailSender;
+import org.bitbucket.ucchy.undine.sender.MailSenderDummy;
+
+import junit.framework.TestCase;
+
+public class MailSenderOrdinalsTest extends TestCase {
+
+    private File file;
+
+    @Override
+    protected void setUp() throws IOException {
+        file = File.createTempFile("undine", "ordinals");
+        file.delete();
+    }
+
+    @Override
+    protected void tearDown() {
+        file.delete();
+    }
+
+    public void testReopen() {
+
+        List<MailSender> senders = new ArrayList<MailSender>();
+        senders.add(new MailSenderDummy("$a"));
+        senders.add(new MailSenderDummy("$b"));
+
+        MailSenderOrdinals ordinals = new MailSenderOrdinals();
+        ordinals.open(file);
+        BitSet bits = ordinals.toBits(senders);
+        assertEquals(2, bits.cardinality());
+        assertEquals(2, ordinals.size());
+
+        // 既に番号のある宛先には、同じ番号が使われる
+        senders.add(new MailSenderDummy("$c"));
+        assertEquals(bits.nextSetBit(0), ordinals.toBits(senders).nextSetBit(0));
+        assertEquals(3, ordinals.size());
+        ordinals.close();
+
+        MailSenderOrdinals reopened = new MailSenderOrdinals();
+        reopened.open(file);
+        assertEquals(3, reopened.size());
+        assertEquals(ordinals.getOrdinal(new MailSenderDummy("$b")),
+                reopened.getOrdinal(new MailSenderDummy("$b")));
+        assertEquals(-1, reopened.getOrdinal(new MailSenderDummy("$d")));
+        reopened.close();
+
+        // 閉じた後は、保存されない番号を割り当てない
+        assertFalse(reopened.isPersistent());
+        try {
+            reopened.toBits(senders.subList(0, 1));
+        } catch (IllegalStateException e) {
+            fail();
+        }
+        senders.add(new MailSenderDummy("$d"));
+        try {
+            reopened.toBits(senders);
+            fail();
+        } catch (IllegalStateException e) {
+            // 正しい動作
+        }
+        assertEquals(-1, reopened.getOrdinal(new MailSenderDummy("$d")));
+    }
+}
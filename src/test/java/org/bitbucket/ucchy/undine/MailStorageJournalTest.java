@@ -0,0 +1,187 @@
+package org.bitbucket.ucchy.undine;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import org.bitbucket.ucchy.undine.sender.MailSender;
+import org.bitbucket.ucchy.undine.sender.MailSenderDummy;
+
+import junit.framework.TestCase;
+
+public class MailStorageJournalTest extends TestCase {
+
+    private File folder;
+
+    @Override
+    protected void setUp() throws IOException {
+        folder = File.createTempFile("undine", "journal");
+        folder.delete();
+        folder.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() {
+        File[] files = folder.listFiles();
+        if ( files != null ) {
+            for ( File file : files ) {
+                file.delete();
+            }
+        }
+        folder.delete();
+    }
+
+    public void testReplay() {
+
+        MailStorageJournal storage = new MailStorageJournal(folder, null);
+        assertEquals(0, storage.loadAll().size());
+
+        MailData first = makeMail(1);
+        MailData second = makeMail(2);
+        storage.saveMail(first);
+        storage.saveMail(second);
+        storage.saveMail(makeMail(3));
+        storage.deleteMail(2);
+
+        first.setReadFlag(new MailSenderDummy("bob"));
+        storage.saveFlags(first);
+        storage.close();
+
+        List<MailData> loaded = new MailStorageJournal(folder, null).loadAll();
+        assertEquals(2, loaded.size());
+        assertEquals(1, loaded.get(0).getIndex());
+        assertEquals(3, loaded.get(1).getIndex());
+        assertEquals(1, loaded.get(0).getReadFlags().size());
+        assertEquals(0, loaded.get(1).getReadFlags().size());
+    }
+
+    public void testCompact() {
+
+        MailStorageJournal storage = new MailStorageJournal(folder, null);
+        storage.loadAll();
+
+        // 同じメールを何度も保存して、追記量を増やす
+        List<MailData> mails = new ArrayList<MailData>();
+        for ( int i=1; i<=10; i++ ) {
+            mails.add(makeMail(i));
+        }
+        for ( int count=0; count<1000; count++ ) {
+            for ( MailData mail : mails ) {
+                storage.saveMail(mail);
+            }
+        }
+        long before = getTotalSize();
+
+        storage.compact(mails);
+        assertTrue(getTotalSize() < before / 100);
+
+        storage.saveMail(makeMail(11));
+        storage.close();
+
+        assertEquals(11, new MailStorageJournal(folder, null).loadAll().size());
+    }
+
+    public void testLazyBody() {
+
+        MailStorageJournal storage = new MailStorageJournal(folder, null);
+        storage.loadAll();
+
+        List<MailData> mails = new ArrayList<MailData>();
+        for ( int i=1; i<=10; i++ ) {
+            MailData mail = makeMail(i);
+            mail.addMessage("second line");
+            mails.add(mail);
+        }
+        for ( int count=0; count<1000; count++ ) {
+            for ( MailData mail : mails ) {
+                storage.saveMail(mail);
+            }
+        }
+        storage.close();
+
+        // ロード直後は、ヘッダーだけがロードされている
+        storage = new MailStorageJournal(folder, null);
+        List<MailData> headers = storage.loadAll();
+        assertEquals(10, headers.size());
+        assertFalse(headers.get(2).isBodyLoaded());
+        assertEquals("test 3", headers.get(2).getMessageHead());
+
+        // 本文がロードされていないメールは、レコードの複製でコンパクションされる
+        headers.get(2).setReadFlag(new MailSenderDummy("bob"));
+        storage.saveFlags(headers.get(2));
+        storage.compact(headers);
+        assertEquals(2, storage.loadMail(3).getMessage().size());
+        storage.close();
+
+        headers = new MailStorageJournal(folder, null).loadAll();
+        assertEquals(10, headers.size());
+        assertEquals(1, headers.get(2).getReadFlags().size());
+    }
+
+    public void testCompactWhileAppending() throws InterruptedException {
+
+        final MailStorageJournal storage = new MailStorageJournal(folder, null);
+        storage.loadAll();
+
+        // MailManagerと同じく、一覧を更新してから書き込むスレッドと、コンパクションを並行させる
+        final ConcurrentSkipListMap<Integer, MailData> live = new ConcurrentSkipListMap<Integer, MailData>();
+        final StringBuilder padding = new StringBuilder();
+        for ( int i=0; i<200; i++ ) {
+            padding.append("0123456789");
+        }
+        Thread writer = new Thread() {
+            public void run() {
+                for ( int i=1; i<=2000; i++ ) {
+                    MailData mail = makeMail(i);
+                    mail.addMessage(padding.toString());
+                    live.put(i, mail);
+                    storage.saveMail(mail);
+                    if ( i % 3 == 0 ) {
+                        live.remove(i - 1);
+                        storage.deleteMail(i - 1);
+                    }
+                }
+            }
+        };
+        writer.start();
+        int compactions = 0;
+        while ( writer.isAlive() ) {
+            storage.compact(live.values());
+            compactions++;
+        }
+        writer.join();
+        storage.compact(live.values());
+        assertTrue(compactions > 0);
+
+        // 残っているメールの本文は、削除されていないセグメントから読める
+        for ( int index : live.keySet() ) {
+            assertNotNull(storage.loadMail(index));
+        }
+        storage.close();
+
+        List<MailData> loaded = new MailStorageJournal(folder, null).loadAll();
+        List<Integer> indexes = new ArrayList<Integer>();
+        for ( MailData mail : loaded ) {
+            indexes.add(mail.getIndex());
+        }
+        assertEquals(new ArrayList<Integer>(live.keySet()), indexes);
+    }
+
+    private long getTotalSize() {
+        long size = 0;
+        for ( File file : folder.listFiles() ) {
+            size += file.length();
+        }
+        return size;
+    }
+
+    private static MailData makeMail(int index) {
+        List<MailSender> to = new ArrayList<MailSender>();
+        to.add(new MailSenderDummy("bob"));
+        MailData mail = new MailData(to, new MailSenderDummy("alice"), "test " + index);
+        mail.setIndex(index);
+        return mail;
+    }
+}
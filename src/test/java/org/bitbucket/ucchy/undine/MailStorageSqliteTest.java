@@ -0,0 +1,174 @@
+package org.bitbucket.ucchy.undine;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import org.bitbucket.ucchy.undine.group.SpecialGroupAll;
+import org.bitbucket.ucchy.undine.sender.MailSender;
+import org.bitbucket.ucchy.undine.sender.MailSenderDummy;
+import org.bukkit.Material;
+import org.bukkit.inventory.ItemStack;
+
+import junit.framework.TestCase;
+
+public class MailStorageSqliteTest extends TestCase {
+
+    private static final long DAY = 24L * 60 * 60 * 1000;
+
+    private File file;
+    private UndineDatabase database;
+
+    @Override
+    protected void setUp() throws IOException {
+        file = File.createTempFile("undine", ".db");
+        file.delete();
+        database = UndineDatabase.open(file);
+        assertNotNull(database);
+    }
+
+    @Override
+    protected void tearDown() {
+        database.close();
+        for ( String suffix : new String[]{"", "-wal", "-shm"} ) {
+            new File(file.getPath() + suffix).delete();
+        }
+    }
+
+    public void testRoundTrip() {
+
+        MailStorageSqlite storage = new MailStorageSqlite(database, null);
+        assertEquals(0, storage.loadAll().size());
+
+        MailData first = makeMail(1, "bob", 0);
+        first.addMessage("second line");
+        storage.saveMail(first);
+        storage.saveMail(makeMail(2, "bob", 0));
+        storage.saveMail(makeMail(3, "carol", 0));
+        storage.deleteMail(2);
+
+        first.setReadFlag(new MailSenderDummy("bob"));
+        storage.saveFlags(first);
+
+        List<MailData> loaded = new MailStorageSqlite(database, null).loadAll();
+        assertEquals(2, loaded.size());
+        assertEquals(1, loaded.get(0).getIndex());
+        assertEquals(3, loaded.get(1).getIndex());
+        assertFalse(loaded.get(0).isBodyLoaded());
+        assertEquals(1, loaded.get(0).getReadFlags().size());
+        assertEquals(0, loaded.get(1).getReadFlags().size());
+
+        MailData full = storage.loadMail(1);
+        assertEquals(2, full.getMessage().size());
+        assertNull(storage.loadMail(2));
+    }
+
+    public void testInbox() {
+
+        MailStorageSqlite storage = new MailStorageSqlite(database, null);
+        storage.loadAll();
+
+        storage.saveMail(makeMail(1, "bob", 3));
+        storage.saveMail(makeMail(2, "carol", 2));
+        MailData trashed = makeMail(3, "bob", 1);
+        trashed.setTrashFlag(new MailSenderDummy("bob"));
+        storage.saveMail(trashed);
+        MailData all = makeMail(4, "dave", 0);
+        all.setToGroup(0, SpecialGroupAll.NAME);
+        storage.saveMail(all);
+
+        // 全体メールを含み、ゴミ箱に入れたメールを除いて、新しい順に返す
+        assertEquals(Arrays.asList(4, 1), storage.findInboxMails(new MailSenderDummy("bob")));
+        assertEquals(Arrays.asList(4, 2), storage.findInboxMails(new MailSenderDummy("carol")));
+    }
+
+    public void testAttachBoxAndExpired() {
+
+        MailStorageSqlite storage = new MailStorageSqlite(database, null);
+        storage.loadAll();
+
+        MailData attached = makeMail(1, "bob", 40);
+        attached.addAttachment(new ItemStack(Material.STONE));
+        storage.saveMail(attached);
+        storage.saveMail(makeMail(2, "bob", 10));
+        storage.saveMail(makeMail(3, "bob", 50));
+
+        assertEquals(1, storage.countAttachBoxUsage(new MailSenderDummy("alice")));
+        assertEquals(0, storage.countAttachBoxUsage(new MailSenderDummy("bob")));
+
+        List<Integer> expired = storage.findExpiredMails(System.currentTimeMillis() - 30 * DAY);
+        assertEquals(Arrays.asList(3, 1), expired);
+    }
+
+    public void testLastIndex() throws SQLException {
+
+        MailStorageSqlite storage = new MailStorageSqlite(database, null);
+        assertEquals(0, storage.getLastIndex());
+        storage.saveMail(makeMail(1, "bob", 0));
+        storage.saveMail(makeMail(2, "bob", 0));
+
+        // 解析できないメールは、ロードされないが、インデクスは使用済みとして数える
+        database.execute(new UndineDatabase.Work<Void>() {
+            public Void run(Connection connection) throws SQLException {
+                try (Statement statement = connection.createStatement()) {
+                    statement.execute("UPDATE mails SET data = 'to: [' WHERE idx = 2");
+                }
+                return null;
+            }
+        });
+        assertEquals(1, new MailStorageSqlite(database, null).loadAll().size());
+        assertEquals(2, storage.getLastIndex());
+    }
+
+    public void testMigrateAllMailColumn() throws SQLException {
+
+        // 全体メールの列が無い、古いデータベースを作る
+        database.close();
+        new File(file.getPath()).delete();
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + file.getAbsolutePath());
+                Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE mails (idx INTEGER PRIMARY KEY, sender TEXT NOT NULL, "
+                    + "date INTEGER NOT NULL, attachments INTEGER NOT NULL, data TEXT NOT NULL)");
+        }
+        database = UndineDatabase.open(file);
+        assertNotNull(database);
+
+        MailStorageSqlite storage = new MailStorageSqlite(database, null);
+        storage.loadAll();
+        storage.saveMail(makeMail(1, "bob", 1));
+        MailData all = makeMail(2, "dave", 0);
+        all.setToGroup(0, SpecialGroupAll.NAME);
+        storage.saveMail(all);
+
+        // 移行直後の行と同じく、値を未確定にしておくと、ロード時に埋められる
+        database.execute(new UndineDatabase.Work<Void>() {
+            public Void run(Connection connection) throws SQLException {
+                try (Statement statement = connection.createStatement()) {
+                    statement.execute("UPDATE mails SET all_mail = -1");
+                }
+                return null;
+            }
+        });
+        assertEquals(Arrays.asList(1), storage.findInboxMails(new MailSenderDummy("bob")));
+
+        new MailStorageSqlite(database, null).loadAll();
+        assertEquals(Arrays.asList(2, 1), storage.findInboxMails(new MailSenderDummy("bob")));
+        assertEquals(Arrays.asList(2), storage.findInboxMails(new MailSenderDummy("carol")));
+    }
+
+    private static MailData makeMail(int index, String to, int daysAgo) {
+        List<MailSender> list = new ArrayList<MailSender>();
+        list.add(new MailSenderDummy(to));
+        MailData mail = new MailData(list, new MailSenderDummy("alice"), "test " + index);
+        mail.setIndex(index);
+        mail.setDate(new Date(System.currentTimeMillis() - daysAgo * DAY));
+        return mail;
+    }
+}
@@ -0,0 +1,157 @@
+package org.bitbucket.ucchy.undine;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bitbucket.ucchy.undine.sender.MailSender;
+import org.bitbucket.ucchy.undine.sender.MailSenderDummy;
+
+import junit.framework.TestCase;
+
+public class MailStorageYamlTest extends TestCase {
+
+    private File folder;
+
+    @Override
+    protected void setUp() throws IOException {
+        folder = File.createTempFile("undine", "yaml");
+        folder.delete();
+        folder.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() {
+        delete(folder);
+    }
+
+    public void testShardedLayout() {
+
+        MailStorageYaml storage = new MailStorageYaml(folder);
+        storage.saveMail(makeMail(1234));
+        storage.saveMail(makeMail(1299));
+        storage.saveMail(makeMail(123456));
+
+        // インデクスから決まるサブフォルダに格納される
+        assertTrue(new File(folder, "00/12/00001234.yml").exists());
+        assertTrue(new File(folder, "00/12/00001299.yml").exists());
+        assertTrue(new File(folder, "12/34/00123456.yml").exists());
+
+        assertEquals(3, storage.loadAll().size());
+        assertEquals("test 1234", storage.loadMail(1234).getMessage().get(0));
+
+        storage.deleteMail(1234);
+        assertNull(storage.loadMail(1234));
+        assertEquals(2, storage.loadAll().size());
+
+        // 移動される前の、古い形式のファイルも読める
+        makeMail(55).save(new File(folder, "00000055.yml"));
+        assertEquals("test 55", storage.loadMail(55).getMessage().get(0));
+    }
+
+    public void testLoadChanges() {
+
+        MailStorageYaml storage = new MailStorageYaml(folder);
+        storage.saveMail(makeMail(1));
+        storage.saveMail(makeMail(2));
+        storage.saveMail(makeMail(3));
+        assertEquals(3, storage.loadAll().size());
+
+        List<MailData> changed = new ArrayList<MailData>();
+        List<Integer> deleted = new ArrayList<Integer>();
+        assertTrue(storage.loadChanges(changed, deleted));
+        assertTrue(changed.isEmpty());
+        assertTrue(deleted.isEmpty());
+
+        // 自分で保存した変更は、差分に含まれない
+        storage.saveMail(makeMail(4));
+        assertTrue(storage.loadChanges(changed, deleted));
+        assertTrue(changed.isEmpty());
+
+        // 外部での追加・変更・削除は、差分に含まれる
+        MailStorageYaml other = new MailStorageYaml(folder);
+        MailData mail = makeMail(2);
+        mail.addMessage("changed");
+        other.saveMail(mail);
+        other.saveMail(makeMail(5));
+        other.deleteMail(3);
+
+        assertTrue(storage.loadChanges(changed, deleted));
+        assertEquals(2, changed.size());
+        assertEquals(1, deleted.size());
+        assertEquals(3, (int)deleted.get(0));
+    }
+
+    public void testLastIndex() {
+
+        MailStorageYaml storage = new MailStorageYaml(folder);
+        assertEquals(0, storage.getLastIndex());
+        storage.saveMail(makeMail(3));
+        storage.saveMail(makeMail(12345));
+
+        // ロードしたメールの最大のインデクスを返すこと
+        storage = new MailStorageYaml(folder);
+        storage.loadAll();
+        assertEquals(12345, storage.getLastIndex());
+
+        // 外部で追加されたメールは、差分のロードの後に反映されること
+        new MailStorageYaml(folder).saveMail(makeMail(20000));
+        assertEquals(12345, storage.getLastIndex());
+        assertTrue(storage.loadChanges(new ArrayList<MailData>(), new ArrayList<Integer>()));
+        assertEquals(20000, storage.getLastIndex());
+    }
+
+    public void testLoadChangesWhileSaving() throws InterruptedException {
+
+        final MailStorageYaml storage = new MailStorageYaml(folder);
+        for ( int i=1; i<=20; i++ ) {
+            storage.saveMail(makeMail(i));
+        }
+        assertEquals(20, storage.loadAll().size());
+
+        // 保存と並行して差分を調べても、自分で保存したメールは差分に含まれない
+        Thread saver = new Thread() {
+            public void run() {
+                for ( int n=0; n<10; n++ ) {
+                    for ( int i=1; i<=20; i++ ) {
+                        MailData mail = makeMail(i);
+                        for ( int j=0; j<n; j++ ) {
+                            mail.addMessage("line " + j);
+                        }
+                        storage.saveMail(mail);
+                    }
+                }
+            }
+        };
+        saver.start();
+
+        List<MailData> changed = new ArrayList<MailData>();
+        List<Integer> deleted = new ArrayList<Integer>();
+        while ( saver.isAlive() ) {
+            assertTrue(storage.loadChanges(changed, deleted));
+        }
+        saver.join();
+        assertTrue(storage.loadChanges(changed, deleted));
+        assertTrue(changed.isEmpty());
+        assertTrue(deleted.isEmpty());
+    }
+
+    private static MailData makeMail(int index) {
+        List<MailSender> to = new ArrayList<MailSender>();
+        to.add(new MailSenderDummy("bob"));
+        MailData mail = new MailData(to, new MailSenderDummy("alice"), "test " + index);
+        mail.setIndex(index);
+        return mail;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if ( children != null ) {
+            for ( File child : children ) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
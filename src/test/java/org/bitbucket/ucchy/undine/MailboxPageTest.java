@@ -0,0 +1,43 @@
+package org.bitbucket.ucchy.undine;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import org.bitbucket.ucchy.undine.sender.MailSender;
+import org.bitbucket.ucchy.undine.sender.MailSenderDummy;
+
+import junit.framework.TestCase;
+
+public class MailboxPageTest extends TestCase {
+
+    public void testSelect() {
+
+        List<MailData> mails = new ArrayList<MailData>();
+        Random random = new Random(1);
+        for ( int i = 1; i <= 95; i++ ) {
+            MailData mail = new MailData(new ArrayList<MailSender>(), new MailSenderDummy("alice"), "test");
+            mail.setIndex(i);
+            // 日時が同じメールも混ぜておく
+            mail.setDate(new Date(random.nextInt(50) * 1000L));
+            mails.add(mail);
+        }
+
+        List<MailData> sorted = new ArrayList<MailData>(mails);
+        Collections.sort(sorted, MailboxPage.NEWER_FIRST);
+
+        // 並べ替えたリストから切り出した結果と、一致する
+        for ( int page = 0; page <= 11; page++ ) {
+            MailboxPage selected = MailboxPage.select(mails, page, 10);
+            MailboxPage sliced = MailboxPage.slice(sorted, page, 10);
+            assertEquals(95, selected.getTotal());
+            assertEquals(sliced.getMails(), selected.getMails());
+        }
+        assertEquals(10, MailboxPage.select(mails, 1, 10).getMails().size());
+        assertEquals(5, MailboxPage.select(mails, 10, 10).getMails().size());
+        assertEquals(0, MailboxPage.select(mails, 11, 10).getMails().size());
+        assertEquals(0, MailboxPage.select(new ArrayList<MailData>(), 1, 10).getTotal());
+    }
+}
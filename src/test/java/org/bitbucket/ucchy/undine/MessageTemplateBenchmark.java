@@ -0,0 +1,52 @@
+package org.bitbucket.ucchy.undine;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.bukkit.configuration.file.YamlConfiguration;
+
+/**
+ * メッセージリソースの取得にかかる時間を、解析済みのテンプレートを使う前後で比較する。
+ * 実行するには、テストのクラスパスで main を起動する。
+ */
+public class MessageTemplateBenchmark {
+
+    private static final int ROUNDS = 5;
+    private static final int CALLS = 1000000;
+
+    public static void main(String[] args) throws Exception {
+
+        YamlConfiguration resources = MessageTemplateTest.loadMessages();
+        List<String> keys = new ArrayList<String>(resources.getKeys(false));
+        HashMap<String, MessageTemplate> templates = new HashMap<String, MessageTemplate>();
+        for ( String key : keys ) {
+            templates.put(key, new MessageTemplate(MessageTemplateTest.translate(resources.getString(key))));
+        }
+
+        String[] names = {"%owner", "%num"};
+        String[] values = {"ucchy", "12"};
+
+        for ( int round=1; round<=ROUNDS; round++ ) {
+
+            long hash = 0;
+            long start = System.nanoTime();
+            for ( int i=0; i<CALLS; i++ ) {
+                String key = keys.get(i % keys.size());
+                hash += MessageTemplateTest.replace(resources, key, names, values).length();
+            }
+            long before = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for ( int i=0; i<CALLS; i++ ) {
+                String key = keys.get(i % keys.size());
+                hash -= templates.get(key).render(names, values).length();
+            }
+            long after = System.nanoTime() - start;
+
+            System.out.println(String.format(
+                    "round %d: before %.1f ns/call, after %.1f ns/call (check %d)",
+                    round, (double)before / CALLS, (double)after / CALLS, hash));
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package org.bitbucket.ucchy.undine;
+
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+
+import org.bukkit.ChatColor;
+import org.bukkit.configuration.file.YamlConfiguration;
+
+import junit.framework.TestCase;
+
+public class MessageTemplateTest extends TestCase {
+
+    private static final String[][] KEYS = {
+        {"%num"}, {"%number"}, {"%name"}, {"%owner", "%num"}, {"%from", "%to"}, {"%unread"},
+    };
+
+    public void testRender() {
+
+        assertEquals("a 1 b", new MessageTemplate("a %num b").render("%num", "1"));
+        assertEquals("#1ber", new MessageTemplate("#%number").render("%num", "1"));
+        assertEquals("100% done", new MessageTemplate("100% done").render("%num", "1"));
+        assertEquals("x=1, y=%y", new MessageTemplate("x=%x, y=%y").render(
+                new String[]{"%x", "%z"}, new String[]{"1", "2"}));
+        assertEquals("a b", new MessageTemplate("a {x}").render("{x}", "b"));
+    }
+
+    public void testSameAsReplace() throws Exception {
+
+        YamlConfiguration resources = loadMessages();
+        for ( String key : resources.getKeys(false) ) {
+            MessageTemplate template = new MessageTemplate(translate(resources.getString(key)));
+            for ( String[] keys : KEYS ) {
+                String[] values = new String[keys.length];
+                for ( int i=0; i<values.length; i++ ) {
+                    values[i] = "v" + i;
+                }
+                assertEquals(key, replace(resources, key, keys, values), template.render(keys, values));
+            }
+        }
+    }
+
+    /**
+     * 解析する前の、Messages#getと同じ処理
+     */
+    static String replace(YamlConfiguration resources, String key, String[] keys, String[] values) {
+        String message = translate(resources.getString(key));
+        for ( int index=0; index<keys.length; index++ ) {
+            if ( values.length < (index + 1) ) continue;
+            message = message.replace(keys[index], values[index]);
+        }
+        return message;
+    }
+
+    static String translate(String message) {
+        if ( message == null ) return "";
+        message = message.replace("\\n", "\n");
+        return ChatColor.translateAlternateColorCodes('&', message);
+    }
+
+    static YamlConfiguration loadMessages() throws Exception {
+        try (InputStreamReader reader = new InputStreamReader(
+                MessageTemplateTest.class.getClassLoader().getResourceAsStream("messages_en.yml"),
+                StandardCharsets.UTF_8)) {
+            return YamlConfiguration.loadConfiguration(reader);
+        }
+    }
+}
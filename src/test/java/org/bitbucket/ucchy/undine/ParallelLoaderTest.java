@@ -0,0 +1,31 @@
+package org.bitbucket.ucchy.undine;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import junit.framework.TestCase;
+
+public class ParallelLoaderTest extends TestCase {
+
+    public void testInvokeAll() {
+
+        List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+        for ( int i=0; i<100; i++ ) {
+            final int value = i;
+            tasks.add(new Callable<Integer>() {
+                public Integer call() {
+                    if ( value == 10 ) throw new IllegalStateException("test");
+                    return (value % 2 == 0) ? value : null;
+                }
+            });
+        }
+
+        // 例外とnullは除外され、順序は保たれる
+        List<Integer> result = ParallelLoader.invokeAll(tasks);
+        assertEquals(49, result.size());
+        for ( int i=1; i<result.size(); i++ ) {
+            assertTrue(result.get(i - 1) < result.get(i));
+        }
+    }
+}
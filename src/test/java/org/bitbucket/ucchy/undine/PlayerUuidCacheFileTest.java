@@ -0,0 +1,130 @@
+/*
+ * @author     ucchy
+ * @license    LGPLv3
+ * @copyright  Copyright ucchy 2015
+ */
+package org.bitbucket.ucchy.undine;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.bukkit.configuration.file.YamlConfiguration;
+
+import junit.framework.TestCase;
+
+/**
+ * PlayerUuidCacheFileのテスト
+ * @author ucchy
+ */
+public class PlayerUuidCacheFileTest extends TestCase {
+
+    private static final String UUID_A = "9603ae84-5be8-40af-af14-a62ed0f14a29";
+    private static final String UUID_B = "0f5b8b2c-3c1d-4e6a-9d7e-2a1b3c4d5e6f";
+
+    private File folder;
+
+    @Override
+    protected void setUp() throws IOException {
+        folder = File.createTempFile("undine", "cache");
+        folder.delete();
+        folder.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() {
+        File[] children = folder.listFiles();
+        if ( children != null ) {
+            for ( File file : children ) {
+                file.delete();
+            }
+        }
+        folder.delete();
+    }
+
+    public void testAppendAndCompact() {
+
+        File file = new File(folder, "uuidcache.dat");
+        PlayerUuidCacheFile cacheFile = new PlayerUuidCacheFile(file);
+        cacheFile.append(new PlayerUuidCacheData("alice", UUID_A, new Date(1000L)));
+        cacheFile.append(new PlayerUuidCacheData("bob", UUID_B, new Date(2000L)));
+        cacheFile.append(new PlayerUuidCacheData("alice", UUID_A, new Date(3000L)));
+        cacheFile.close();
+
+        // 同じ名前のレコードは、後に追記したものが使われること
+        PlayerUuidCacheFile reopened = new PlayerUuidCacheFile(file);
+        List<PlayerUuidCacheData> loaded = reopened.load();
+        assertEquals(2, loaded.size());
+        assertEquals("bob", loaded.get(0).getName());
+        assertEquals("alice", loaded.get(1).getName());
+        assertEquals(3000L, loaded.get(1).getLastKnownDate().getTime());
+
+        // コンパクションで、古いレコードが取り除かれること
+        long before = file.length();
+        assertTrue(reopened.compact(loaded));
+        assertTrue(file.length() < before);
+        assertFalse(new File(folder, "uuidcache.dat.tmp").exists());
+
+        // コンパクションの後も、追記できること
+        reopened.append(new PlayerUuidCacheData("carol", UUID_B, new Date(4000L)));
+        reopened.close();
+        assertEquals(3, new PlayerUuidCacheFile(file).load().size());
+    }
+
+    public void testCompactionNeeded() {
+
+        PlayerUuidCacheFile cacheFile = new PlayerUuidCacheFile(new File(folder, "uuidcache.dat"));
+        for ( int i=0; i<1500; i++ ) {
+            cacheFile.append(new PlayerUuidCacheData("alice", UUID_A, new Date(i)));
+        }
+        cacheFile.close();
+        assertTrue(cacheFile.isCompactionNeeded(1));
+        assertFalse(cacheFile.isCompactionNeeded(1000));
+
+        List<PlayerUuidCacheData> caches = new ArrayList<PlayerUuidCacheData>();
+        caches.add(new PlayerUuidCacheData("alice", UUID_A, new Date()));
+        cacheFile.compact(caches);
+        assertFalse(cacheFile.isCompactionNeeded(1));
+    }
+
+    public void testCompactFromFile() {
+
+        File file = new File(folder, "uuidcache.dat");
+        PlayerUuidCacheFile cacheFile = new PlayerUuidCacheFile(file);
+        cacheFile.append(new PlayerUuidCacheData("alice", UUID_A, new Date(1000L)));
+        cacheFile.append(new PlayerUuidCacheData("bob", UUID_B, new Date(2000L)));
+        cacheFile.append(new PlayerUuidCacheData("alice", UUID_A, new Date(3000L)));
+
+        // ファイルの内容から作り直すので、全てのプレイヤーの最新のレコードが残ること
+        assertTrue(cacheFile.compact());
+        cacheFile.close();
+        List<PlayerUuidCacheData> loaded = new PlayerUuidCacheFile(file).load();
+        assertEquals(2, loaded.size());
+        assertEquals("bob", loaded.get(0).getName());
+        assertEquals(3000L, loaded.get(1).getLastKnownDate().getTime());
+    }
+
+    public void testMigrateLegacyFiles() throws IOException {
+
+        YamlConfiguration conf = new YamlConfiguration();
+        conf.set("name", "alice");
+        conf.set("uuid", UUID_A);
+        conf.set("lastKnownDate", 1000L);
+        conf.save(new File(folder, UUID_A + ".yml"));
+
+        File file = new File(folder, "uuidcache.dat");
+        PlayerUuidCacheFile cacheFile = new PlayerUuidCacheFile(file);
+        List<PlayerUuidCacheData> loaded = PlayerUuidCache.migrateLegacyFiles(folder, cacheFile);
+        assertEquals(1, loaded.size());
+        assertEquals(UUID_A, loaded.get(0).getUuid());
+
+        // Yamlファイルが、1つのキャッシュファイルに置き換えられること
+        assertFalse(new File(folder, UUID_A + ".yml").exists());
+        loaded = new PlayerUuidCacheFile(file).load();
+        assertEquals(1, loaded.size());
+        assertEquals("alice", loaded.get(0).getName());
+        assertEquals(1000L, loaded.get(0).getLastKnownDate().getTime());
+    }
+}
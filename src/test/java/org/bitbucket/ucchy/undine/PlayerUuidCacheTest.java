@@ -0,0 +1,188 @@
+/*
+ * @author     ucchy
+ * @license    LGPLv3
+ * @copyright  Copyright ucchy 2015
+ */
+package org.bitbucket.ucchy.undine;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+/**
+ * PlayerUuidCacheのテスト
+ * @author ucchy
+ */
+public class PlayerUuidCacheTest extends TestCase {
+
+    private static final String UUID_A = "9603ae84-5be8-40af-af14-a62ed0f14a29";
+    private static final String UUID_B = "0f5b8b2c-3c1d-4e6a-9d7e-2a1b3c4d5e6f";
+
+    public void testReverseIndex() {
+
+        PlayerUuidCache cache = new PlayerUuidCache(new UUIDResolver(true), null, null, null, 0);
+        cache.put(new PlayerUuidCacheData("alice", UUID_A, new Date()));
+        cache.put(new PlayerUuidCacheData("bob", UUID_B, new Date()));
+
+        assertEquals(UUID_A, cache.getUUID("alice"));
+        assertEquals("alice", cache.getName(UUID_A));
+        assertEquals("bob", cache.getName(UUID_B));
+        assertEquals(2, cache.getPlayerUuids().size());
+
+        // 名前を変えたプレイヤーは、新しい名前で引けること
+        cache.put(new PlayerUuidCacheData("alice2", UUID_A, new Date()));
+        assertEquals("alice2", cache.getName(UUID_A));
+
+        // 名前が別のプレイヤーに移った場合は、古いUUIDの対応が残らないこと
+        cache.put(new PlayerUuidCacheData("bob", UUID_A, new Date()));
+        assertEquals(UUID_A, cache.getUUID("bob"));
+        assertEquals("bob", cache.getName(UUID_A));
+        assertEquals(1, cache.getPlayerUuids().size());
+    }
+
+    public void testEviction() throws InterruptedException {
+
+        PlayerUuidIndex index = new PlayerUuidIndex(10);
+        Date now = new Date();
+        Date stale = new Date(now.getTime() - PlayerUuidCache.STALE_MILLIS - 1000L);
+
+        index.put(new PlayerUuidCacheData("stale", uuid(0), stale));
+        for ( int i=1; i<10; i++ ) {
+            index.put(new PlayerUuidCacheData("player" + i, uuid(i), now));
+        }
+        Thread.sleep(5);
+
+        // 参照したデータは、取り除かれにくくなること
+        assertNotNull(index.get("player1"));
+        assertEquals("player2", index.getName(uuid(2)));
+
+        // 上限を超えたら、30日以上確認していないデータ、参照されていないデータの順に、
+        // 上限の9割まで取り除かれること
+        index.put(new PlayerUuidCacheData("player10", uuid(10), now));
+        assertEquals(9, index.getCachedSize());
+        assertNull(index.get("stale"));
+        assertNotNull(index.get("player1"));
+        assertNotNull(index.get("player2"));
+        assertNotNull(index.get("player10"));
+
+        // 取り除かれたのはキャッシュデータだけで、プレイヤー名とUUIDの対応は全て残ること
+        assertEquals(11, index.size());
+        assertEquals(11, index.getPlayerNames().size());
+        assertEquals(11, index.getPlayerUuids().size());
+        assertEquals(uuid(0), index.getUuid("stale"));
+        assertEquals("stale", index.getName(uuid(0)));
+
+        // 30日以上確認していないデータが無ければ、最近参照されていないデータから取り除かれること
+        index = new PlayerUuidIndex(5);
+        for ( int i=1; i<=5; i++ ) {
+            index.put(new PlayerUuidCacheData("player" + i, uuid(i), now));
+        }
+        Thread.sleep(5);
+        index.get("player1");
+        index.get("player2");
+        index.put(new PlayerUuidCacheData("player6", uuid(6), now));
+        assertEquals(4, index.getCachedSize());
+        assertNotNull(index.get("player1"));
+        assertNotNull(index.get("player2"));
+        assertNotNull(index.get("player6"));
+
+        // 上限で取り除かれたプレイヤーも、キャッシュからUUIDを取得できること
+        PlayerUuidCache cache = new PlayerUuidCache(new UUIDResolver(true), null, null, null, 5);
+        for ( int i=1; i<=6; i++ ) {
+            cache.put(new PlayerUuidCacheData("player" + i, uuid(i), now));
+        }
+        assertEquals(6, cache.getPlayerUuids().size());
+        for ( int i=1; i<=6; i++ ) {
+            assertTrue(cache.isUuidResolved("player" + i));
+            assertEquals(uuid(i), cache.getUUID("player" + i));
+        }
+    }
+
+    public void testCoalescing() throws Exception {
+
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger requests = new AtomicInteger();
+        UUIDResolver resolver = new UUIDResolver(true) {
+            @Override
+            protected String getUUIDFromName(String name, Date lastKnownDate) {
+                requests.incrementAndGet();
+                started.countDown();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    return null;
+                }
+                return UUID_A;
+            }
+        };
+
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            PlayerUuidCache cache = new PlayerUuidCache(resolver, null, null, executor, 0);
+
+            CompletableFuture<String> first = cache.getUUIDAsync("alice");
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            CompletableFuture<String> second = cache.getUUIDAsync("alice");
+            cache.asyncRefreshPlayerUuid("alice");
+
+            // 解決中は、同じ要求を共有し、メインスレッドからの取得は待たずにnullを返すこと
+            assertSame(first, second);
+            assertFalse(cache.isUuidResolved("alice"));
+            assertNull(cache.getUUID("alice"));
+
+            release.countDown();
+            assertEquals(UUID_A, first.get(5, TimeUnit.SECONDS));
+            assertEquals(1, requests.get());
+
+            // 解決した後は、キャッシュから取得できること
+            assertTrue(cache.isUuidResolved("alice"));
+            assertEquals(UUID_A, cache.getUUID("alice"));
+            assertEquals("alice", cache.getName(UUID_A));
+            assertTrue(cache.getUUIDAsync("alice").isDone());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    public void testResolveAll() throws Exception {
+
+        final AtomicInteger requests = new AtomicInteger();
+        UUIDResolver resolver = new UUIDResolver(true) {
+            @Override
+            protected String getUUIDFromName(String name, Date lastKnownDate) {
+                requests.incrementAndGet();
+                return name.equals("bob") ? UUID_B : null;
+            }
+        };
+
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            PlayerUuidCache cache = new PlayerUuidCache(resolver, null, null, executor, 0);
+            cache.put(new PlayerUuidCacheData("alice", UUID_A, new Date()));
+
+            // キャッシュにあるものだけなら、問い合わせずに完了していること
+            assertTrue(cache.resolveAll(Arrays.asList("alice")).isDone());
+            assertEquals(0, requests.get());
+
+            // キャッシュに無いプレイヤー名だけを問い合わせ、プレイヤー名として使えない文字列は無視すること
+            cache.resolveAll(Arrays.asList("alice", "bob", "nobody", "group name")).get(5, TimeUnit.SECONDS);
+            assertEquals(2, requests.get());
+            assertEquals(UUID_B, cache.getUUID("bob"));
+            assertFalse(cache.isUuidResolved("nobody"));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static String uuid(int i) {
+        return String.format("00000000-0000-0000-0000-%012d", i);
+    }
+}
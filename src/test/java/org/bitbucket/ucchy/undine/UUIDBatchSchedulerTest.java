@@ -0,0 +1,172 @@
+/*
+ * @author     ucchy
+ * @license    LGPLv3
+ * @copyright  Copyright ucchy 2015
+ */
+package org.bitbucket.ucchy.undine;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import com.google.gson.Gson;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import junit.framework.TestCase;
+
+/**
+ * UUIDBatchSchedulerのテスト。ローカルのスタブサーバーに対して問い合わせる。
+ * @author ucchy
+ */
+public class UUIDBatchSchedulerTest extends TestCase {
+
+    private static final Gson GSON = new Gson();
+
+    private HttpServer server;
+    private List<List<String>> requests;
+    private int rateLimitedRequests;
+
+    @Override
+    protected void setUp() throws IOException {
+
+        requests = new ArrayList<List<String>>();
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/profiles/minecraft", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                String[] names;
+                try (Reader in = new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8)) {
+                    names = GSON.fromJson(in, String[].class);
+                }
+                synchronized (UUIDBatchSchedulerTest.this) {
+                    requests.add(Arrays.asList(names));
+                    if ( rateLimitedRequests > 0 ) {
+                        rateLimitedRequests--;
+                        respond(exchange, 429, "{\"error\":\"TooManyRequestsException\"}");
+                        return;
+                    }
+                }
+                if ( names.length > 2 ) {
+                    respond(exchange, 400, "{\"errorMessage\":\"Not more that 2 profile name per call is allowed.\"}");
+                    return;
+                }
+                StringBuilder body = new StringBuilder("[");
+                for ( String name : names ) {
+                    if ( name.contains(" ") ) {
+                        respond(exchange, 400, "{\"errorMessage\":\"Invalid profile name\"}");
+                        return;
+                    }
+                    if ( name.startsWith("unknown") ) continue;
+                    if ( body.length() > 1 ) body.append(",");
+                    body.append("{\"id\":\"").append(uuid(name).replace("-", ""))
+                            .append("\",\"name\":\"").append(name).append("\"}");
+                }
+                respond(exchange, 200, body.append("]").toString());
+            }
+        });
+        server.start();
+    }
+
+    @Override
+    protected void tearDown() {
+        server.stop(0);
+    }
+
+    public void testResolve() throws Exception {
+
+        synchronized (this) {
+            rateLimitedRequests = 1;
+        }
+        UUIDResolver resolver = new UUIDResolver(true,
+                "http://127.0.0.1:" + server.getAddress().getPort() + "/");
+        UUIDBatchScheduler scheduler = new UUIDBatchScheduler(resolver, 2, 20, 10);
+
+        try {
+            List<String> names = Arrays.asList(
+                    "batchAlice", "batchBob", "bad name", "unknownCarol", "batchDave", "batchEllen");
+            Map<String, String> results = scheduler.resolve(names).get(10, TimeUnit.SECONDS);
+
+            // 存在しないプレイヤー名と不正な名前を除いて、全て解決できること
+            assertEquals(4, results.size());
+            assertEquals(uuid("batchAlice"), results.get("batchAlice"));
+            assertEquals(uuid("batchEllen"), results.get("batchEllen"));
+            assertFalse(results.containsKey("bad name"));
+            assertFalse(results.containsKey("unknownCarol"));
+
+            // 制限超過の後に再試行し、通知された上限までバッチサイズを減らしていること
+            synchronized (this) {
+                assertEquals(Arrays.asList("batchAlice", "batchBob", "bad name",
+                        "unknownCarol", "batchDave", "batchEllen"), requests.get(0));
+                assertEquals(requests.get(0), requests.get(1));
+                assertEquals(2, requests.get(requests.size() - 1).size());
+                for ( List<String> request : requests.subList(3, requests.size()) ) {
+                    assertTrue(request.size() <= 2);
+                }
+            }
+            assertTrue(scheduler.getBatchSize() <= 2);
+
+            // 解決済みの名前は、問い合わせずに返すこと
+            int count = requests.size();
+            results = scheduler.resolve(Arrays.asList("batchAlice")).get(10, TimeUnit.SECONDS);
+            assertEquals(uuid("batchAlice"), results.get("batchAlice"));
+            assertEquals(count, requests.size());
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    public void testShutdown() throws Exception {
+
+        UUIDResolver resolver = new UUIDResolver(true,
+                "http://127.0.0.1:" + server.getAddress().getPort() + "/");
+        UUIDBatchScheduler scheduler = new UUIDBatchScheduler(resolver, 2, 20, 10);
+        scheduler.shutdown();
+
+        // 停止した後の予約は、問い合わせずに、キャッシュにある分だけで完了すること
+        Map<String, String> results = scheduler.resolve(
+                Arrays.asList("shutdownAlice", "shutdownBob")).get(10, TimeUnit.SECONDS);
+        assertTrue(results.isEmpty());
+        synchronized (this) {
+            assertTrue(requests.isEmpty());
+        }
+    }
+
+    public void testTokenBucket() {
+
+        TokenBucket bucket = new TokenBucket(2, 1000, 0);
+        assertEquals(0, bucket.tryAcquire(0));
+        assertEquals(0, bucket.tryAcquire(0));
+        assertEquals(1000, bucket.tryAcquire(0));
+        assertEquals(500, bucket.tryAcquire(500));
+        assertEquals(0, bucket.tryAcquire(1000));
+
+        // 満杯を超えては補充されないこと
+        assertEquals(2, bucket.getTokens(10000));
+
+        // 制限超過の通知を受けたら、トークンが無くなること
+        bucket.drain(10000);
+        assertEquals(1000, bucket.tryAcquire(10000));
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static String uuid(String name) {
+        return UUID.nameUUIDFromBytes(name.getBytes(StandardCharsets.UTF_8)).toString();
+    }
+}
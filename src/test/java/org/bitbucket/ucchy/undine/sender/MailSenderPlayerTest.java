@@ -0,0 +1,50 @@
+package org.bitbucket.ucchy.undine.sender;
+
+import junit.framework.TestCase;
+
+public class MailSenderPlayerTest extends TestCase {
+
+    public void testRegistry() {
+
+        String uuid = "$0f5b4a6e-2a7c-4c1e-9a3d-5d1f8e6b7c90";
+        MailSender a = MailSender.getMailSenderFromString(uuid);
+        MailSender b = MailSender.getMailSenderFromString(uuid);
+        MailSender c = new MailSenderPlayer(uuid);
+
+        // 同じUUIDなら、同じインスタンスが返される
+        assertSame(a, b);
+        assertSame(a, MailSenderPlayer.getMailSenderPlayer(uuid));
+
+        // 別のインスタンスでも、同じUUIDなら等価になる
+        assertNotSame(a, c);
+        assertEquals(a, c);
+        assertEquals(a.hashCode(), c.hashCode());
+        assertFalse(a.equals(MailSender.getMailSenderFromString("$other")));
+    }
+
+    public void testClearRegistry() {
+
+        String uuid = "$3c2d1e0f-4b5a-4687-9a1b-2c3d4e5f6a7b";
+        MailSender a = MailSender.getMailSenderFromString(uuid);
+
+        // 破棄した後は、新しいインスタンスが返されるが、等価なまま
+        MailSenderPlayer.clearRegistry();
+        MailSender b = MailSender.getMailSenderFromString(uuid);
+        assertNotSame(a, b);
+        assertEquals(a, b);
+        assertSame(b, MailSender.getMailSenderFromString(uuid));
+    }
+
+    public void testStableKey() {
+
+        // UUIDが解決できない名前は、名前のまま識別され、IDもハッシュ値も変わらない
+        MailSenderPlayer bob = MailSenderPlayer.getMailSenderPlayer("bob");
+        int hash = bob.hashCode();
+        assertEquals("bob", bob.toString());
+        assertFalse(bob.upgrade());
+        assertNull(bob.getUpgraded());
+        assertEquals("bob", bob.toString());
+        assertEquals(hash, bob.hashCode());
+        assertEquals(bob, new MailSenderPlayer("bob"));
+    }
+}